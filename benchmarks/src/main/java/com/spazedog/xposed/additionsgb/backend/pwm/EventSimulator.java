@@ -0,0 +1,445 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import android.view.KeyEvent;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventClock;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator.ActionHandler;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator.ActionType;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IKeyInjector;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IRemapSettings;
+
+/**
+ * Replays key sequences against a real EventManager, using a virtual clock.
+ *
+ * The calling thread plays the part of the input reader, which registers each key through
+ * EventManager.registerKey() just like the queueing hook does. Every registered key is then
+ * passed to a dispatcher thread of it's own, which calls EventManager.dispatchKey() just like
+ * the dispatching hook does. The dispatcher waits on tap and long press timeouts on the virtual
+ * clock, so a sequence takes no longer than the key handling itself, and always gives the same result.
+ *
+ * After each step, the caller is blocked until the dispatcher has nothing more to do at the current
+ * time, that is until it is idle or waiting on a timeout. Timeouts only expire while the clock
+ * is moved with advance(), at exactly their deadline.
+ *
+ * Everything the key handling sends out is recorded in order, with the virtual time it happened:
+ *
+ *     '<time> action <CLICK|PRESS> <tap count> <action>'   An action was handed to the mediator
+ *     '<time> inject <key code> <down|up> <repeat count>'    A key event was injected
+ *     '<time> dispatch <key code>'                           The original event was parsed on to the system
+ *
+ * The time is relative to when the simulator was created. Actions are not executed, and the
+ * mediator returns true for any action but null, so that the original key is injected instead.
+ * Key repeats of the default long press still come from the KeyRepeater, on the real clock.
+ */
+public final class EventSimulator {
+
+	/*
+	 * Far enough from 0 that the first key is not mistaken for the continuation of an old event
+	 */
+	private static final long START_TIME = 100000L;
+
+	/*
+	 * Real time that the caller waits for the dispatcher before giving up
+	 */
+	private static final long SETTLE_TIMEOUT = 5000L;
+
+	private static final class Waiter {
+		final Object mLock;
+		final long mDeadline;
+
+		Waiter(Object lock, long deadline) {
+			mLock = lock;
+			mDeadline = deadline;
+		}
+	}
+
+	private static final class Dispatch {
+		final int mKeyCode;
+		final boolean mDown;
+
+		Dispatch(int keyCode, boolean down) {
+			mKeyCode = keyCode;
+			mDown = down;
+		}
+	}
+
+	/*
+	 * Guards everything below, as well as the virtual time. Never held while calling into the EventManager.
+	 */
+	private final Object mLock = new Object();
+
+	private long mNow = START_TIME;
+	private final List<Waiter> mWaiters = new ArrayList<Waiter>();
+	private final ArrayDeque<Dispatch> mQueue = new ArrayDeque<Dispatch>();
+	private final List<String> mOutput = new ArrayList<String>();
+	private int mWaitCount = 0;
+	private boolean mBusy = false;
+	private boolean mClosed = false;
+
+	/*
+	 * Read without the lock, to skip building the output when it is not used
+	 */
+	private volatile boolean mRecording = true;
+
+	/*
+	 * Only used by the calling thread
+	 */
+	private final Map<Integer, Long> mDownTimes = new HashMap<Integer, Long>();
+	private boolean mScreenOn = true;
+
+	private final EventManager mManager;
+	private final Thread mDispatcher;
+
+	private final IEventClock mClock = new IEventClock() {
+		@Override
+		public long uptimeMillis() {
+			synchronized (mLock) {
+				return mNow;
+			}
+		}
+
+		/*
+		 * The caller holds the EventManager change lock, which is also needed to signal a new key.
+		 * So nothing can signal the lock between registering the waiter and waiting on it.
+		 */
+		@Override
+		public void waitOn(Object lock, long timeout) throws InterruptedException {
+			Waiter waiter;
+
+			synchronized (mLock) {
+				if (mClosed) {
+					return;
+				}
+
+				waiter = new Waiter(lock, mNow + timeout);
+				mWaiters.add(waiter);
+				mWaitCount += 1;
+				mLock.notifyAll();
+			}
+
+			try {
+				lock.wait();
+
+			} finally {
+				synchronized (mLock) {
+					mWaiters.remove(waiter);
+				}
+			}
+		}
+	};
+
+	private final IKeyInjector mInjector = new IKeyInjector() {
+		private final ThreadLocal<KeyInjectionBatch> mBatch = new ThreadLocal<KeyInjectionBatch>() {
+			@Override
+			protected KeyInjectionBatch initialValue() {
+				return new KeyInjectionBatch();
+			}
+		};
+
+		@Override
+		public KeyInjectionBatch obtainInjectionBatch() {
+			KeyInjectionBatch batch = mBatch.get();
+			batch.clear();
+
+			return batch;
+		}
+
+		@Override
+		public void injectInputEvents(KeyInjectionBatch batch) {
+			for (int i=0; i < batch.size(); i++) {
+				injectInputEvent(batch.keyCodeAt(i), batch.actionAt(i), batch.downTimeAt(i), batch.repeatCountAt(i), batch.flagsAt(i), batch.metaStateAt(i));
+			}
+		}
+
+		@Override
+		public void injectInputEvent(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState) {
+			if (mRecording) record("inject " + keyCode + (action == KeyEvent.ACTION_DOWN ? " down " : " up ") + repeatCount);
+		}
+	};
+
+	private final ActionHandler mActionHandler = new ActionHandler() {
+		@Override
+		public boolean onKeyAction(KeyAction action, ActionType actionType, int tapCount, boolean isScreenOn, boolean invokeCallButton, long eventDownTime, int policyFlags) {
+			if (action != null && mRecording) {
+				record("action " + actionType.name() + " " + tapCount + " " + action);
+			}
+
+			return action != null;
+		}
+	};
+
+	private final Runnable mDispatchRunnable = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				Dispatch dispatch;
+
+				synchronized (mLock) {
+					mBusy = false;
+					mLock.notifyAll();
+
+					while (mQueue.isEmpty() && !mClosed) {
+						try {
+							mLock.wait();
+
+						} catch (InterruptedException e) {}
+					}
+
+					if (mClosed) {
+						return;
+					}
+
+					dispatch = mQueue.poll();
+					mBusy = true;
+				}
+
+				dispatch(dispatch.mKeyCode, dispatch.mDown);
+			}
+		}
+	};
+
+	public EventSimulator(IRemapSettings settings) {
+		this(settings, null);
+	}
+
+	/**
+	 * @param injector
+	 *     Where to inject keys instead of recording them, like for benchmarks. Null records them as usual.
+	 */
+	public EventSimulator(IRemapSettings settings, IKeyInjector injector) {
+		mManager = new EventManager(null, null, mClock, settings, injector != null ? injector : mInjector);
+		mManager.setActionHandler(mActionHandler);
+
+		mDispatcher = new Thread(mDispatchRunnable, "EventSimulator:Dispatcher");
+		mDispatcher.setDaemon(true);
+		mDispatcher.start();
+	}
+
+	public EventManager getManager() {
+		return mManager;
+	}
+
+	/*
+	 * Same as the dispatching hook does with a key that is not injected
+	 */
+	private void dispatch(int keyCode, boolean down) {
+		EventKey key = mManager.holdKey(keyCode);
+		int stateWord = mManager.getStateWord();
+
+		try {
+			if (key != null && mManager.dispatchKey(key, stateWord, down, System.nanoTime()) && mRecording) {
+				record("dispatch " + keyCode);
+			}
+
+		} finally {
+			mManager.unholdKey(key);
+		}
+	}
+
+	private void record(String event) {
+		synchronized (mLock) {
+			if (!mClosed) {
+				mOutput.add((mNow - START_TIME) + " " + event);
+			}
+		}
+	}
+
+	/**
+	 * Stop recording the output, like for benchmarks that has no use for it
+	 */
+	public void setRecording(boolean recording) {
+		mRecording = recording;
+	}
+
+	public void setScreenOn(boolean screenOn) {
+		mScreenOn = screenOn;
+	}
+
+	/**
+	 * The current virtual time, relative to when the simulator was created
+	 */
+	public long now() {
+		synchronized (mLock) {
+			return mNow - START_TIME;
+		}
+	}
+
+	/**
+	 * Number of times the dispatcher has been waiting on the clock, that is the number of times it has
+	 * been woken up. Each timeout should only cost a single wait, no matter how long it is.
+	 */
+	public int getWaitCount() {
+		synchronized (mLock) {
+			return mWaitCount;
+		}
+	}
+
+	/**
+	 * Get everything recorded since the last call
+	 */
+	public List<String> takeOutput() {
+		synchronized (mLock) {
+			List<String> output = new ArrayList<String>(mOutput);
+			mOutput.clear();
+
+			return output;
+		}
+	}
+
+	public EventSimulator down(int keyCode) {
+		long now = mClock.uptimeMillis();
+
+		mDownTimes.put(keyCode, now);
+
+		return queue(keyCode, true, now, now);
+	}
+
+	public EventSimulator up(int keyCode) {
+		Long downTime = mDownTimes.remove(keyCode);
+
+		return queue(keyCode, false, downTime != null ? downTime : 0L, mClock.uptimeMillis());
+	}
+
+	/**
+	 * A key down, followed by the key up <code>holdTime</code> later
+	 */
+	public EventSimulator press(int keyCode, long holdTime) {
+		return down(keyCode).advance(holdTime).up(keyCode);
+	}
+
+	/*
+	 * Same as the queueing hook does with a key that is not injected
+	 */
+	private EventSimulator queue(int keyCode, boolean down, long downTime, long eventTime) {
+		if (mManager.registerKey(keyCode, down, mScreenOn, 0, 0, 0, downTime, eventTime) && !mScreenOn) {
+			WakeManager wakeManager = mManager.getWakeManager();
+
+			if (!wakeManager.isHeld(WakeManager.HOLDER_EVENT)) {
+				wakeManager.acquire(WakeManager.HOLDER_EVENT);
+			}
+		}
+
+		synchronized (mLock) {
+			mQueue.add(new Dispatch(keyCode, down));
+			mLock.notifyAll();
+		}
+
+		settle();
+
+		return this;
+	}
+
+	/**
+	 * Move the virtual clock forward. Every timeout that expires on the way is
+	 * released at it's own deadline, after which the dispatcher is allowed to settle
+	 * before the clock moves on.
+	 */
+	public EventSimulator advance(long millis) {
+		long target;
+
+		synchronized (mLock) {
+			target = mNow + millis;
+		}
+
+		settle();
+
+		while (true) {
+			List<Object> expired = new ArrayList<Object>();
+
+			synchronized (mLock) {
+				long next = target;
+
+				for (Waiter waiter : mWaiters) {
+					next = Math.min(next, waiter.mDeadline);
+				}
+
+				mNow = Math.max(mNow, next);
+
+				for (Iterator<Waiter> iterator = mWaiters.iterator(); iterator.hasNext();) {
+					Waiter waiter = iterator.next();
+
+					if (waiter.mDeadline <= mNow) {
+						iterator.remove();
+						expired.add(waiter.mLock);
+					}
+				}
+
+				if (expired.isEmpty() && mNow >= target) {
+					return this;
+				}
+
+				/*
+				 * The woken dispatcher is still busy, which keeps settle()
+				 * from returning before it has acted on the timeout
+				 */
+				if (!expired.isEmpty()) {
+					mBusy = true;
+				}
+			}
+
+			for (Object lock : expired) {
+				synchronized (lock) {
+					lock.notifyAll();
+				}
+			}
+
+			settle();
+		}
+	}
+
+	/*
+	 * Wait until the dispatcher has handled everything queued,
+	 * and is either idle or waiting on a timeout
+	 */
+	private void settle() {
+		synchronized (mLock) {
+			long deadline = System.currentTimeMillis() + SETTLE_TIMEOUT;
+
+			while (!mQueue.isEmpty() || (mBusy && mWaiters.isEmpty())) {
+				long remaining = deadline - System.currentTimeMillis();
+
+				if (remaining <= 0) {
+					throw new IllegalStateException("The dispatcher did not settle within " + SETTLE_TIMEOUT + "ms");
+				}
+
+				try {
+					mLock.wait(remaining);
+
+				} catch (InterruptedException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop the dispatcher. Anything it is still waiting on is released without being recorded.
+	 */
+	public void close() {
+		List<Object> waiting = new ArrayList<Object>();
+
+		synchronized (mLock) {
+			mClosed = true;
+			mNow = Long.MAX_VALUE / 2;
+
+			for (Waiter waiter : mWaiters) {
+				waiting.add(waiter.mLock);
+			}
+
+			mLock.notifyAll();
+		}
+
+		for (Object lock : waiting) {
+			synchronized (lock) {
+				lock.notifyAll();
+			}
+		}
+	}
+}
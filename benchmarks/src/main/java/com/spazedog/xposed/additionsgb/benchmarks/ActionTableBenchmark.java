@@ -0,0 +1,218 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.ActionTable;
+import com.spazedog.xposed.additionsgb.backend.pwm.ActionTable.ComboActions;
+import com.spazedog.xposed.additionsgb.backend.pwm.ActionTable.ConditionActions;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/*
+ * The configuration lookup done by EventManager.registerKey() on every new event,
+ * driven through the same IRemapSettings interface. See EventSimulatorBenchmark
+ * for the complete key handling.
+ *
+ * The legacy benchmarks replay the lookup from before the ActionTable, which built a config
+ * name from the pressed keys and read the call button flag, timeouts and action lists from the
+ * preferences on every new event. Compare them with the table lookups that include the condition.
+ *
+ * The chord benchmarks only match the pressed keys against the configured combos, '27:26' which
+ * has no strict order, pressed in and out of the configured order. The string path has to probe
+ * both 'A:B' and 'B:A' to do what the table does with a single lookup.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ActionTableBenchmark {
+
+	@Param({"4", "32", "40"})
+	public int keyCount;
+
+	private FakeRemapSettings mSettings;
+	private ActionTable mTable;
+
+	/*
+	 * Where the legacy lookup kept the actions of the current event
+	 */
+	private final String[] mClickActions = new String[3];
+	private final String[] mPressActions = new String[3];
+
+	@Setup
+	public void setup() {
+		mSettings = new FakeRemapSettings(keyCount);
+		mTable = new ActionTable();
+		mTable.update(mSettings);
+	}
+
+	/*
+	 * Key down on an unchanged configuration, which is the common case
+	 */
+	@Benchmark
+	public ComboActions lookupSingle() {
+		mTable.update(mSettings);
+
+		return mTable.get(24, 0, 0);
+	}
+
+	@Benchmark
+	public ComboActions lookupCombo() {
+		mTable.update(mSettings);
+
+		return mTable.get(26, 25, 0);
+	}
+
+	@Benchmark
+	public ComboActions lookupMiss() {
+		mTable.update(mSettings);
+
+		return mTable.get(1, 2, 0);
+	}
+
+	@Benchmark
+	public ConditionActions lookupSingleCondition() {
+		mTable.update(mSettings);
+
+		return mTable.get(24, 0, 0).getActions("com.android.chrome", true);
+	}
+
+	@Benchmark
+	public ConditionActions lookupComboCondition() {
+		mTable.update(mSettings);
+
+		return mTable.get(25, 26, 0).getActions("com.android.chrome", true);
+	}
+
+	@Benchmark
+	public ComboActions chordTable() {
+		return mTable.get(27, 26, 0);
+	}
+
+	@Benchmark
+	public ComboActions chordTableReversed() {
+		return mTable.get(26, 27, 0);
+	}
+
+	@Benchmark
+	public List<String> chordString() {
+		return stringChord(27, 26);
+	}
+
+	@Benchmark
+	public List<String> chordStringReversed() {
+		return stringChord(26, 27);
+	}
+
+	/*
+	 * A combo lookup by config name that ignores the key order, the way the string path would have to do it
+	 */
+	private List<String> stringChord(int code1, int code2) {
+		List<String> conditions = mSettings.getStringArrayGroup(Settings.REMAP_KEY_LIST_CONDITIONS, joinKeys(code1, code2), null);
+
+		if (conditions == null) {
+			conditions = mSettings.getStringArrayGroup(Settings.REMAP_KEY_LIST_CONDITIONS, joinKeys(code2, code1), null);
+		}
+
+		return conditions;
+	}
+
+	private static String joinKeys(int code1, int code2) {
+		return new StringBuilder().append(Integer.valueOf(code1)).append(":").append(Integer.valueOf(code2)).toString();
+	}
+
+	@Benchmark
+	public void legacyLookupSingle(Blackhole blackhole) {
+		legacyLookup(new int[]{24}, "com.android.chrome", true, blackhole);
+	}
+
+	@Benchmark
+	public void legacyLookupCombo(Blackhole blackhole) {
+		legacyLookup(new int[]{25, 26}, "com.android.chrome", true, blackhole);
+	}
+
+	@Benchmark
+	public void legacyLookupMiss(Blackhole blackhole) {
+		legacyLookup(new int[]{1, 2}, "com.android.chrome", true, blackhole);
+	}
+
+	/*
+	 * Same as the old EventManager.registerKey() did on a new event. The pressed keys were joined
+	 * from a MapList of boxed codes, and the actions were reordered into a new list before they
+	 * were split into click and long press actions.
+	 */
+	private void legacyLookup(int[] pressed, String appCondition, boolean isScreenOn, Blackhole blackhole) {
+		StringBuilder builder = new StringBuilder();
+
+		for (int i=0; i < pressed.length; i++) {
+			if (i > 0) {
+				builder.append(":");
+			}
+
+			builder.append(Integer.valueOf(pressed[i]));
+		}
+
+		String configName = builder.toString();
+
+		if (pressed.length == 1) {
+			configName += ":0";
+		}
+
+		boolean isExtended = mSettings.isPackageUnlocked();
+		boolean isCallButton = mSettings.getBooleanGroup(Settings.REMAP_KEY_ENABLE_CALLBTN, configName);
+		int tapTimeout = mSettings.getInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, 300);
+		int pressTimeout = mSettings.getInt(Settings.REMAP_TIMEOUT_LONGPRESS, 500);
+		List<String> actions = appCondition != null ? mSettings.getStringArrayGroup(Settings.REMAP_KEY_LIST_ACTIONS.get(appCondition), configName, null) : null;
+
+		if ((pressed.length > 1 && !isExtended) || (actions == null && (actions = mSettings.getStringArrayGroup(Settings.REMAP_KEY_LIST_ACTIONS.get(isScreenOn ? "on" : "off"), configName, null)) == null)) {
+			actions = new ArrayList<String>();
+		}
+
+		Integer[] newLocations = new Integer[]{0,2,1,3,4,5};
+		List<String> newConfig = new ArrayList<String>(newLocations.length);
+
+		for (int i=0; i < newLocations.length; i++) {
+			Integer x = newLocations[i];
+
+			newConfig.add(actions.size() > x ? actions.get(x) : null);
+		}
+
+		for (int i=0,x=0,y=0; i < newConfig.size(); i++) {
+			String action = isExtended || (i < 2 && (newConfig.get(i) != null && newConfig.get(i).matches("^[a-z0-9_]+$"))) ? newConfig.get(i) : null;
+
+			if (i == 0 || (i % 2) == 0) {
+				mClickActions[x] = action; x += 1;
+
+			} else {
+				mPressActions[y] = action; y += 1;
+			}
+		}
+
+		blackhole.consume(isCallButton);
+		blackhole.consume(tapTimeout);
+		blackhole.consume(pressTimeout);
+		blackhole.consume(mClickActions);
+		blackhole.consume(mPressActions);
+	}
+
+	/*
+	 * The first key down after the settings has changed
+	 */
+	@Benchmark
+	public ComboActions rebuild() {
+		mSettings.touch();
+		mTable.update(mSettings);
+
+		return mTable.get(24, 0, 0);
+	}
+}
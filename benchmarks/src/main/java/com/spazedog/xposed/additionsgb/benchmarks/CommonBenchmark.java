@@ -0,0 +1,56 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.spazedog.xposed.additionsgb.Common;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CommonBenchmark {
+
+	/*
+	 * One of each action type
+	 */
+	@State(Scope.Thread)
+	public static class Actions {
+		@Param({"26", "com.android.settings", "torch", "tasker:Task", "shortcut:Call:intent"})
+		public String action;
+	}
+
+	/*
+	 * A named key, a key that falls back to KeyEvent.keyCodeToString() and a combo.
+	 * Kept in fields so that the calls are not folded into constants.
+	 */
+	public int namedKey = 24;
+	public int fallbackKey = 66;
+	public String comboKey = "25:26";
+
+	@Benchmark
+	public String actionType(Actions state) {
+		return Common.actionType(state.action);
+	}
+
+	@Benchmark
+	public String keyToStringNamed() {
+		return Common.keyToString(namedKey);
+	}
+
+	@Benchmark
+	public String keyToStringFallback() {
+		return Common.keyToString(fallbackKey);
+	}
+
+	@Benchmark
+	public String keyToStringCombo() {
+		return Common.keyToString(comboKey);
+	}
+}
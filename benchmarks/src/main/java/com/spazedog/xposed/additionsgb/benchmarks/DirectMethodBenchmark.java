@@ -0,0 +1,83 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.spazedog.lib.reflecttools.ReflectMethod;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.DirectMethods;
+
+/*
+ * The per-call cost of the reflection done on every key down, which is
+ * PhoneWindowManager.isWakeKeyWhenScreenOff() from fixPolicyFlags().
+ *
+ *  - direct:    A method bound once with DirectMethods.bind(), the way IMediatorSetup.bindDirect() does it
+ *  - stringMap: A ReflectMethod looked up by name in a map on each call, the way IMediatorSetup used to do it
+ *  - plain:     A regular call, for reference
+ *
+ * The ReflectMethod is the benchmark stub, which skips the member and receiver resolution of
+ * the real ReflectTools, so the string map numbers are a lower bound of what it used to cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DirectMethodBenchmark {
+
+	public static class FakePhoneWindowManager {
+		private boolean isWakeKeyWhenScreenOff(int keyCode) {
+			return keyCode == 24 || keyCode == 25 || keyCode == 26;
+		}
+	}
+
+	/*
+	 * Kept in a field so that the calls are not folded into constants
+	 */
+	public int keyCode = 24;
+
+	private FakePhoneWindowManager mReceiver;
+	private Method mWakeKeyMethod;
+	private Map<String, ReflectMethod> mMethods;
+
+	@Setup
+	public void setup() throws NoSuchMethodException {
+		Method method = FakePhoneWindowManager.class.getDeclaredMethod("isWakeKeyWhenScreenOff", Integer.TYPE);
+
+		mReceiver = new FakePhoneWindowManager();
+		mWakeKeyMethod = DirectMethods.bind(new ReflectMethod(method, mReceiver));
+
+		/*
+		 * About as many entries as the old map held
+		 */
+		mMethods = new HashMap<String, ReflectMethod>();
+
+		for (int i=0; i < 40; i++) {
+			mMethods.put("PhoneWindowManager.method" + i, new ReflectMethod());
+		}
+
+		mMethods.put("PhoneWindowManager.isWakeKeyWhenScreenOff", new ReflectMethod(method, mReceiver));
+	}
+
+	@Benchmark
+	public boolean direct() {
+		return (Boolean) DirectMethods.invoke(mWakeKeyMethod, mReceiver, keyCode);
+	}
+
+	@Benchmark
+	public boolean stringMap() {
+		return (Boolean) mMethods.get("PhoneWindowManager.isWakeKeyWhenScreenOff").invoke(keyCode);
+	}
+
+	@Benchmark
+	public boolean plain() {
+		return mReceiver.isWakeKeyWhenScreenOff(keyCode);
+	}
+}
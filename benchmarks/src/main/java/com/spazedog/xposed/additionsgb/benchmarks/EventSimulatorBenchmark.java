@@ -0,0 +1,77 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.EventSimulator;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/*
+ * Complete key events replayed through the EventSimulator, from registerKey() on the 
+ * calling thread to the action decision on the simulated dispatcher thread. 
+ * 
+ * The timeouts run on the virtual clock, so this measures the cost of the key handling 
+ * itself, including the hand-offs between the two threads, and none of the waiting. 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EventSimulatorBenchmark {
+
+	private EventSimulator mSimulator;
+
+	@Setup
+	public void setup() {
+		mSimulator = new EventSimulator(new FakeRemapSettings(32)
+				.setInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, 200)
+				.setInt(Settings.REMAP_TIMEOUT_LONGPRESS, 500)
+				.setInt(Settings.REMAP_REPEAT_DELAY, 60000)
+				.addKey("3:0", "com.android.settings"));
+
+		mSimulator.setRecording(false);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	/*
+	 * A key with only a click action, which fires on the key up without waiting
+	 */
+	@Benchmark
+	public void click() {
+		mSimulator.press(3, 50).advance(2000);
+	}
+
+	/*
+	 * A fully configured key, which waits on the tap timeout before the click fires
+	 */
+	@Benchmark
+	public void clickWithTapTimeout() {
+		mSimulator.press(24, 50).advance(2000);
+	}
+
+	@Benchmark
+	public void doubleClick() {
+		mSimulator.press(24, 50).advance(100).press(24, 50).advance(2000);
+	}
+
+	@Benchmark
+	public void longPress() {
+		mSimulator.press(24, 800).advance(2000);
+	}
+
+	@Benchmark
+	public void combo() {
+		mSimulator.down(25).advance(20).down(26).advance(50).up(26).up(25).advance(2000);
+	}
+}
@@ -0,0 +1,127 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IRemapSettings;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/*
+ * A map backed IRemapSettings with a remap configuration similar to a real one.
+ *
+ * Each key has the 'on', 'off' and 'guard' conditions along with a few application conditions,
+ * and every condition has a full set of actions. Every other key is a two key combo.
+ *
+ * An empty configuration can also be filled in key by key, to replay specific scenarios.
+ */
+public final class FakeRemapSettings implements IRemapSettings {
+
+	private static final String[] CONDITIONS = new String[]{"on", "off", "guard", "com.android.chrome", "com.google.android.apps.maps"};
+
+	private final Map<String, Object> mData = new HashMap<String, Object>();
+	private int mVersion = 1;
+
+	public FakeRemapSettings(int keyCount) {
+		ArrayList<String> keys = new ArrayList<String>();
+
+		for (int i=0; i < keyCount; i++) {
+			int primary = 24 + i;
+			String key = (i % 2) == 0 ? primary + ":0" : primary + ":26";
+
+			keys.add(key);
+
+			mData.put(Settings.REMAP_KEY_LIST_CONDITIONS + ":" + key, new ArrayList<String>(Arrays.asList(CONDITIONS)));
+			mData.put(Settings.REMAP_KEY_ENABLE_CALLBTN + ":" + key, (i % 3) == 0);
+			mData.put(Settings.REMAP_KEY_ENABLE_STRICT_ORDER + ":" + key, (i % 4) == 1);
+
+			for (String condition : CONDITIONS) {
+				mData.put(Settings.REMAP_KEY_LIST_ACTIONS.get(condition) + ":" + key, new ArrayList<String>(Arrays.asList(
+						"" + primary, "disabled", "com.android.settings", "tasker:Task " + i, "torch", "shortcut:Call:intent")));
+			}
+		}
+
+		mData.put(Settings.REMAP_LIST_KEYS, keys);
+	}
+
+	/**
+	 * An empty configuration, see addKey()
+	 */
+	public FakeRemapSettings() {
+		this(0);
+	}
+
+	/**
+	 * Add a key like '24:0', or a combo like '24:25', using the same actions for the 'on' and 'off' conditions.
+	 *
+	 * @param actions
+	 *     In config order: Click, Double Click, Long Press, Double Long Press, Triple Click, Triple Long Press.
+	 *     Use null for no action.
+	 */
+	@SuppressWarnings("unchecked")
+	public FakeRemapSettings addKey(String key, String... actions) {
+		((List<String>) mData.get(Settings.REMAP_LIST_KEYS)).add(key);
+
+		mData.put(Settings.REMAP_KEY_LIST_CONDITIONS + ":" + key, new ArrayList<String>(Arrays.asList("on", "off")));
+		mData.put(Settings.REMAP_KEY_LIST_ACTIONS.get("on") + ":" + key, new ArrayList<String>(Arrays.asList(actions)));
+		mData.put(Settings.REMAP_KEY_LIST_ACTIONS.get("off") + ":" + key, new ArrayList<String>(Arrays.asList(actions)));
+
+		touch();
+
+		return this;
+	}
+
+	public FakeRemapSettings setInt(String key, int value) {
+		mData.put(key, value);
+
+		touch();
+
+		return this;
+	}
+
+	/**
+	 * Pretend that the settings has changed, which makes the ActionTable rebuild
+	 */
+	public void touch() {
+		mVersion += 1;
+	}
+
+	@Override
+	public int getDataVersion() {
+		return mVersion;
+	}
+
+	@Override
+	public Integer getInt(String key, Integer defaultValue) {
+		Object value = mData.get(key);
+
+		return value != null ? (Integer) value : defaultValue;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public List<String> getStringArray(String key, ArrayList<String> defaultValue) {
+		Object value = mData.get(key);
+
+		return value != null ? (List<String>) value : defaultValue;
+	}
+
+	@Override
+	public List<String> getStringArrayGroup(String group, String key, ArrayList<String> defaultValue) {
+		return getStringArray(group + ":" + key, defaultValue);
+	}
+
+	@Override
+	public Boolean getBooleanGroup(String group, String key) {
+		Object value = mData.get(group + ":" + key);
+
+		return value != null && (Boolean) value;
+	}
+
+	@Override
+	public Boolean isPackageUnlocked() {
+		return true;
+	}
+}
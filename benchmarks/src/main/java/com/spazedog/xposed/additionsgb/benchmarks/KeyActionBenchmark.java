@@ -0,0 +1,68 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.EventSimulator;
+import com.spazedog.xposed.additionsgb.backend.pwm.KeyAction;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator;
+
+/*
+ * Parsing an action string into a KeyAction, which is done once when the ActionTable is built,
+ * against executing the parsed action, which is done each time the action fires.
+ * parseAndExecute is what each execution used to cost, when the string was parsed every time.
+ *
+ * The mediator is the benchmark stand-in, so the executions themselves do nothing
+ * and only the dispatch to them is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class KeyActionBenchmark {
+
+	/*
+	 * One of each action type, same as in CommonBenchmark
+	 */
+	@Param({"26", "com.android.settings", "torch", "tasker:Task", "shortcut:Call:intent"})
+	public String action;
+
+	private EventSimulator mSimulator;
+	private IEventMediator mMediator;
+	private KeyAction mAction;
+
+	@Setup
+	public void setup() {
+		mSimulator = new EventSimulator(new FakeRemapSettings());
+		mMediator = mSimulator.getManager();
+		mAction = KeyAction.parse(action);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Benchmark
+	public KeyAction parse() {
+		return KeyAction.parse(action);
+	}
+
+	@Benchmark
+	public void execute() {
+		mAction.execute(mMediator, 0L, 0);
+	}
+
+	@Benchmark
+	public void parseAndExecute() {
+		KeyAction.parse(action).execute(mMediator, 0L, 0);
+	}
+}
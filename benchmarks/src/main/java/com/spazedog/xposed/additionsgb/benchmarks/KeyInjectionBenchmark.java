@@ -0,0 +1,151 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.EventKey;
+import com.spazedog.xposed.additionsgb.backend.pwm.EventSimulator;
+import com.spazedog.xposed.additionsgb.backend.pwm.KeyInjectionBatch;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IKeyInjector;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/*
+ * Injected key events per second during repeat storms, that is EventKey.invoke() over and over
+ * on keys that are held down, the same as the KeyRepeater does.
+ *
+ * The real IEventMediator.injectInputEvents() needs the system input manager, so the injector
+ * here copies it's locking and leaves out the KeyEvent and the reflective call. With 'global'
+ * every event is injected under one lock, the way it was done under PhoneWindowManager.class,
+ * while 'striped' locks per key code like the real one. The parallel benchmarks repeat four
+ * held keys from four threads, one key each.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class KeyInjectionBenchmark {
+
+	private static final int[] KEYS = {24, 25, 26, 27};
+
+	@Param({"global", "striped"})
+	public String locking;
+
+	private static final class LockingInjector implements IKeyInjector {
+		private final Object[] mLocks;
+
+		/*
+		 * Guarded by the lock of the key code
+		 */
+		private final int[] mInjected = new int[KEYS.length];
+
+		private final ThreadLocal<KeyInjectionBatch> mBatch = new ThreadLocal<KeyInjectionBatch>() {
+			@Override
+			protected KeyInjectionBatch initialValue() {
+				return new KeyInjectionBatch();
+			}
+		};
+
+		LockingInjector(boolean striped) {
+			mLocks = new Object[striped ? 8 : 1];
+
+			for (int i=0; i < mLocks.length; i++) {
+				mLocks[i] = new Object();
+			}
+		}
+
+		@Override
+		public KeyInjectionBatch obtainInjectionBatch() {
+			KeyInjectionBatch batch = mBatch.get();
+			batch.clear();
+
+			return batch;
+		}
+
+		@Override
+		public void injectInputEvent(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState) {
+			injectInputEvents( obtainInjectionBatch().add(keyCode, action, downTime, repeatCount, flags, metaState) );
+		}
+
+		@Override
+		public void injectInputEvents(KeyInjectionBatch batch) {
+			int size = batch.size();
+			int i = 0;
+
+			while (i < size) {
+				int keyCode = batch.keyCodeAt(i);
+
+				synchronized(mLocks[keyCode & (mLocks.length - 1)]) {
+					do {
+						mInjected[keyCode & (KEYS.length - 1)] += batch.repeatCountAt(i) + batch.actionAt(i);
+
+						i += 1;
+
+					} while (i < size && batch.keyCodeAt(i) == keyCode);
+				}
+			}
+
+			batch.clear();
+		}
+	}
+
+	/*
+	 * The key repeated by each thread
+	 */
+	@State(Scope.Thread)
+	public static class ThreadKey {
+		private static final AtomicInteger sNext = new AtomicInteger();
+
+		EventKey mKey;
+
+		@Setup
+		public void setup(KeyInjectionBenchmark benchmark) {
+			mKey = benchmark.mSimulator.getManager().getKey(KEYS[sNext.getAndIncrement() % KEYS.length]);
+		}
+	}
+
+	private EventSimulator mSimulator;
+
+	/*
+	 * Every key is held down together, none of them configured, so they all stay in the event
+	 */
+	@Setup
+	public void setup() {
+		mSimulator = new EventSimulator(new FakeRemapSettings()
+				.setInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, 200)
+				.setInt(Settings.REMAP_TIMEOUT_LONGPRESS, 500)
+				.setInt(Settings.REMAP_REPEAT_DELAY, 60000), new LockingInjector("striped".equals(locking)));
+
+		mSimulator.setRecording(false);
+
+		for (int keyCode : KEYS) {
+			mSimulator.down(keyCode);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Benchmark
+	@Threads(1)
+	public void repeat(ThreadKey key) {
+		key.mKey.invoke();
+	}
+
+	@Benchmark
+	@Threads(4)
+	public void repeatParallel(ThreadKey key) {
+		key.mKey.invoke();
+	}
+}
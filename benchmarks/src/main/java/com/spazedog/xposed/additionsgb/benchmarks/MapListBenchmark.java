@@ -0,0 +1,92 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.spazedog.xposed.additionsgb.tools.IntMapList;
+import com.spazedog.xposed.additionsgb.tools.MapList;
+
+/*
+ * A key event in the EventManager adds up to a few keys, looks them up and clears them again.
+ * MapList is what the EventManager used to keep it's keys in, IntMapList is what it uses now.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MapListBenchmark {
+
+	private static final int[] CODES = new int[]{26, 25, 24};
+
+	private final Object mValue = new Object();
+
+	private MapList<Integer, Object> mMapList;
+	private IntMapList<Object> mIntMapList;
+
+	@Setup
+	public void setup() {
+		mMapList = new MapList<Integer, Object>();
+		mIntMapList = new IntMapList<Object>();
+	}
+
+	@Benchmark
+	public int mapListEvent() {
+		int found = 0;
+
+		for (int code : CODES) {
+			mMapList.put(code, mValue);
+		}
+
+		for (int code : CODES) {
+			if (mMapList.get(code) != null && mMapList.indexOf(code) >= 0) {
+				found += 1;
+			}
+		}
+
+		found += mMapList.getAt(0) != null ? 1 : 0;
+
+		mMapList.clear();
+
+		return found;
+	}
+
+	@Benchmark
+	public int intMapListEvent() {
+		int found = 0;
+
+		for (int code : CODES) {
+			mIntMapList.put(code, mValue);
+		}
+
+		for (int code : CODES) {
+			if (mIntMapList.get(code) != null && mIntMapList.indexOf(code) >= 0) {
+				found += 1;
+			}
+		}
+
+		found += mIntMapList.getAt(0) != null ? 1 : 0;
+
+		mIntMapList.clear();
+
+		return found;
+	}
+
+	@Benchmark
+	public String mapListJoinKeys() {
+		for (int code : CODES) {
+			mMapList.put(code, mValue);
+		}
+
+		String keys = mMapList.joinKeys(":");
+
+		mMapList.clear();
+
+		return keys;
+	}
+}
@@ -0,0 +1,101 @@
+package com.spazedog.xposed.additionsgb.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.spazedog.xposed.additionsgb.utils.SettingsHelper.SettingsData;
+
+/*
+ * Packing the settings into the preference format when they are saved, 
+ * and unpacking them again when the XService loads them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SettingsBenchmark {
+
+	/*
+	 * Number of remapped keys, each one adds a handful of lists to the settings
+	 */
+	@Param({"4", "32"})
+	public int keyCount;
+
+	private SettingsData mData;
+	private Map<String, ?> mPacked;
+	private Map<String, Object> mPackedV1;
+
+	@Setup
+	public void setup() {
+		mData = new SettingsData();
+
+		ArrayList<String> keys = new ArrayList<String>();
+
+		for (int i=0; i < keyCount; i++) {
+			String key = (24 + i) + ":0";
+
+			keys.add(key);
+
+			mData.put("remap_key_conditions:" + key, new ArrayList<String>(Arrays.asList("on", "off", "guard")), true);
+			mData.put("remap_call_button:" + key, (i % 2) == 0, true);
+
+			for (String condition : new String[]{"on", "off", "guard"}) {
+				mData.put("remap_key_actions:" + condition + ":" + key, new ArrayList<String>(Arrays.asList("" + (24 + i), "disabled", null, "torch", null, "com.android.settings")), true);
+			}
+		}
+
+		mData.put("remap_keys", keys, true);
+		mData.put("remap_press_delay", 500, true);
+		mData.put("remap_tap_delay", 100, true);
+		mData.put("enable_debug", false, true);
+		mData.put("usb_plug_action", "usb", true);
+
+		mPacked = mData.getPreferenceMap();
+
+		/*
+		 * Config files from <= 3.5.2 only stored strings, with lists as '#location:name'
+		 */
+		mPackedV1 = new HashMap<String, Object>();
+
+		for (String key : mData.keySet()) {
+			Object value = mData.get(key);
+
+			if (value instanceof ArrayList<?>) {
+				ArrayList<?> list = (ArrayList<?>) value;
+
+				for (int i=0; i < list.size(); i++) {
+					mPackedV1.put("#" + (i+1) + ":" + key, list.get(i) != null ? list.get(i).toString() : "@null");
+				}
+
+			} else {
+				mPackedV1.put(key, value != null ? value.toString() : "@null");
+			}
+		}
+	}
+
+	@Benchmark
+	public Map<String, ?> pack() {
+		return mData.getPreferenceMap();
+	}
+
+	@Benchmark
+	public SettingsData unpack() {
+		return new SettingsData(mPacked);
+	}
+
+	@Benchmark
+	public SettingsData unpackV1() {
+		return new SettingsData(mPackedV1);
+	}
+}
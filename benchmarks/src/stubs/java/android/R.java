@@ -0,0 +1,8 @@
+package android;
+
+public final class R {
+
+	public static final class id {
+		public static final int icon = 0x01020006;
+	}
+}
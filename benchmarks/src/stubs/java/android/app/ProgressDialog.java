@@ -0,0 +1,18 @@
+package android.app;
+
+import android.content.Context;
+
+public class ProgressDialog {
+	public static final int STYLE_HORIZONTAL = 1;
+
+	public ProgressDialog(Context context) { throw new UnsupportedOperationException(); }
+	public void setMessage(CharSequence message) {}
+	public void setProgressStyle(int style) {}
+	public void setCancelable(boolean flag) {}
+	public void setCanceledOnTouchOutside(boolean cancel) {}
+	public void setMax(int max) {}
+	public void setProgress(int value) {}
+	public void show() {}
+	public boolean isShowing() { return false; }
+	public void dismiss() {}
+}
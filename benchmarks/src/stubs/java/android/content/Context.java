@@ -0,0 +1,10 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+
+public abstract class Context {
+	public abstract PackageManager getPackageManager();
+	public abstract Resources getResources();
+	public abstract Context getApplicationContext();
+}
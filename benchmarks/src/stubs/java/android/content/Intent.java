@@ -0,0 +1,16 @@
+package android.content;
+
+import java.net.URISyntaxException;
+
+public class Intent {
+	public static final int URI_INTENT_SCHEME = 1;
+	public static final int FLAG_ACTIVITY_NEW_TASK = 0x10000000;
+	public static final int FLAG_ACTIVITY_CLEAR_TASK = 0x00008000;
+
+	public Intent() {}
+	public Intent(Intent intent) {}
+	public Intent(String action) {}
+
+	public static Intent parseUri(String uri, int flags) throws URISyntaxException { return new Intent(); }
+	public Intent setFlags(int flags) { return this; }
+}
@@ -0,0 +1,20 @@
+package android.content.pm;
+
+import java.util.List;
+
+import android.graphics.drawable.Drawable;
+
+public abstract class PackageManager {
+	public static final int GET_META_DATA = 128;
+	public static final String FEATURE_CAMERA_FLASH = "android.hardware.camera.flash";
+
+	public static class NameNotFoundException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+	public abstract ApplicationInfo getApplicationInfo(String packageName, int flags) throws NameNotFoundException;
+	public abstract CharSequence getApplicationLabel(ApplicationInfo info);
+	public abstract Drawable getApplicationIcon(ApplicationInfo info);
+	public abstract List<ApplicationInfo> getInstalledApplications(int flags);
+	public abstract boolean hasSystemFeature(String name);
+}
@@ -0,0 +1,6 @@
+package android.content.res;
+
+public class Resources {
+	public int getIdentifier(String name, String defType, String defPackage) { throw new UnsupportedOperationException(); }
+	public String getString(int id) { throw new UnsupportedOperationException(); }
+}
@@ -0,0 +1,10 @@
+package android.graphics;
+
+public final class Bitmap {
+
+	public enum Config { ARGB_8888 }
+
+	public static Bitmap createBitmap(int width, int height, Config config) { throw new UnsupportedOperationException(); }
+	public final int getRowBytes() { throw new UnsupportedOperationException(); }
+	public final int getHeight() { throw new UnsupportedOperationException(); }
+}
@@ -0,0 +1,7 @@
+package android.graphics;
+
+public class Canvas {
+	public Canvas(Bitmap bitmap) { throw new UnsupportedOperationException(); }
+	public int getWidth() { throw new UnsupportedOperationException(); }
+	public int getHeight() { throw new UnsupportedOperationException(); }
+}
@@ -0,0 +1,7 @@
+package android.graphics.drawable;
+
+import android.graphics.Bitmap;
+
+public abstract class BitmapDrawable extends Drawable {
+	public final Bitmap getBitmap() { throw new UnsupportedOperationException(); }
+}
@@ -0,0 +1,10 @@
+package android.graphics.drawable;
+
+import android.graphics.Canvas;
+
+public abstract class Drawable {
+	public int getIntrinsicWidth() { throw new UnsupportedOperationException(); }
+	public int getIntrinsicHeight() { throw new UnsupportedOperationException(); }
+	public void setBounds(int left, int top, int right, int bottom) { throw new UnsupportedOperationException(); }
+	public abstract void draw(Canvas canvas);
+}
@@ -0,0 +1,10 @@
+package android.hardware.input;
+
+public final class InputManager {
+
+	public static interface InputDeviceListener {
+		void onInputDeviceAdded(int deviceId);
+		void onInputDeviceRemoved(int deviceId);
+		void onInputDeviceChanged(int deviceId);
+	}
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+public abstract class AsyncTask<Params, Progress, Result> {
+	protected void onPreExecute() {}
+	protected abstract Result doInBackground(Params... params);
+	protected void onPostExecute(Result result) {}
+
+	public final AsyncTask<Params, Progress, Result> execute(Params... params) {
+		throw new UnsupportedOperationException();
+	}
+}
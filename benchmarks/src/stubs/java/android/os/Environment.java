@@ -0,0 +1,10 @@
+package android.os;
+
+import java.io.File;
+
+public class Environment {
+
+	public static File getDataDirectory() {
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+}
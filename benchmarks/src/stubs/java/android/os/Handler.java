@@ -0,0 +1,25 @@
+package android.os;
+
+public class Handler {
+	private final Looper mLooper;
+
+	public Handler(Looper looper) {
+		mLooper = looper;
+	}
+
+	public final boolean post(Runnable r) {
+		return mLooper.enqueue(this, r, SystemClock.uptimeMillis());
+	}
+
+	public final boolean postDelayed(Runnable r, long delayMillis) {
+		return mLooper.enqueue(this, r, SystemClock.uptimeMillis() + Math.max(0L, delayMillis));
+	}
+
+	public final boolean postAtTime(Runnable r, long uptimeMillis) {
+		return mLooper.enqueue(this, r, uptimeMillis);
+	}
+
+	public final void removeCallbacks(Runnable r) {
+		mLooper.remove(this, r);
+	}
+}
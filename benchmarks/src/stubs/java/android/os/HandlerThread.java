@@ -0,0 +1,52 @@
+package android.os;
+
+/*
+ * Daemon threads, so that a benchmark or test run is never kept alive by one
+ */
+public class HandlerThread extends Thread {
+	private Looper mLooper;
+
+	public HandlerThread(String name) {
+		super(name);
+		setDaemon(true);
+	}
+
+	public HandlerThread(String name, int priority) {
+		this(name);
+	}
+
+	@Override
+	public void run() {
+		Looper looper = new Looper();
+
+		synchronized (this) {
+			mLooper = looper;
+			notifyAll();
+		}
+
+		looper.loop();
+	}
+
+	public synchronized Looper getLooper() {
+		while (mLooper == null && isAlive()) {
+			try {
+				wait();
+
+			} catch (InterruptedException e) {
+				return null;
+			}
+		}
+
+		return mLooper;
+	}
+
+	public boolean quit() {
+		Looper looper = getLooper();
+
+		if (looper != null) {
+			looper.quit(); return true;
+		}
+
+		return false;
+	}
+}
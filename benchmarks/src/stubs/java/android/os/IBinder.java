@@ -0,0 +1,12 @@
+package android.os;
+
+public interface IBinder {
+
+	public static interface DeathRecipient {
+		void binderDied();
+	}
+
+	void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException;
+
+	boolean unlinkToDeath(DeathRecipient recipient, int flags);
+}
@@ -0,0 +1,141 @@
+package android.os;
+
+/*
+ * A minimal message loop, good enough for the HandlerThreads of the module.
+ *
+ * Like the real MessageQueue, messages are kept in a linked list sorted by their uptime
+ * (see SystemClock), and recycled through a pool. So posting a runnable does not allocate
+ * anything, which matters to the allocation tests.
+ */
+public final class Looper {
+
+	private static final class Message {
+		Handler mHandler;
+		Runnable mRunnable;
+		long mWhen;
+		Message mNext;
+	}
+
+	/*
+	 * Guarded by this
+	 */
+	private Message mMessages;
+	private Message mPool;
+	private boolean mQuit = false;
+
+	Looper() {}
+
+	synchronized boolean enqueue(Handler handler, Runnable runnable, long when) {
+		if (mQuit) {
+			return false;
+		}
+
+		Message message = mPool;
+
+		if (message != null) {
+			mPool = message.mNext;
+
+		} else {
+			message = new Message();
+		}
+
+		message.mHandler = handler;
+		message.mRunnable = runnable;
+		message.mWhen = when;
+
+		/*
+		 * Messages with the same time keep the order they were posted in
+		 */
+		if (mMessages == null || when < mMessages.mWhen) {
+			message.mNext = mMessages;
+			mMessages = message;
+
+		} else {
+			Message prev = mMessages;
+
+			while (prev.mNext != null && prev.mNext.mWhen <= when) {
+				prev = prev.mNext;
+			}
+
+			message.mNext = prev.mNext;
+			prev.mNext = message;
+		}
+
+		notifyAll();
+
+		return true;
+	}
+
+	synchronized void remove(Handler handler, Runnable runnable) {
+		Message prev = null;
+		Message message = mMessages;
+
+		while (message != null) {
+			Message next = message.mNext;
+
+			if (message.mHandler == handler && message.mRunnable == runnable) {
+				if (prev == null) {
+					mMessages = next;
+
+				} else {
+					prev.mNext = next;
+				}
+
+				recycle(message);
+
+			} else {
+				prev = message;
+			}
+
+			message = next;
+		}
+	}
+
+	private void recycle(Message message) {
+		message.mHandler = null;
+		message.mRunnable = null;
+		message.mNext = mPool;
+		mPool = message;
+	}
+
+	void loop() {
+		while (true) {
+			Runnable runnable;
+
+			synchronized (this) {
+				while (true) {
+					if (mQuit) {
+						return;
+					}
+
+					Message message = mMessages;
+
+					try {
+						if (message == null) {
+							wait();
+
+						} else if (message.mWhen > SystemClock.uptimeMillis()) {
+							wait(Math.max(1L, message.mWhen - SystemClock.uptimeMillis()));
+
+						} else {
+							mMessages = message.mNext;
+							runnable = message.mRunnable;
+							recycle(message); break;
+						}
+
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+
+			runnable.run();
+		}
+	}
+
+	public synchronized void quit() {
+		mQuit = true;
+		mMessages = null;
+		notifyAll();
+	}
+}
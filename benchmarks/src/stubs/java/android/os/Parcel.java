@@ -0,0 +1,16 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Not used by any benchmark, the settings classes only need it to compile
+ */
+public final class Parcel {
+	public void writeInt(int value) { throw new UnsupportedOperationException(); }
+	public void writeString(String value) { throw new UnsupportedOperationException(); }
+	public void writeList(List<?> value) { throw new UnsupportedOperationException(); }
+	public int readInt() { throw new UnsupportedOperationException(); }
+	public String readString() { throw new UnsupportedOperationException(); }
+	public ArrayList readArrayList(ClassLoader loader) { throw new UnsupportedOperationException(); }
+}
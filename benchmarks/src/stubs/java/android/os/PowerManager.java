@@ -0,0 +1,25 @@
+package android.os;
+
+public final class PowerManager {
+
+	/*
+	 * Only tracks whether it is held, the timeout is ignored
+	 */
+	public static final class WakeLock {
+		private boolean mHeld = false;
+
+		public synchronized void setReferenceCounted(boolean value) {}
+
+		public synchronized void acquire(long timeout) {
+			mHeld = true;
+		}
+
+		public synchronized void release() {
+			mHeld = false;
+		}
+
+		public synchronized boolean isHeld() {
+			return mHeld;
+		}
+	}
+}
@@ -0,0 +1,6 @@
+package android.os;
+
+public class Process {
+	public static final int THREAD_PRIORITY_FOREGROUND = -2;
+	public static final int THREAD_PRIORITY_DISPLAY = -4;
+}
@@ -0,0 +1,9 @@
+package android.support.v4.util;
+
+public class LruCache<K, V> {
+	public LruCache(int maxSize) { throw new UnsupportedOperationException(); }
+	protected int sizeOf(K key, V value) { return 1; }
+	public final V get(K key) { throw new UnsupportedOperationException(); }
+	public final V put(K key, V value) { throw new UnsupportedOperationException(); }
+	public final void evictAll() { throw new UnsupportedOperationException(); }
+}
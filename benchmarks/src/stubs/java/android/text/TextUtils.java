@@ -0,0 +1,20 @@
+package android.text;
+
+public class TextUtils {
+
+	public static String join(CharSequence delimiter, Iterable<?> tokens) {
+		StringBuilder builder = new StringBuilder();
+		boolean first = true;
+
+		for (Object token : tokens) {
+			if (!first) {
+				builder.append(delimiter);
+			}
+
+			builder.append(token);
+			first = false;
+		}
+
+		return builder.toString();
+	}
+}
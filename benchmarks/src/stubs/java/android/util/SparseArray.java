@@ -0,0 +1,51 @@
+package android.util;
+
+import java.util.Arrays;
+
+/*
+ * The same binary search over sorted keys as the Android version, without the delayed garbage collection
+ */
+public class SparseArray<E> {
+	private int[] mKeys = new int[10];
+	private Object[] mValues = new Object[10];
+	private int mSize = 0;
+
+	@SuppressWarnings("unchecked")
+	public E get(int key) {
+		int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+
+		return i < 0 ? null : (E) mValues[i];
+	}
+
+	public void put(int key, E value) {
+		int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+
+		if (i >= 0) {
+			mValues[i] = value;
+
+		} else {
+			i = ~i;
+
+			if (mSize == mKeys.length) {
+				mKeys = Arrays.copyOf(mKeys, mSize * 2);
+				mValues = Arrays.copyOf(mValues, mSize * 2);
+			}
+
+			System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+			System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+
+			mKeys[i] = key;
+			mValues[i] = value;
+			mSize += 1;
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void clear() {
+		Arrays.fill(mValues, 0, mSize, null);
+		mSize = 0;
+	}
+}
@@ -0,0 +1,48 @@
+package android.util;
+
+import java.util.Arrays;
+
+public class SparseBooleanArray {
+	private int[] mKeys = new int[10];
+	private boolean[] mValues = new boolean[10];
+	private int mSize = 0;
+
+	public int indexOfKey(int key) {
+		return Arrays.binarySearch(mKeys, 0, mSize, key);
+	}
+
+	public boolean valueAt(int index) {
+		return mValues[index];
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public void put(int key, boolean value) {
+		int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+
+		if (i >= 0) {
+			mValues[i] = value;
+
+		} else {
+			i = ~i;
+
+			if (mSize == mKeys.length) {
+				mKeys = Arrays.copyOf(mKeys, mSize * 2);
+				mValues = Arrays.copyOf(mValues, mSize * 2);
+			}
+
+			System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+			System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+
+			mKeys[i] = key;
+			mValues[i] = value;
+			mSize += 1;
+		}
+	}
+
+	public void clear() {
+		mSize = 0;
+	}
+}
@@ -0,0 +1,38 @@
+package android.util;
+
+import java.util.Arrays;
+
+public class SparseIntArray {
+	private int[] mKeys = new int[10];
+	private int[] mValues = new int[10];
+	private int mSize = 0;
+
+	public int get(int key) {
+		int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+
+		return i < 0 ? 0 : mValues[i];
+	}
+
+	public void put(int key, int value) {
+		int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+
+		if (i >= 0) {
+			mValues[i] = value;
+
+		} else {
+			i = ~i;
+
+			if (mSize == mKeys.length) {
+				mKeys = Arrays.copyOf(mKeys, mSize * 2);
+				mValues = Arrays.copyOf(mValues, mSize * 2);
+			}
+
+			System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+			System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+
+			mKeys[i] = key;
+			mValues[i] = value;
+			mSize += 1;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package android.view;
+
+/*
+ * Only the constants and methods used by the classes that the benchmarks reach
+ */
+public class KeyEvent {
+	public static final int ACTION_DOWN = 0;
+	public static final int ACTION_UP = 1;
+	public static final int ACTION_MULTIPLE = 2;
+
+	public static final int KEYCODE_HOME = 3;
+	public static final int KEYCODE_BACK = 4;
+	public static final int KEYCODE_CALL = 5;
+	public static final int KEYCODE_ENDCALL = 6;
+	public static final int KEYCODE_DPAD_UP = 19;
+	public static final int KEYCODE_DPAD_DOWN = 20;
+	public static final int KEYCODE_DPAD_LEFT = 21;
+	public static final int KEYCODE_DPAD_RIGHT = 22;
+	public static final int KEYCODE_DPAD_CENTER = 23;
+	public static final int KEYCODE_VOLUME_UP = 24;
+	public static final int KEYCODE_VOLUME_DOWN = 25;
+	public static final int KEYCODE_POWER = 26;
+	public static final int KEYCODE_CAMERA = 27;
+	public static final int KEYCODE_ENTER = 66;
+	public static final int KEYCODE_HEADSETHOOK = 79;
+	public static final int KEYCODE_FOCUS = 80;
+	public static final int KEYCODE_MENU = 82;
+	public static final int KEYCODE_NOTIFICATION = 83;
+	public static final int KEYCODE_SEARCH = 84;
+	public static final int KEYCODE_MEDIA_PLAY_PAUSE = 85;
+	public static final int KEYCODE_MEDIA_STOP = 86;
+	public static final int KEYCODE_MEDIA_NEXT = 87;
+	public static final int KEYCODE_MEDIA_PREVIOUS = 88;
+	public static final int KEYCODE_MEDIA_REWIND = 89;
+	public static final int KEYCODE_MEDIA_FAST_FORWARD = 90;
+	public static final int KEYCODE_MUTE = 91;
+	public static final int KEYCODE_PAGE_UP = 92;
+	public static final int KEYCODE_PAGE_DOWN = 93;
+	public static final int KEYCODE_BUTTON_START = 108;
+	public static final int KEYCODE_BUTTON_SELECT = 109;
+	public static final int KEYCODE_FUNCTION = 119;
+	public static final int KEYCODE_MOVE_HOME = 122;
+	public static final int KEYCODE_MEDIA_PLAY = 126;
+	public static final int KEYCODE_MEDIA_PAUSE = 127;
+	public static final int KEYCODE_MEDIA_RECORD = 130;
+	public static final int KEYCODE_VOLUME_MUTE = 164;
+	public static final int KEYCODE_ZOOM_IN = 168;
+	public static final int KEYCODE_ZOOM_OUT = 169;
+	public static final int KEYCODE_SETTINGS = 176;
+	public static final int KEYCODE_APP_SWITCH = 187;
+	public static final int KEYCODE_3D_MODE = 206;
+	public static final int KEYCODE_MUSIC = 209;
+	public static final int KEYCODE_ASSIST = 219;
+
+	/*
+	 * Android looks the name up in a table of every key code, 
+	 * and returns the number as a string when there is no name
+	 */
+	public static String keyCodeToString(int keyCode) {
+		switch (keyCode) {
+			case KEYCODE_ENTER: return "KEYCODE_ENTER";
+			case KEYCODE_MEDIA_PLAY_PAUSE: return "KEYCODE_MEDIA_PLAY_PAUSE";
+		}
+
+		return Integer.toString(keyCode);
+	}
+}
@@ -0,0 +1,7 @@
+package android.view;
+
+public class ViewConfiguration {
+	public static int getDoubleTapTimeout() { return 300; }
+	public static int getLongPressTimeout() { return 500; }
+	public static int getKeyRepeatDelay() { return 50; }
+}
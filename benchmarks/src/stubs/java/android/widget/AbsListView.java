@@ -0,0 +1,15 @@
+package android.widget;
+
+import android.view.View;
+
+public abstract class AbsListView extends View {
+
+	public interface OnScrollListener {
+		public void onScrollStateChanged(AbsListView view, int scrollState);
+		public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount);
+	}
+
+	public View getChildAt(int index) { throw new UnsupportedOperationException(); }
+	public int getCount() { throw new UnsupportedOperationException(); }
+	public void setOnScrollListener(OnScrollListener listener) { throw new UnsupportedOperationException(); }
+}
@@ -0,0 +1,3 @@
+package android.widget;
+
+public class ListView extends AbsListView {}
@@ -0,0 +1,7 @@
+package com.spazedog.lib.reflecttools;
+
+/*
+ * Stand-in for the reflecttools library. Nothing is ever reflected on a desktop JVM, 
+ * this only exists so that the module classes that pass it around compile. 
+ */
+public class ReflectClass {}
@@ -0,0 +1,50 @@
+package com.spazedog.lib.reflecttools;
+
+import java.lang.reflect.Method;
+
+import com.spazedog.lib.reflecttools.utils.ReflectException;
+
+/*
+ * A method that does nothing, used in place of the power manager methods.
+ * One made from a real method invokes it on the given receiver, with none of the
+ * member and receiver resolution of the real ReflectTools.
+ */
+public class ReflectMethod {
+
+	private final Method mMethod;
+	private final Object mReceiver;
+
+	public ReflectMethod() {
+		this(null, null);
+	}
+
+	public ReflectMethod(Method method, Object receiver) {
+		mMethod = method;
+		mReceiver = receiver;
+
+		if (method != null) {
+			method.setAccessible(true);
+		}
+	}
+
+	public Method getObject() {
+		return mMethod;
+	}
+
+	public Object invoke(Object... args) {
+		return invokeReceiver(mReceiver, args);
+	}
+
+	public Object invokeReceiver(Object receiver, Object... args) {
+		if (mMethod == null) {
+			return null;
+		}
+
+		try {
+			return mMethod.invoke(receiver, args);
+
+		} catch (Exception e) {
+			throw new ReflectException(e);
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package com.spazedog.lib.reflecttools.utils;
+
+public class ReflectException extends Error {
+	private static final long serialVersionUID = 1L;
+
+	public ReflectException(Throwable cause) {
+		super(cause);
+	}
+}
@@ -0,0 +1,36 @@
+package com.spazedog.xposed.additionsgb;
+
+/*
+ * Only the resource ids used by the classes that the benchmarks reach
+ */
+public final class R {
+
+	public static final class string {
+		public static final int remap_summary_disabled = 0x7f050000;
+		public static final int remap_summary_dismissguard = 0x7f050001;
+		public static final int remap_summary_flipleft = 0x7f050002;
+		public static final int remap_summary_flipright = 0x7f050003;
+		public static final int remap_summary_fliptoggle = 0x7f050004;
+		public static final int remap_summary_killapp = 0x7f050005;
+		public static final int remap_summary_powermenu = 0x7f050006;
+		public static final int remap_summary_previous_app = 0x7f050007;
+		public static final int remap_summary_recentapps = 0x7f050008;
+		public static final int remap_summary_screenshot = 0x7f050009;
+		public static final int remap_summary_torch = 0x7f05000a;
+		public static final int remap_title_disabled = 0x7f05000b;
+		public static final int remap_title_dismissguard = 0x7f05000c;
+		public static final int remap_title_flipleft = 0x7f05000d;
+		public static final int remap_title_flipright = 0x7f05000e;
+		public static final int remap_title_fliptoggle = 0x7f05000f;
+		public static final int remap_title_killapp = 0x7f050010;
+		public static final int remap_title_powermenu = 0x7f050011;
+		public static final int remap_title_previous_app = 0x7f050012;
+		public static final int remap_title_recentapps = 0x7f050013;
+		public static final int remap_title_screenshot = 0x7f050014;
+		public static final int remap_title_torch = 0x7f050015;
+		public static final int selector_alert_missing_torch = 0x7f050016;
+		public static final int selector_notice_camera_buttons = 0x7f050017;
+		public static final int selector_notice_media_buttons = 0x7f050018;
+		public static final int task_applocation_list = 0x7f050019;
+	}
+}
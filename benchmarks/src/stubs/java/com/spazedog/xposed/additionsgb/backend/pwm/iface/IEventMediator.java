@@ -0,0 +1,122 @@
+package com.spazedog.xposed.additionsgb.backend.pwm.iface;
+
+import android.content.Intent;
+import android.os.PowerManager;
+
+import com.spazedog.lib.reflecttools.ReflectClass;
+import com.spazedog.lib.reflecttools.ReflectMethod;
+import com.spazedog.xposed.additionsgb.backend.pwm.ActionExecutor;
+import com.spazedog.xposed.additionsgb.backend.pwm.KeyAction;
+import com.spazedog.xposed.additionsgb.backend.pwm.KeyInjectionBatch;
+import com.spazedog.xposed.additionsgb.backend.pwm.WakeManager;
+import com.spazedog.xposed.additionsgb.backend.service.XServiceManager;
+
+/*
+ * Stand-in for the real IEventMediator, which can only be created inside the system process.
+ *
+ * It has what the EventManager needs to run on a desktop JVM. Nothing is ever sent to a system:
+ * actions are handed to an ActionHandler instead of being executed, key injection does nothing
+ * (use an IKeyInjector of your own), and the keyguard and foreground application are plain values.
+ */
+public abstract class IEventMediator extends IMediatorSetup implements IKeyInjector {
+
+	public static enum ActionType { CLICK, PRESS }
+	public static enum StackAction { EXLUDE_HOME, INCLUDE_HOME, JUMP_HOME }
+
+	/**
+	 * Receives the actions that the real mediator would execute
+	 */
+	public static interface ActionHandler {
+		/**
+		 * @return
+		 *     False if the original key should be invoked instead, see IEventMediator.handleKeyAction()
+		 */
+		public boolean onKeyAction(KeyAction action, ActionType actionType, int tapCount, boolean isScreenOn, boolean invokeCallButton, long eventDownTime, int policyFlags);
+	}
+
+	protected final ActionExecutor mActionExecutor = new ActionExecutor();
+
+	protected final WakeManager mWakeManager = new WakeManager(new PowerManager.WakeLock(), 4, new ReflectMethod(), new ReflectMethod(), new ReflectMethod());
+
+	private final ThreadLocal<KeyInjectionBatch> mInjectionBatch = new ThreadLocal<KeyInjectionBatch>() {
+		@Override
+		protected KeyInjectionBatch initialValue() {
+			return new KeyInjectionBatch();
+		}
+	};
+
+	private volatile ActionHandler mActionHandler;
+	private volatile boolean mKeyguardShowing = false;
+	private volatile String mForegroundPackage = null;
+
+	protected IEventMediator(ReflectClass pwm, XServiceManager xServiceManager) {}
+
+	public void setActionHandler(ActionHandler handler) {
+		mActionHandler = handler;
+	}
+
+	public void setKeyguardShowing(boolean showing) {
+		mKeyguardShowing = showing;
+	}
+
+	public void setForegroundPackage(String packageName) {
+		mForegroundPackage = packageName;
+	}
+
+	public WakeManager getWakeManager() {
+		return mWakeManager;
+	}
+
+	public Boolean isKeyguardShowing() {
+		return mKeyguardShowing;
+	}
+
+	public String getPackageNameFromStack(Integer stack, StackAction action) {
+		return mForegroundPackage;
+	}
+
+	public int fixPolicyFlags(int keyCode, int policyFlags) {
+		return policyFlags;
+	}
+
+	/*
+	 * Same result as the real one, minus the display and call button handling
+	 */
+	public boolean handleKeyAction(KeyAction action, ActionType actionType, int tapCount, boolean isScreenOn, boolean invokeCallButton, long eventDownTime, int policyFlags) {
+		ActionHandler handler = mActionHandler;
+
+		if (handler != null) {
+			return handler.onKeyAction(action, actionType, tapCount, isScreenOn, invokeCallButton, eventDownTime, policyFlags);
+		}
+
+		return action != null;
+	}
+
+	@Override
+	public KeyInjectionBatch obtainInjectionBatch() {
+		KeyInjectionBatch batch = mInjectionBatch.get();
+		batch.clear();
+
+		return batch;
+	}
+
+	@Override
+	public void injectInputEvents(KeyInjectionBatch batch) {}
+
+	@Override
+	public void injectInputEvent(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState) {}
+
+	public void launchPackage(String packageName) {}
+	public void launchIntent(Intent intent) {}
+	public void sendBroadcast(Intent intent) {}
+	public void toggleFlashLight() {}
+	public void openGlobalActionsDialog() {}
+	public void openRecentAppsDialog() {}
+	public void takeScreenshot() {}
+	public int getNextRotation(boolean backwards) { return 0; }
+	public void freezeRotation(int orientation) {}
+	public void toggleRotationLock() {}
+	public void togglePreviousApplication() {}
+	public void killForegroundApplication() {}
+	public void keyGuardDismiss() {}
+}
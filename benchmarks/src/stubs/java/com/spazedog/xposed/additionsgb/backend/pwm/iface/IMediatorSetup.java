@@ -0,0 +1,14 @@
+package com.spazedog.xposed.additionsgb.backend.pwm.iface;
+
+/*
+ * Stand-in for the real IMediatorSetup, which sets up reflection into the system process.
+ * Only the SDK values used by the benchmarked code are kept, with the values of a current device.
+ */
+public abstract class IMediatorSetup {
+
+	public final String TAG = getClass().getName();
+
+	public static final class SDK {
+		public static final Integer VIEW_CONFIGURATION_VERSION = 2;
+	}
+}
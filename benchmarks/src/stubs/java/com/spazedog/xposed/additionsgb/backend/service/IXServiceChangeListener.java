@@ -0,0 +1,17 @@
+package com.spazedog.xposed.additionsgb.backend.service;
+
+import android.os.Bundle;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+import com.spazedog.xposed.additionsgb.utils.SettingsDelta;
+
+/*
+ * Stand-in for the interface generated from IXServiceChangeListener.aidl, without the Binder stub and proxy
+ */
+public interface IXServiceChangeListener extends IInterface {
+	void onSettingsChanged(int version) throws RemoteException;
+	void onSettingsDelta(SettingsDelta delta) throws RemoteException;
+	void onPackageChanged() throws RemoteException;
+	void onBroadcastReceive(String action, Bundle data) throws RemoteException;
+}
@@ -0,0 +1,59 @@
+package com.spazedog.xposed.additionsgb.backend.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IRemapSettings;
+
+/*
+ * Stand-in for the real XServiceManager, which needs a running XService.
+ * It acts like a ready service with default settings, so debug logging is off, just as on
+ * a normal device. Otherwise Common.debug() would build every log message in the benchmarks.
+ * Use an IRemapSettings of your own where the remap settings matter.
+ */
+public final class XServiceManager implements IRemapSettings {
+
+	private static final XServiceManager INSTANCE = new XServiceManager();
+
+	public static XServiceManager getInstance() {
+		return INSTANCE;
+	}
+
+	public boolean isServiceReady() {
+		return true;
+	}
+
+	public Boolean getBoolean(String name) {
+		return false;
+	}
+
+	@Override
+	public int getDataVersion() {
+		return 0;
+	}
+
+	@Override
+	public Integer getInt(String key, Integer defaultValue) {
+		return defaultValue;
+	}
+
+	@Override
+	public List<String> getStringArray(String key, ArrayList<String> defaultValue) {
+		return defaultValue;
+	}
+
+	@Override
+	public List<String> getStringArrayGroup(String group, String key, ArrayList<String> defaultValue) {
+		return defaultValue;
+	}
+
+	@Override
+	public Boolean getBooleanGroup(String group, String key) {
+		return false;
+	}
+
+	@Override
+	public Boolean isPackageUnlocked() {
+		return false;
+	}
+}
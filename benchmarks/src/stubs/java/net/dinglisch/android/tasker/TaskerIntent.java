@@ -0,0 +1,11 @@
+package net.dinglisch.android.tasker;
+
+import android.content.Intent;
+
+/*
+ * Stand-in for the Tasker library class, only created by KeyAction.Tasker when executed
+ */
+public class TaskerIntent extends Intent {
+
+	public TaskerIntent(String taskName) {}
+}
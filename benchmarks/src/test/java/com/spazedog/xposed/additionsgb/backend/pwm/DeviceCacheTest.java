@@ -0,0 +1,139 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/*
+ * Plugs devices in and out the way the InputManager reports it, and checks that a device id
+ * is validated again afterwards, like IEventMediator.validateDeviceType() does on the next key.
+ */
+public class DeviceCacheTest {
+
+	private static final int DATA_VERSION = 1;
+	private static final int DEVICE = 7;
+
+	private DeviceCache mCache;
+
+	@Before
+	public void setUp() {
+		mCache = new DeviceCache();
+		mCache.update(DATA_VERSION);
+	}
+
+	/*
+	 * Same as validateDeviceType(), with the validation result given
+	 */
+	private boolean validate(int deviceId, boolean validation) {
+		mCache.update(DATA_VERSION);
+
+		int index = mCache.indexOf(deviceId);
+
+		if (index >= 0) {
+			return mCache.isValidAt(index);
+		}
+
+		mCache.put(deviceId, validation);
+
+		return validation;
+	}
+
+	@Test
+	public void validationIsCached() {
+		assertFalse(validate(DEVICE, false));
+		assertFalse(validate(DEVICE, true));
+		assertFalse(mCache.update(DATA_VERSION));
+	}
+
+	/*
+	 * A keyboard is unplugged, and a remote that is allowed gets the same id
+	 */
+	@Test
+	public void reusedDeviceIdIsValidatedAgain() {
+		assertFalse(validate(DEVICE, false));
+
+		mCache.onInputDeviceRemoved(DEVICE);
+		mCache.onInputDeviceAdded(DEVICE);
+
+		assertTrue(validate(DEVICE, true));
+	}
+
+	@Test
+	public void changedDeviceIsValidatedAgain() {
+		assertFalse(validate(DEVICE, false));
+
+		mCache.onInputDeviceChanged(DEVICE);
+
+		assertTrue(validate(DEVICE, true));
+	}
+
+	/*
+	 * Any device change drops every validation, not only the one of that device
+	 */
+	@Test
+	public void otherDevicesAreValidatedAgain() {
+		assertFalse(validate(DEVICE, false));
+
+		mCache.onInputDeviceAdded(DEVICE + 1);
+
+		assertTrue(validate(DEVICE, true));
+	}
+
+	@Test
+	public void changedPreferencesDropTheCache() {
+		assertFalse(validate(DEVICE, false));
+		assertTrue(mCache.update(DATA_VERSION + 1));
+		assertTrue(mCache.indexOf(DEVICE) < 0);
+	}
+
+	/*
+	 * A device that changes while it is being validated must not keep the old result
+	 */
+	@Test
+	public void changeDuringValidationIsNotLost() {
+		mCache.update(DATA_VERSION);
+		mCache.onInputDeviceAdded(DEVICE);
+		mCache.put(DEVICE, false);
+
+		assertTrue(validate(DEVICE, true));
+	}
+
+	/*
+	 * The listener runs on the handler thread given to the InputManager
+	 */
+	@Test
+	public void hotPlugOnTheHandlerThread() throws InterruptedException {
+		HandlerThread thread = new HandlerThread("DeviceCacheTest");
+		thread.start();
+
+		try {
+			Handler handler = new Handler(thread.getLooper());
+			final CountDownLatch plugged = new CountDownLatch(1);
+
+			assertFalse(validate(DEVICE, false));
+
+			handler.post(new Runnable() {
+				@Override
+				public void run() {
+					mCache.onInputDeviceRemoved(DEVICE);
+					mCache.onInputDeviceAdded(DEVICE);
+					plugged.countDown();
+				}
+			});
+
+			assertTrue(plugged.await(5, TimeUnit.SECONDS));
+			assertTrue(validate(DEVICE, true));
+
+		} finally {
+			thread.quit();
+		}
+	}
+}
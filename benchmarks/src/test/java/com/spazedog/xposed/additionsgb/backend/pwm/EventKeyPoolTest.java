@@ -0,0 +1,104 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EventKeyPoolTest {
+
+	private final EventKeyPool mPool = new EventKeyPool(null);
+
+	@Test
+	public void releasedKeysAreReused() {
+		EventKey key = mPool.acquire();
+
+		mPool.release(key, 0L);
+
+		for (int i=1; i < EventKeyPool.CAPACITY; i++) {
+			mPool.acquire();
+		}
+
+		assertSame(key, mPool.acquire());
+	}
+
+	@Test
+	public void heldKeyIsKeptAsideUntilUnheld() {
+		EventKey key = mPool.acquire();
+
+		key.hold();
+		mPool.release(key, 0L);
+
+		assertEquals(EventKeyPool.CAPACITY - 1, mPool.getAvailable());
+		assertEquals(1, mPool.getPending());
+
+		key.unhold();
+
+		/*
+		 * Picked up the next time the pool is used
+		 */
+		mPool.release(mPool.acquire(), 0L);
+
+		assertEquals(EventKeyPool.CAPACITY, mPool.getAvailable());
+		assertEquals(0, mPool.getPending());
+	}
+
+	@Test
+	public void heldKeyIsNeverHandedOut() {
+		EventKey held = mPool.acquire();
+
+		held.hold();
+		mPool.release(held, 0L);
+
+		for (int i=1; i < EventKeyPool.CAPACITY; i++) {
+			assertFalse(held == mPool.acquire());
+		}
+
+		/*
+		 * The pool is empty, and the only pending key is still held
+		 */
+		assertFalse(held == mPool.acquire());
+	}
+
+	@Test
+	public void emptyPoolReclaimsInsteadOfAllocating() {
+		EventKey held = mPool.acquire();
+
+		held.hold();
+		mPool.release(held, 0L);
+
+		for (int i=1; i < EventKeyPool.CAPACITY; i++) {
+			mPool.acquire();
+		}
+
+		held.unhold();
+
+		assertSame(held, mPool.acquire());
+	}
+
+	@Test
+	public void keyHeldPastTheTimeoutIsALeak() {
+		EventKey key = mPool.acquire();
+
+		key.hold();
+		mPool.release(key, 1000L);
+
+		assertFalse(mPool.checkLeaks(1000L + EventKeyPool.LEAK_TIMEOUT));
+		assertTrue(mPool.checkLeaks(1001L + EventKeyPool.LEAK_TIMEOUT));
+
+		key.unhold();
+
+		assertFalse(mPool.checkLeaks(2000L + EventKeyPool.LEAK_TIMEOUT));
+	}
+
+	@Test
+	public void keysInUseAreNotALeak() {
+		for (int i=0; i < EventKeyPool.CAPACITY; i++) {
+			mPool.acquire();
+		}
+
+		assertFalse(mPool.checkLeaks(Long.MAX_VALUE / 2));
+	}
+}
@@ -0,0 +1,154 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.spazedog.xposed.additionsgb.benchmarks.FakeRemapSettings;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/*
+ * Tap timeout is 200ms and long press timeout is 500ms in all of these.
+ * Key repeats are pushed far out, so that the KeyRepeater never fires on the real clock.
+ */
+public class EventSimulatorTest {
+
+	private static final int VOLUME_UP = 24;
+	private static final int VOLUME_DOWN = 25;
+	private static final int CAMERA = 27;
+	private static final int UNMAPPED = 30;
+
+	private EventSimulator mSimulator;
+
+	private static FakeRemapSettings settings() {
+		return new FakeRemapSettings()
+			.setInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, 200)
+			.setInt(Settings.REMAP_TIMEOUT_LONGPRESS, 500)
+			.setInt(Settings.REMAP_REPEAT_DELAY, 60000)
+			.addKey("24:0", "com.click")
+			.addKey("25:0", "com.click", "com.double", "com.press")
+			.addKey("27:0", null, null, "com.press")
+			.addKey("24:25", "com.combo");
+	}
+
+	private static List<String> expect(String... lines) {
+		return Arrays.asList(lines);
+	}
+
+	@Before
+	public void setUp() {
+		mSimulator = new EventSimulator(settings());
+	}
+
+	@After
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Test
+	public void clickWithoutMoreActionsFiresOnKeyUp() {
+		mSimulator.press(VOLUME_UP, 50).advance(1000);
+
+		assertEquals(expect("50 action CLICK 0 com.click"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void clickWaitsForTheTapTimeout() {
+		mSimulator.press(VOLUME_DOWN, 50).advance(1000);
+
+		assertEquals(expect("250 action CLICK 0 com.click"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void doubleClick() {
+		mSimulator.press(VOLUME_DOWN, 50).advance(100).press(VOLUME_DOWN, 50).advance(1000);
+
+		assertEquals(expect("200 action CLICK 1 com.double"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void secondTapAfterTheTimeoutIsANewEvent() {
+		mSimulator.press(VOLUME_DOWN, 50).advance(250).press(VOLUME_DOWN, 50).advance(1000);
+
+		assertEquals(expect("250 action CLICK 0 com.click", "550 action CLICK 0 com.click"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void longPress() {
+		mSimulator.press(VOLUME_DOWN, 800).advance(1000);
+
+		assertEquals(expect("500 action PRESS 0 com.press"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void releasedJustBeforeTheLongPressTimeoutIsAClick() {
+		mSimulator.press(VOLUME_DOWN, 499).advance(1000);
+
+		assertEquals(expect("699 action CLICK 0 com.click"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void defaultLongPressParsesTheOriginalKeyOn() {
+		mSimulator.press(VOLUME_UP, 800).advance(1000);
+
+		assertEquals(expect("500 inject 24 down 0", "500 dispatch 24", "800 inject 24 up 0"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void keyWithoutClickActionIsInjected() {
+		mSimulator.press(CAMERA, 50).advance(1000);
+
+		assertEquals(expect("50 inject 27 down 0", "50 inject 27 up 0"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void unmappedKeyIsInjected() {
+		mSimulator.press(UNMAPPED, 50).advance(1000);
+
+		assertEquals(expect("50 inject 30 down 0", "50 inject 30 up 0"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void comboMatchesInBothOrders() {
+		mSimulator.down(VOLUME_UP).advance(20).down(VOLUME_DOWN).advance(50).up(VOLUME_DOWN).up(VOLUME_UP).advance(1000);
+		mSimulator.down(VOLUME_DOWN).advance(20).down(VOLUME_UP).advance(50).up(VOLUME_UP).up(VOLUME_DOWN).advance(1000);
+
+		assertEquals(expect("70 action CLICK 0 com.combo", "1140 action CLICK 0 com.combo"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void eventWakeLockIsReleasedWhenTheEventEnds() {
+		mSimulator.setScreenOn(false);
+		mSimulator.down(VOLUME_DOWN);
+
+		WakeManager wakeManager = mSimulator.getManager().getWakeManager();
+
+		mSimulator.advance(50).up(VOLUME_DOWN).advance(1000);
+
+		assertEquals(expect("250 action CLICK 0 com.click"), mSimulator.takeOutput());
+		assertFalse(wakeManager.isHeld(WakeManager.HOLDER_EVENT));
+	}
+
+	@Test
+	public void replayIsDeterministic() {
+		EventSimulator other = new EventSimulator(settings());
+
+		try {
+			for (EventSimulator simulator : new EventSimulator[]{mSimulator, other}) {
+				simulator.press(VOLUME_DOWN, 50).advance(120).press(VOLUME_DOWN, 700).advance(300)
+					.press(VOLUME_UP, 30).advance(10).press(CAMERA, 600).advance(1000);
+			}
+
+			assertEquals(mSimulator.takeOutput(), other.takeOutput());
+
+		} finally {
+			other.close();
+		}
+	}
+}
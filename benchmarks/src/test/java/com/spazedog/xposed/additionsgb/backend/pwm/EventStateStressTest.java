@@ -0,0 +1,249 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventClock;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator.ActionHandler;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator.ActionType;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IKeyInjector;
+import com.spazedog.xposed.additionsgb.benchmarks.FakeRemapSettings;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/*
+ * Registers keys from one thread as fast as it can, while several dispatcher threads
+ * race each other for the same events on the real clock.
+ *
+ * Every action is named after the key, type and tap count it is configured for,
+ * so an action that was handed to the mediator along with the tap count of another event,
+ * or while dispatching another key, does not match what the dispatching thread expects.
+ *
+ * The keys with nothing but a click action invoke it as soon as the key up is dispatched,
+ * which is where a new event is most likely to be registered while the dispatcher claims the old one.
+ * The last key has every action, and waits on both timeouts.
+ */
+public class EventStateStressTest {
+
+	private static final int[] KEYS = {24, 25, 26};
+	private static final int FULL_KEY = 26;
+	private static final int EVENTS = 50000;
+	private static final int DISPATCHERS = 3;
+
+	/*
+	 * Short enough that a fair share of the waits expire while the keys are still coming in
+	 */
+	private static final int TAP_TIMEOUT = 2;
+	private static final int PRESS_TIMEOUT = 4;
+
+	private static final IKeyInjector INJECTOR = new IKeyInjector() {
+		private final ThreadLocal<KeyInjectionBatch> mBatch = new ThreadLocal<KeyInjectionBatch>() {
+			@Override
+			protected KeyInjectionBatch initialValue() {
+				return new KeyInjectionBatch();
+			}
+		};
+
+		@Override
+		public KeyInjectionBatch obtainInjectionBatch() {
+			KeyInjectionBatch batch = mBatch.get();
+			batch.clear();
+
+			return batch;
+		}
+
+		@Override
+		public void injectInputEvents(KeyInjectionBatch batch) {}
+
+		@Override
+		public void injectInputEvent(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState) {}
+	};
+
+	private static final class Dispatch {
+		final int mKeyCode;
+		final boolean mDown;
+
+		Dispatch(int keyCode, boolean down) {
+			mKeyCode = keyCode;
+			mDown = down;
+		}
+	}
+
+	private static final Dispatch STOP = new Dispatch(0, false);
+
+	/*
+	 * The key that each dispatcher thread is currently working on
+	 */
+	private final ThreadLocal<int[]> mDispatching = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	private final AtomicInteger mActions = new AtomicInteger();
+	private final AtomicReference<String> mFailure = new AtomicReference<String>();
+
+	private final ActionHandler mHandler = new ActionHandler() {
+		@Override
+		public boolean onKeyAction(KeyAction action, ActionType actionType, int tapCount, boolean isScreenOn, boolean invokeCallButton, long eventDownTime, int policyFlags) {
+			String expected = expectedAction(mDispatching.get()[0], actionType, tapCount);
+			String actual = action != null ? action.toString() : null;
+
+			if (expected == null ? actual != null : !expected.equals(actual)) {
+				mFailure.compareAndSet(null, "Dispatching key " + mDispatching.get()[0] + " got " + actionType.name() + " action '" + actual + "' with tap count " + tapCount);
+			}
+
+			if (action != null) {
+				mActions.incrementAndGet();
+			}
+
+			return action != null;
+		}
+	};
+
+	private final LinkedBlockingQueue<Dispatch> mQueue = new LinkedBlockingQueue<Dispatch>();
+	private EventManager mManager;
+
+	private static String expectedAction(int keyCode, ActionType type, int tapCount) {
+		if (keyCode != FULL_KEY && (type != ActionType.CLICK || tapCount > 0)) {
+			return null;
+		}
+
+		return tapCount > 2 ? null : (type == ActionType.PRESS ? "press" : "click") + keyCode + "." + tapCount;
+	}
+
+	@Before
+	public void setUp() {
+		FakeRemapSettings settings = new FakeRemapSettings()
+			.setInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, TAP_TIMEOUT)
+			.setInt(Settings.REMAP_TIMEOUT_LONGPRESS, PRESS_TIMEOUT)
+			.setInt(Settings.REMAP_REPEAT_DELAY, 60000);
+
+		for (int keyCode : KEYS) {
+			settings.addKey(keyCode + ":0",
+					expectedAction(keyCode, ActionType.CLICK, 0), expectedAction(keyCode, ActionType.CLICK, 1),
+					expectedAction(keyCode, ActionType.PRESS, 0), expectedAction(keyCode, ActionType.PRESS, 1),
+					expectedAction(keyCode, ActionType.CLICK, 2), expectedAction(keyCode, ActionType.PRESS, 2));
+		}
+
+		mManager = new EventManager(null, null, IEventClock.SYSTEM, settings, INJECTOR);
+		mManager.setActionHandler(mHandler);
+	}
+
+	@After
+	public void tearDown() {
+		mManager.setActionHandler(null);
+	}
+
+	/*
+	 * Same as the dispatching hook does with a key that is not injected
+	 */
+	private void dispatch(Dispatch dispatch) {
+		EventKey key = mManager.holdKey(dispatch.mKeyCode);
+		int stateWord = mManager.getStateWord();
+
+		try {
+			if (key != null) {
+				mDispatching.get()[0] = dispatch.mKeyCode;
+				mManager.dispatchKey(key, stateWord, dispatch.mDown, System.nanoTime());
+			}
+
+		} finally {
+			mManager.unholdKey(key);
+		}
+	}
+
+	/*
+	 * Does not return before a dispatcher has taken the key, so that the next
+	 * key is registered while the dispatchers are working on this one
+	 */
+	private void queue(int keyCode, boolean down, long downTime) {
+		long now = IEventClock.SYSTEM.uptimeMillis();
+
+		mManager.registerKey(keyCode, down, true, 0, 0, 0, down ? now : downTime, now);
+		mQueue.add(new Dispatch(keyCode, down));
+
+		while (!mQueue.isEmpty()) {
+			Thread.yield();
+		}
+	}
+
+	@Test
+	public void actionsNeverMixTwoEvents() throws InterruptedException {
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> dispatchers = new ArrayList<Thread>();
+
+		for (int i=0; i < DISPATCHERS; i++) {
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Dispatch dispatch;
+
+						while ((dispatch = mQueue.take()) != STOP) {
+							dispatch(dispatch);
+						}
+
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			}, "Dispatcher " + i);
+
+			thread.start();
+			dispatchers.add(thread);
+		}
+
+		/*
+		 * Quick clicks on random keys, now and then a long press or a pause
+		 * long enough for the tap timeout to expire
+		 */
+		Random random = new Random(42);
+
+		for (int i=0; i < EVENTS; i++) {
+			int roll = random.nextInt(256);
+			int keyCode = KEYS[random.nextInt(KEYS.length)];
+			long downTime = IEventClock.SYSTEM.uptimeMillis();
+
+			queue(keyCode, true, downTime);
+
+			if (roll == 0) {
+				Thread.sleep(PRESS_TIMEOUT + 1);
+			}
+
+			queue(keyCode, false, downTime);
+
+			if (roll == 1) {
+				Thread.sleep(TAP_TIMEOUT + 1);
+			}
+		}
+
+		for (int i=0; i < DISPATCHERS; i++) {
+			mQueue.add(STOP);
+		}
+
+		for (Thread thread : dispatchers) {
+			thread.join(TimeUnit.SECONDS.toMillis(30));
+
+			assertTrue("Dispatcher did not finish", !thread.isAlive());
+		}
+
+		assertEquals(new ArrayList<Throwable>(), errors);
+		assertEquals(null, mFailure.get());
+		assertTrue("No actions were invoked", mActions.get() > 0);
+	}
+}
@@ -0,0 +1,165 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventClock;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator.ActionHandler;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator.ActionType;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IKeyInjector;
+import com.spazedog.xposed.additionsgb.benchmarks.FakeRemapSettings;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/*
+ * Counts the bytes allocated by the queueing and dispatching paths once they are warmed up,
+ * which should be none at all. Anything boxed, any varargs array or log message built on the
+ * key path shows up here.
+ *
+ * Both halves run on the test thread, with a clock that lets every timeout expire right away,
+ * so that the allocation counter of a single thread sees everything.
+ */
+public class KeyPathAllocationTest {
+
+	private static final int WARMUP = 50000;
+	private static final int ITERATIONS = 10000;
+
+	private static final class InstantClock implements IEventClock {
+		long mNow = 100000L;
+
+		@Override
+		public long uptimeMillis() {
+			return mNow;
+		}
+
+		@Override
+		public void waitOn(Object lock, long timeout) {
+			mNow += timeout;
+		}
+	}
+
+	private static final IKeyInjector INJECTOR = new IKeyInjector() {
+		private final KeyInjectionBatch mBatch = new KeyInjectionBatch();
+
+		@Override
+		public KeyInjectionBatch obtainInjectionBatch() {
+			mBatch.clear();
+
+			return mBatch;
+		}
+
+		@Override
+		public void injectInputEvents(KeyInjectionBatch batch) {}
+
+		@Override
+		public void injectInputEvent(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState) {}
+	};
+
+	private static final ActionHandler HANDLER = new ActionHandler() {
+		@Override
+		public boolean onKeyAction(KeyAction action, ActionType actionType, int tapCount, boolean isScreenOn, boolean invokeCallButton, long eventDownTime, int policyFlags) {
+			return action != null;
+		}
+	};
+
+	private final InstantClock mClock = new InstantClock();
+	private EventManager mManager;
+
+	@Before
+	public void setUp() {
+		mManager = new EventManager(null, null, mClock, new FakeRemapSettings(8)
+				.setInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, 200)
+				.setInt(Settings.REMAP_TIMEOUT_LONGPRESS, 500), INJECTOR);
+
+		mManager.setActionHandler(HANDLER);
+		mManager.setForegroundPackage("com.android.chrome");
+	}
+
+	@After
+	public void tearDown() {
+		mManager.setActionHandler(null);
+	}
+
+	private void queue(int keyCode, boolean down) {
+		mClock.mNow += 20;
+		mManager.registerKey(keyCode, down, true, 0, 0, 0, mClock.mNow, mClock.mNow);
+	}
+
+	private void dispatch(int keyCode, boolean down) {
+		EventKey key = mManager.holdKey(keyCode);
+		int stateWord = mManager.getStateWord();
+
+		try {
+			if (key != null) {
+				mManager.dispatchKey(key, stateWord, down, System.nanoTime());
+			}
+
+		} finally {
+			mManager.unholdKey(key);
+		}
+	}
+
+	/*
+	 * A click that waits on the tap timeout, a long press, a two key combo whose first key has
+	 * already started it's default long press and repeats, and a click on a key that is not
+	 * configured, which is injected back. The time between events keeps them from being
+	 * taken for taps, and every few rounds a longer pause recycles the keys.
+	 */
+	private void events(int round) {
+		queue(24, true); queue(24, false);
+		dispatch(24, true); dispatch(24, false);
+
+		queue(26, true); dispatch(26, true);
+		queue(26, false); dispatch(26, false);
+
+		queue(25, true); dispatch(25, true);
+		queue(26, true); dispatch(26, true);
+		queue(26, false); queue(25, false);
+		dispatch(26, false); dispatch(25, false);
+
+		queue(50, true); queue(50, false);
+		dispatch(50, true); dispatch(50, false);
+
+		mClock.mNow += (round % 8) == 0 ? 2000 : 1000;
+	}
+
+	@Test
+	public void steadyStateKeyEventsDoNotAllocate() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+		Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threads;
+
+		Assume.assumeTrue(bean.isThreadAllocatedMemorySupported());
+
+		bean.setThreadAllocatedMemoryEnabled(true);
+
+		long threadId = Thread.currentThread().getId();
+
+		for (int i=0; i < WARMUP; i++) {
+			events(i);
+		}
+
+		/*
+		 * Whatever reading the counter costs by itself
+		 */
+		long start = bean.getThreadAllocatedBytes(threadId);
+		long overhead = bean.getThreadAllocatedBytes(threadId) - start;
+
+		start = bean.getThreadAllocatedBytes(threadId);
+
+		for (int i=0; i < ITERATIONS; i++) {
+			events(i);
+		}
+
+		long allocated = bean.getThreadAllocatedBytes(threadId) - start - overhead;
+
+		assertEquals("Bytes allocated by " + ITERATIONS + " rounds of key events", 0L, allocated);
+	}
+}
@@ -0,0 +1,89 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.spazedog.xposed.additionsgb.benchmarks.FakeRemapSettings;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/*
+ * The dispatcher should sleep through a timeout in a single wait, and wake up 
+ * right at the deadline or at the next key, whichever comes first. 
+ * Polling would show up as more than one wait per timeout. 
+ */
+public class WaitForChangeTest {
+
+	private EventSimulator mSimulator;
+
+	@Before
+	public void setUp() {
+		mSimulator = new EventSimulator(new FakeRemapSettings()
+				.setInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, 200)
+				.setInt(Settings.REMAP_TIMEOUT_LONGPRESS, 500)
+				.setInt(Settings.REMAP_REPEAT_DELAY, 60000)
+				.addKey("24:0", "com.click")
+				.addKey("25:0", "com.click", "com.double", "com.press"));
+	}
+
+	@After
+	public void tearDown() {
+		mSimulator.close();
+	}
+
+	@Test
+	public void longPressTimeoutIsASingleWait() {
+		mSimulator.press(25, 800).advance(1000);
+
+		assertEquals(1, mSimulator.getWaitCount());
+	}
+
+	@Test
+	public void tapTimeoutIsASingleWait() {
+		mSimulator.press(25, 50).advance(1000);
+
+		/*
+		 * The long press wait ended by the key up, and the tap wait ended by the timeout
+		 */
+		assertEquals(2, mSimulator.getWaitCount());
+	}
+
+	@Test
+	public void longPressFiresAtTheDeadline() {
+		mSimulator.down(25).advance(499);
+
+		assertEquals(Collections.<String>emptyList(), mSimulator.takeOutput());
+
+		mSimulator.advance(1);
+
+		assertEquals(Arrays.asList("500 action PRESS 0 com.press"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void tapFiresAtTheDeadline() {
+		mSimulator.press(25, 50).advance(199);
+
+		assertEquals(Collections.<String>emptyList(), mSimulator.takeOutput());
+
+		mSimulator.advance(1);
+
+		assertEquals(Arrays.asList("250 action CLICK 0 com.click"), mSimulator.takeOutput());
+	}
+
+	@Test
+	public void keyUpWakesTheWaiterRightAway() {
+		mSimulator.down(24).advance(100);
+
+		assertEquals(1, mSimulator.getWaitCount());
+
+		mSimulator.up(24);
+
+		assertEquals(Arrays.asList("100 action CLICK 0 com.click"), mSimulator.takeOutput());
+		assertEquals(1, mSimulator.getWaitCount());
+	}
+}
@@ -0,0 +1,224 @@
+package com.spazedog.xposed.additionsgb.backend.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.spazedog.xposed.additionsgb.utils.SettingsDelta;
+import com.spazedog.xposed.additionsgb.utils.SettingsSnapshot;
+
+public class SettingsCacheTest {
+
+	private static final int WRITES = 20000;
+	private static final int READERS = 3;
+	private static final int DEFAULT_KEYS = 16;
+
+	private SettingsCache mCache;
+
+	@Before
+	public void setUp() {
+		mCache = new SettingsCache();
+	}
+
+	private static SettingsDelta delta(int version, String key, Object value) {
+		SettingsDelta delta = new SettingsDelta();
+		delta.put(key, value);
+		delta.setVersion(version);
+
+		return delta;
+	}
+
+	@Test
+	public void deltaIsAppliedOnTopOfSnapshot() {
+		assertTrue(mCache.apply(delta(1, "a", 1)));
+		assertTrue(mCache.apply(delta(2, "b", 2)));
+
+		SettingsSnapshot snapshot = mCache.getSnapshot();
+
+		assertEquals(2, mCache.getVersion());
+		assertEquals(1, snapshot.get("a"));
+		assertEquals(2, snapshot.get("b"));
+	}
+
+	@Test
+	public void deltaThatSkipsAVersionIsNotApplied() {
+		assertTrue(mCache.apply(delta(1, "a", 1)));
+		assertFalse(mCache.apply(delta(3, "a", 3)));
+
+		assertEquals(1, mCache.getVersion());
+		assertEquals(1, mCache.getSnapshot().get("a"));
+	}
+
+	@Test
+	public void defaultIsDroppedOnceSnapshotContainsIt() {
+		assertTrue(mCache.putDefault("a", 0, mCache.getSnapshot()));
+		assertEquals(0, mCache.getDefaults().get("a"));
+
+		mCache.apply(delta(1, "a", 1));
+
+		assertFalse(mCache.getDefaults().containsKey("a"));
+
+		/*
+		 * The same goes for a complete snapshot
+		 */
+		assertTrue(mCache.putDefault("b", 0, mCache.getSnapshot()));
+
+		mCache.setSnapshot(SettingsSnapshot.EMPTY.apply(delta(5, "b", 5)));
+
+		assertFalse(mCache.getDefaults().containsKey("b"));
+	}
+
+	@Test
+	public void defaultFromAnOlderSnapshotIsNotCached() {
+		SettingsSnapshot snapshot = mCache.getSnapshot();
+
+		/*
+		 * Changed while the value was being requested from the service
+		 */
+		mCache.apply(delta(1, "a", 1));
+
+		assertFalse(mCache.putDefault("a", 0, snapshot));
+		assertFalse(mCache.putDefault("b", 0, snapshot));
+		assertTrue(mCache.getDefaults().isEmpty());
+	}
+
+	@Test
+	public void publishedDefaultsAreNeverChanged() {
+		mCache.putDefault("a", 0, mCache.getSnapshot());
+
+		Map<String, Object> defaults = mCache.getDefaults();
+
+		mCache.putDefault("b", 0, mCache.getSnapshot());
+		mCache.clearDefaults();
+
+		assertEquals(1, defaults.size());
+		assertEquals(0, defaults.get("a"));
+		assertTrue(mCache.getDefaults().isEmpty());
+	}
+
+	/*
+	 * One thread applies deltas like the binder thread, while others read and cache defaults
+	 * like the get methods. Every delta sets 'a' and 'b' to it's version, and moves one of the
+	 * default keys in or out of the snapshot.
+	 *
+	 * Readers must never see a snapshot with 'a' and 'b' from different versions, or one that
+	 * is older than the last one they saw, and iterating a published map must never fail.
+	 * Once everything is done, no default may be cached for a key that is in the snapshot.
+	 */
+	@Test
+	public void concurrentReadsAndWrites() throws InterruptedException {
+		final AtomicBoolean done = new AtomicBoolean(false);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> readers = new ArrayList<Thread>();
+
+		for (int i=0; i < READERS; i++) {
+			final int seed = i;
+
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						int lastVersion = 0;
+
+						for (int x=seed; !done.get() && failure.get() == null; x++) {
+							SettingsSnapshot snapshot = mCache.getSnapshot();
+							int version = snapshot.getVersion();
+
+							if (version < lastVersion) {
+								failure.compareAndSet(null, "Version went from " + lastVersion + " to " + version);
+
+							} else if (version > 0 && (!snapshot.get("a").equals(version) || !snapshot.get("b").equals(version))) {
+								failure.compareAndSet(null, "Version " + version + " has a=" + snapshot.get("a") + " and b=" + snapshot.get("b"));
+							}
+
+							lastVersion = version;
+
+							String key = "d" + (x % DEFAULT_KEYS);
+
+							if (!snapshot.contains(key)) {
+								Map<String, Object> defaults = mCache.getDefaults();
+
+								if (!defaults.containsKey(key)) {
+									/*
+									 * Give the writer a chance to swap in a new snapshot
+									 * while the value is being requested
+									 */
+									Thread.yield();
+
+									mCache.putDefault(key, "default", snapshot);
+								}
+
+								for (Map.Entry<String, Object> entry : defaults.entrySet()) {
+									if (!"default".equals(entry.getValue())) {
+										failure.compareAndSet(null, "Default '" + entry.getKey() + "' is " + entry.getValue());
+									}
+								}
+							}
+						}
+
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			}, "Reader " + i);
+
+			thread.start();
+			readers.add(thread);
+		}
+
+		for (int version=1; version <= WRITES; version++) {
+			SettingsDelta delta = new SettingsDelta();
+			delta.put("a", version);
+			delta.put("b", version);
+
+			String key = "d" + (version % DEFAULT_KEYS);
+
+			if (mCache.getSnapshot().contains(key)) {
+				delta.remove(key);
+
+			} else {
+				delta.put(key, version);
+			}
+
+			delta.setVersion(version);
+
+			assertTrue(mCache.apply(delta));
+
+			if (version % 1000 == 0) {
+				mCache.clearDefaults();
+			}
+		}
+
+		done.set(true);
+
+		for (Thread thread : readers) {
+			thread.join(TimeUnit.SECONDS.toMillis(30));
+
+			assertFalse("Reader did not finish", thread.isAlive());
+		}
+
+		assertEquals(new ArrayList<Throwable>(), errors);
+		assertEquals(null, failure.get());
+
+		SettingsSnapshot snapshot = mCache.getSnapshot();
+
+		assertEquals(WRITES, snapshot.getVersion());
+
+		for (String key : mCache.getDefaults().keySet()) {
+			assertFalse("Default '" + key + "' is also in the snapshot", snapshot.contains(key));
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.spazedog.xposed.additionsgb.backend.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.spazedog.xposed.additionsgb.utils.SettingsDelta;
+
+/*
+ * Writes pile up while the notifier thread is busy delivering an earlier change to a slow listener,
+ * and should then reach every listener as a single coalesced notification.
+ */
+public class XServiceNotifierTest {
+
+	private static final int LISTENERS = 3;
+	private static final int WRITES = 1000;
+	private static final int KEYS = 10;
+
+	private static final String GATE = "gate";
+	private static final String END = "end";
+
+	private static final long TIMEOUT = 5000L;
+
+	/*
+	 * Same as XServiceNotifier.MAX_BROADCASTS
+	 */
+	private static final int MAX_BROADCASTS = 64;
+
+	/*
+	 * Records everything it gets. The first listener blocks on the gate broadcast until
+	 * it is opened, which holds up the notifier thread.
+	 */
+	private final class Listener implements IXServiceChangeListener, IBinder {
+		final List<SettingsDelta> mDeltas = new ArrayList<SettingsDelta>();
+		final List<String> mEvents = new ArrayList<String>();
+		final CountDownLatch mEnd = new CountDownLatch(1);
+		final boolean mBlocking;
+
+		Listener(boolean blocking) {
+			mBlocking = blocking;
+		}
+
+		@Override
+		public IBinder asBinder() {
+			return this;
+		}
+
+		@Override
+		public synchronized void onSettingsChanged(int version) {
+			mEvents.add("settings " + version);
+		}
+
+		@Override
+		public synchronized void onSettingsDelta(SettingsDelta delta) {
+			mDeltas.add(delta);
+			mEvents.add("delta " + delta.getVersion());
+		}
+
+		@Override
+		public synchronized void onPackageChanged() {
+			mEvents.add("package");
+		}
+
+		@Override
+		public void onBroadcastReceive(String action, Bundle data) {
+			if (GATE.equals(action)) {
+				mGateReached.countDown();
+
+				if (mBlocking) {
+					try {
+						mGate.await(TIMEOUT, TimeUnit.MILLISECONDS);
+
+					} catch (InterruptedException e) {}
+				}
+
+			} else if (END.equals(action)) {
+				mEnd.countDown();
+
+			} else {
+				synchronized (this) {
+					mEvents.add("broadcast " + action);
+				}
+			}
+		}
+
+		@Override
+		public void linkToDeath(DeathRecipient recipient, int flags) throws RemoteException {}
+
+		@Override
+		public boolean unlinkToDeath(DeathRecipient recipient, int flags) {
+			return true;
+		}
+	}
+
+	private final CountDownLatch mGate = new CountDownLatch(1);
+	private final CountDownLatch mGateReached = new CountDownLatch(1);
+
+	private XServiceNotifier mNotifier;
+	private final List<Listener> mListeners = new ArrayList<Listener>();
+
+	@Before
+	public void setUp() throws RemoteException {
+		mNotifier = new XServiceNotifier();
+
+		for (int i=0; i < LISTENERS; i++) {
+			Listener listener = new Listener(i == 0);
+
+			mListeners.add(listener);
+			mNotifier.addListener(listener);
+		}
+	}
+
+	/*
+	 * Hold up the notifier thread, run the writes, and let it go
+	 */
+	private void whileBlocked(Runnable writes) throws InterruptedException {
+		mNotifier.notifyBroadcast(GATE, null);
+
+		assertTrue(mGateReached.await(TIMEOUT, TimeUnit.MILLISECONDS));
+
+		writes.run();
+
+		mGate.countDown();
+
+		/*
+		 * Deliveries happen in order on a single thread, so
+		 * anything else has been delivered once this is
+		 */
+		mNotifier.notifyBroadcast(END, null);
+
+		for (Listener listener : mListeners) {
+			assertTrue(listener.mEnd.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	@Test
+	public void settingsWritesAreDeliveredOnce() throws InterruptedException {
+		whileBlocked(new Runnable() {
+			@Override
+			public void run() {
+				for (int i=0; i < WRITES; i++) {
+					SettingsDelta delta = new SettingsDelta();
+					delta.put("key" + (i % KEYS), i);
+					delta.setVersion(i + 1);
+
+					mNotifier.notifySettingsDelta(delta);
+				}
+			}
+		});
+
+		for (Listener listener : mListeners) {
+			synchronized (listener) {
+				assertEquals(1, listener.mDeltas.size());
+
+				SettingsDelta delta = listener.mDeltas.get(0);
+
+				assertEquals(WRITES, delta.getVersion());
+				assertEquals(0, delta.getBaseVersion());
+				assertEquals(KEYS, delta.size());
+
+				/*
+				 * Each key once, with it's latest value, in the order of the last writes
+				 */
+				for (int i=0; i < KEYS; i++) {
+					int value = WRITES - KEYS + i;
+
+					assertEquals("key" + (value % KEYS), delta.keyAt(i));
+					assertEquals(value, delta.valueAt(i));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void replacedDataSetIsDeliveredAsOneSnapshot() throws InterruptedException {
+		whileBlocked(new Runnable() {
+			@Override
+			public void run() {
+				for (int i=0; i < WRITES; i++) {
+					SettingsDelta delta = new SettingsDelta();
+					delta.put("key" + (i % KEYS), i);
+					delta.setVersion(i + 1);
+
+					mNotifier.notifySettingsDelta(delta);
+
+					if (i == WRITES / 2) {
+						mNotifier.notifySettingsChanged(i + 1);
+					}
+				}
+			}
+		});
+
+		for (Listener listener : mListeners) {
+			synchronized (listener) {
+				assertEquals(1, listener.mEvents.size());
+				assertEquals("settings " + WRITES, listener.mEvents.get(0));
+			}
+		}
+	}
+
+	@Test
+	public void mixedWritesAreDeliveredInKindOrder() throws InterruptedException {
+		whileBlocked(new Runnable() {
+			@Override
+			public void run() {
+				for (int i=0; i < WRITES; i++) {
+					mNotifier.notifyBroadcast("b" + (i % 3), null);
+					mNotifier.notifyPackageChanged();
+
+					SettingsDelta delta = new SettingsDelta();
+					delta.put("key", i);
+					delta.setVersion(i + 1);
+
+					mNotifier.notifySettingsDelta(delta);
+				}
+			}
+		});
+
+		for (Listener listener : mListeners) {
+			synchronized (listener) {
+				List<String> events = listener.mEvents;
+
+				/*
+				 * One delta and one package change, then only the newest broadcasts in order.
+				 * The end broadcast may push out one more, if it is queued before the notifier thread wakes up.
+				 */
+				assertEquals("delta " + WRITES, events.get(0));
+				assertEquals("package", events.get(1));
+
+				int broadcasts = events.size() - 2;
+
+				assertTrue(broadcasts == MAX_BROADCASTS || broadcasts == MAX_BROADCASTS - 1);
+
+				for (int i=0; i < broadcasts; i++) {
+					assertEquals("broadcast b" + ((WRITES - broadcasts + i) % 3), events.get(2 + i));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package com.spazedog.xposed.additionsgb;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v7.widget.Toolbar;
+import android.widget.TextView;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.LatencyTracker;
+import com.spazedog.xposed.additionsgb.backend.service.XServiceManager;
+
+public class ActivityDiagnostics extends Activity {
+
+	@Override
+	protected void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		setContentView(R.layout.error_log_view);
+
+		if (Build.VERSION.SDK_INT >= 14) {
+			Toolbar bar = (Toolbar) findViewById(R.id.toolbar);
+			bar.setTitle(R.string.category_title_diagnostics);
+		}
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+
+		XServiceManager preferences = XServiceManager.getInstance();
+		long[] data = preferences != null ? preferences.getLatencyData() : null;
+
+		TextView view = (TextView) findViewById(R.id.content);
+
+		if (data != null) {
+			view.setText( LatencyTracker.format(data) );
+
+		} else {
+			view.setText(R.string.diagnostics_text_unavailable);
+		}
+	}
+}
@@ -155,6 +155,8 @@ public class ActivityMain extends PreferenceActivity implements OnPreferenceClic
 	    		debugPreference.setOnPreferenceClickListener(this);
 	    		debugPreference.setChecked(mPreferences.getBoolean(Settings.DEBUG_ENABLE_LOGGING));
 	    		
+	    		findPreference("diagnostics_link").setIntent(new Intent(Intent.ACTION_VIEW).setClass(this, ActivityDiagnostics.class));
+	    		
     		} else {
     			findPreference("options_group").setEnabled(false);
     			findPreference("settings_group").setEnabled(false);
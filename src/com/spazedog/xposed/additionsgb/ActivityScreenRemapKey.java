@@ -105,7 +105,13 @@ public class ActivityScreenRemapKey extends PreferenceActivity implements OnPref
     		if (!mKey.endsWith(":0")) {
     			((PreferenceCategory) findPreference("settings_group")).removePreference(findPreference("haptic_forced_preference"));
     			
+    			CheckBoxPreference strictOrder = (CheckBoxPreference) findPreference("strict_order_preference");
+    			strictOrder.setChecked(mPreferences.getBooleanGroup(Settings.REMAP_KEY_ENABLE_STRICT_ORDER, mKey));
+    			strictOrder.setOnPreferenceClickListener(this);
+    			
     		} else {
+    			((PreferenceCategory) findPreference("settings_group")).removePreference(findPreference("strict_order_preference"));
+    			
     			mKeyCode = mKey.substring(0, mKey.indexOf(":"));
     			mForcedHapticKeys = (ArrayList<String>) mPreferences.getStringArray(Settings.REMAP_LIST_FORCED_HAPTIC, new ArrayList<String>());
     					
@@ -168,6 +174,13 @@ public class ActivityScreenRemapKey extends PreferenceActivity implements OnPref
 			
 			mPreferences.putBooleanGroup(Settings.REMAP_KEY_ENABLE_CALLBTN, mKey, isChecked, true);
 			
+			return true;
+			
+		} else if (preference.getKey().equals("strict_order_preference")) {
+			Boolean isChecked = ((CheckBoxPreference) preference).isChecked();
+			
+			mPreferences.putBooleanGroup(Settings.REMAP_KEY_ENABLE_STRICT_ORDER, mKey, isChecked, true);
+			
 			return true;
 		}
 		
@@ -180,8 +193,11 @@ public class ActivityScreenRemapKey extends PreferenceActivity implements OnPref
 			String tag = (String) ((IWidgetPreference) preference).getTag();
 			
 			mKeyConditions.remove(tag);
+			
+			mPreferences.beginBatch();
 			mPreferences.putStringArrayGroup(Settings.REMAP_KEY_LIST_CONDITIONS, mKey, mKeyConditions, true);
 			mPreferences.removeGroup(Settings.REMAP_KEY_LIST_ACTIONS.get(tag), mKey);
+			mPreferences.commit();
 			
 			((PreferenceCategory) findPreference("conditions_group")).removePreference(preference);
 		}
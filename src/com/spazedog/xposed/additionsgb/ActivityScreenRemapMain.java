@@ -206,6 +206,8 @@ public class ActivityScreenRemapMain extends PreferenceActivity implements OnPre
 			String key = (String) ((IWidgetPreference) preference).getTag();
 			
 			mKeyList.remove(key);
+			
+			mPreferences.beginBatch();
 			mPreferences.putStringArray(Settings.REMAP_LIST_KEYS, mKeyList, true);
 			mPreferences.removeGroup(null, key);
 			
@@ -217,6 +219,8 @@ public class ActivityScreenRemapMain extends PreferenceActivity implements OnPre
 				mPreferences.putStringArray(Settings.REMAP_LIST_FORCED_HAPTIC, forcedKeys, true);
 			}
 			
+			mPreferences.commit();
+			
 			((PreferenceCategory) findPreference("keys_group")).removePreference(preference);
 		}
 	}
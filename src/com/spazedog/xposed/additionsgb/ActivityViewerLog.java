@@ -2,7 +2,9 @@ package com.spazedog.xposed.additionsgb;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -22,6 +24,9 @@ import android.view.MenuItem;
 import android.widget.LinearLayout;
 import android.widget.TextView;
 
+import com.spazedog.xposed.additionsgb.backend.pwm.FlightRecorder;
+import com.spazedog.xposed.additionsgb.backend.service.XServiceManager;
+
 public class ActivityViewerLog extends Activity {
 	
 	@Override
@@ -55,6 +60,40 @@ public class ActivityViewerLog extends Activity {
 			}
 		}
 		
+		/*
+		 * Add the current key events from the flight recorder, 
+		 * and the one that was stored during the last anomaly
+		 */
+		XServiceManager preferences = XServiceManager.getInstance();
+		String record = FlightRecorder.decode(preferences != null ? preferences.getFlightRecord() : null);
+		
+		if (record != null) {
+			builder.append("\n----- Key Events -----\n");
+			builder.append(record);
+		}
+		
+		if (Common.LogFile.FLIGHT.exists()) {
+			try {
+				byte[] data = new byte[(int) Common.LogFile.FLIGHT.length()];
+				DataInputStream input = new DataInputStream(new FileInputStream(Common.LogFile.FLIGHT));
+				
+				try {
+					input.readFully(data);
+					
+				} finally {
+					input.close();
+				}
+				
+				record = FlightRecorder.decode(data);
+				
+				if (record != null) {
+					builder.append("\n----- Key Events at last anomaly -----\n");
+					builder.append(record);
+				}
+				
+			} catch (IOException e) {}
+		}
+		
 		TextView view = (TextView) findViewById(R.id.content);
 		view.setText( builder.toString() );
 		
@@ -74,6 +74,7 @@ public final class Common {
 		public static final File LOCK = new File(Environment.getDataDirectory(), "data/" + PACKAGE_NAME + "/cache/error.log.lock");
 		public static final File MAIN = new File(Environment.getDataDirectory(), "data/" + PACKAGE_NAME + "/cache/error.main.log");
 		public static final File STORED = new File(Environment.getDataDirectory(), "data/" + PACKAGE_NAME + "/cache/error.stored.log");
+		public static final File FLIGHT = new File(Environment.getDataDirectory(), "data/" + PACKAGE_NAME + "/cache/flight.rec");
 	}
 	
 	public static String actionType(String action) {
@@ -0,0 +1,170 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.spazedog.xposed.additionsgb.Common;
+
+/**
+ * Executes key actions on threads of their own, rather than on the PhoneWindowManager handler.
+ *
+ * Actions are queued in priority lanes. Whenever the executor is ready for the next action,
+ * it always picks from the highest priority lane that has something queued, so that a row of
+ * slow application launches cannot delay key injections. An action that is already
+ * waiting in a lane will not be queued a second time, except for actions without a coalesce key,
+ * like key injections where each one counts.
+ *
+ * Wake actions have a thread of their own, since picking lanes by priority only helps between
+ * actions. A launch that is already running would otherwise still keep the screen from turning on.
+ * Injection and launch actions share the second thread.
+ *
+ * The threads have their own Looper, so actions are free to create handlers, show Toasts and so on.
+ * Queue wait and execution times are recorded by the caller, see LatencyTracker.
+ */
+public final class ActionExecutor {
+	public static final String TAG = ActionExecutor.class.getName();
+
+	/*
+	 * Lanes in order of priority
+	 */
+	public static final int LANE_WAKE = 0;			// Screen and wake actions
+	public static final int LANE_INJECT = 1;		// Key injection
+	public static final int LANE_LAUNCH = 2;		// Application launches, broadcasts and everything else
+	public static final int LANES = 3;
+
+	private static final class Entry {
+		final Object mKey;
+		final Runnable mRunnable;
+		final long mQueueTime;
+
+		Entry(Object key, Runnable runnable, long queueTime) {
+			mKey = key;
+			mRunnable = runnable;
+			mQueueTime = queueTime;
+		}
+	}
+
+	/*
+	 * Drains a range of lanes on it's own thread
+	 */
+	private final class Worker implements Runnable {
+		final int mFirstLane;
+		final int mLastLane;
+		final Handler mHandler;
+
+		/*
+		 * Guarded by mLock
+		 */
+		boolean mPosted = false;
+
+		Worker(String name, int firstLane, int lastLane) {
+			HandlerThread thread = new HandlerThread(name, Process.THREAD_PRIORITY_FOREGROUND);
+			thread.start();
+
+			mFirstLane = firstLane;
+			mLastLane = lastLane;
+			mHandler = new Handler(thread.getLooper());
+		}
+
+		@Override
+		public void run() {
+			Entry entry;
+			int lane;
+
+			while (true) {
+				synchronized(mLock) {
+					entry = null;
+
+					for (lane=mFirstLane; lane <= mLastLane; lane++) {
+						if ((entry = mLanes[lane].poll()) != null) {
+							break;
+						}
+					}
+
+					if (entry == null) {
+						mPosted = false; return;
+					}
+				}
+
+				long startTime = SystemClock.uptimeMillis();
+
+				try {
+					entry.mRunnable.run();
+
+				} catch (Throwable e) {
+					Log.e(TAG, e.getMessage(), e);
+				}
+
+				if(Common.debug()) Log.d(TAG, "Executed action '" + entry.mKey + "' in lane " + lane + " (Waited " + (startTime - entry.mQueueTime) + "ms, Executed in " + (SystemClock.uptimeMillis() - startTime) + "ms)");
+			}
+		}
+	}
+
+	private final Object mLock = new Object();
+
+	@SuppressWarnings("unchecked")
+	private final ArrayDeque<Entry>[] mLanes = new ArrayDeque[LANES];
+
+	private final Worker[] mWorkers = new Worker[LANES];
+
+	public ActionExecutor() {
+		for (int i=0; i < LANES; i++) {
+			mLanes[i] = new ArrayDeque<Entry>();
+		}
+
+		Worker wakeWorker = new Worker("XposedAdditions:ActionExecutor:Wake", LANE_WAKE, LANE_WAKE);
+		Worker mainWorker = new Worker("XposedAdditions:ActionExecutor", LANE_INJECT, LANE_LAUNCH);
+
+		mWorkers[LANE_WAKE] = wakeWorker;
+		mWorkers[LANE_INJECT] = mainWorker;
+		mWorkers[LANE_LAUNCH] = mainWorker;
+	}
+
+	/**
+	 * Queue an action for execution
+	 *
+	 * @param lane
+	 *     One of the LANE_ constants
+	 *
+	 * @param key
+	 *     Used to identify duplicates. If an equal key is already waiting in the same lane,
+	 *     this action is dropped. Use null for actions that must never be dropped.
+	 *
+	 * @param runnable
+	 *     The action to execute
+	 *
+	 * @return
+	 *     False if the action was coalesced with one already in the queue
+	 */
+	public boolean execute(int lane, Object key, Runnable runnable) {
+		synchronized(mLock) {
+			ArrayDeque<Entry> queue = mLanes[lane];
+
+			if (key != null) {
+				for (Iterator<Entry> iterator = queue.iterator(); iterator.hasNext();) {
+					if (key.equals(iterator.next().mKey)) {
+						if(Common.debug()) Log.d(TAG, "Coalescing action '" + key + "' with an already queued one");
+
+						return false;
+					}
+				}
+			}
+
+			queue.add(new Entry(key, runnable, SystemClock.uptimeMillis()));
+
+			Worker worker = mWorkers[lane];
+
+			if (!worker.mPosted) {
+				worker.mPosted = worker.mHandler.post(worker);
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,361 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import android.view.ViewConfiguration;
+
+import com.spazedog.xposed.additionsgb.Common;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IMediatorSetup.SDK;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IRemapSettings;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/**
+ * A pre-compiled version of the remap configuration.
+ *
+ * Instead of building config names and looking up several preference groups
+ * each time a new key event starts, the complete configuration is parsed once
+ * into KeyAction objects and stored by a primitive chord id. The table is only rebuilt when the XServiceManager
+ * reports that something has changed.
+ *
+ * A chord id packs up to MAX_CHORD_KEYS key codes into a single integer. By default the codes are sorted
+ * before they are packed, so a combo matches no matter which key is pressed first. Combos with strict order
+ * enabled are stored by an ordered id instead, which keeps the codes in the configured order.
+ *
+ * Configs made before combos were matched regardless of order, may contain both 'A:B' and 'B:A'.
+ * Such combos would share the same sorted id, so they are stored by their ordered id instead, just
+ * as if strict order was enabled on both of them. That way they keep working the way they always have.
+ */
+public final class ActionTable {
+	public static final String TAG = ActionTable.class.getName();
+
+	public static final int MAX_CHORD_KEYS = 3;
+	public static final int NO_CHORD = -1;
+
+	/*
+	 * Key codes are well below 10 bits, which leaves room for 3 codes and the ordered flag
+	 */
+	private static final int CHORD_BITS = 10;
+	private static final int CHORD_MASK = (1 << CHORD_BITS) - 1;
+	private static final int CHORD_ORDERED = 1 << (CHORD_BITS * MAX_CHORD_KEYS);
+
+	/*
+	 *  - 0 = Click
+	 *  - 1 = Double Click
+	 *  - 2 = Long Press
+	 *  - 3 = Double Long Press
+	 *  - 4 = Triple Click
+	 *  - 5 = Triple Long Press
+	 */
+	private static final int[] CONFIG_LOCATIONS = new int[]{0,2,1,3,4,5};
+
+	public static final class ConditionActions {
+		/*
+		 * Used whenever a combo has no actions for the current condition
+		 */
+		public static final ConditionActions NONE = new ConditionActions(Collections.<String>emptyList());
+
+		private final KeyAction[] mClickActions = new KeyAction[3];
+		private final KeyAction[] mPressActions = new KeyAction[3];
+
+		/*
+		 * Non-pro versions are limited to Click and Long Press, excluding Application Launch
+		 */
+		private final KeyAction[] mLimitedClickActions = new KeyAction[3];
+		private final KeyAction[] mLimitedPressActions = new KeyAction[3];
+
+		private ConditionActions(List<String> actions) {
+			for (int i=0,x=0,y=0; i < CONFIG_LOCATIONS.length; i++) {
+				int location = CONFIG_LOCATIONS[i];
+				String config = actions.size() > location ? actions.get(location) : null;
+				KeyAction action = KeyAction.parse(config);
+				KeyAction limited = i < 2 && action != null && config.matches("^[a-z0-9_]+$") ? action : null;
+
+				if ((i % 2) == 0) {
+					mClickActions[x] = action;
+					mLimitedClickActions[x] = limited; x += 1;
+
+				} else {
+					mPressActions[y] = action;
+					mLimitedPressActions[y] = limited; y += 1;
+				}
+			}
+		}
+
+		/*
+		 * The arrays are shared by every event using this condition, 
+		 * so only single actions are handed out
+		 */
+		public KeyAction getClickAction(int tapCount, boolean isExtended) {
+			KeyAction[] actions = isExtended ? mClickActions : mLimitedClickActions;
+
+			return tapCount < actions.length ? actions[tapCount] : null;
+		}
+
+		public KeyAction getPressAction(int tapCount, boolean isExtended) {
+			KeyAction[] actions = isExtended ? mPressActions : mLimitedPressActions;
+
+			return tapCount < actions.length ? actions[tapCount] : null;
+		}
+
+		/**
+		 * Whether there are any actions for more taps than <code>tapCount</code>
+		 */
+		public boolean hasMoreActions(int tapCount, boolean isExtended) {
+			for (int i=tapCount+1; i < mClickActions.length; i++) {
+				if (getClickAction(i, isExtended) != null || getPressAction(i, isExtended) != null) {
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+
+	public static final class ComboActions {
+		private final Map<String, ConditionActions> mConditions = new HashMap<String, ConditionActions>();
+		private boolean mCallButton = false;
+
+		private ComboActions() {}
+
+		public boolean isCallButton() {
+			return mCallButton;
+		}
+
+		/**
+		 * Get the actions for a specific condition.
+		 *
+		 * @param appCondition
+		 *     An application condition like 'guard' or a package name, or null
+		 *
+		 * @param isScreenOn
+		 *     Used to select the 'on' or 'off' fallback in case there is no match for the application condition
+		 */
+		public ConditionActions getActions(String appCondition, boolean isScreenOn) {
+			ConditionActions actions = appCondition != null ? mConditions.get(appCondition) : null;
+
+			if (actions == null) {
+				actions = mConditions.get(isScreenOn ? "on" : "off");
+			}
+
+			return actions;
+		}
+	}
+
+	/*
+	 * Replaced as a whole once a new table has been compiled, along with the timeouts below. 
+	 * mVersion is written last, so whoever sees the new version also sees the rest. 
+	 */
+	private volatile SparseArray<ComboActions> mCombos = new SparseArray<ComboActions>();
+	private volatile boolean mHasOrdered = false;
+
+	private volatile int mVersion = -1;
+
+	private int mTapTimeout = 0;
+	private int mPressTimeout = 0;
+	private int mRepeatDelay = 0;
+	private int mRepeatMinDelay = 0;
+	private int mRepeatSteps = 0;
+
+	/**
+	 * Create a primitive chord id from up to three key codes in the order they were pressed.
+	 * Use 0 for unused positions.
+	 *
+	 * @param ordered
+	 *     Keep the key order instead of sorting the codes
+	 *
+	 * @return
+	 *     The chord id, or NO_CHORD if one of the key codes is out of range
+	 */
+	public static int chordId(int code1, int code2, int code3, boolean ordered) {
+		if ((code1 | code2 | code3) < 0 || code1 > CHORD_MASK || code2 > CHORD_MASK || code3 > CHORD_MASK) {
+			return NO_CHORD;
+
+		} else if (!ordered) {
+			/*
+			 * Sort the three codes, unused positions end up first
+			 */
+			int tmp;
+
+			if (code1 > code2) { tmp = code1; code1 = code2; code2 = tmp; }
+			if (code2 > code3) { tmp = code2; code2 = code3; code3 = tmp; }
+			if (code1 > code2) { tmp = code1; code1 = code2; code2 = tmp; }
+		}
+
+		return (ordered ? CHORD_ORDERED : 0) | (code1 << (CHORD_BITS * 2)) | (code2 << CHORD_BITS) | code3;
+	}
+
+	/**
+	 * Rebuild the table if the preferences has changed since the last build
+	 */
+	public void update(IRemapSettings manager) {
+		int version = manager.getDataVersion();
+
+		if (version != mVersion) {
+			if(Common.debug()) Log.d(TAG, "Compiling the remap action table");
+
+			/*
+			 * Build the new table on the side. If anything fails half way, the old 
+			 * table and version are kept, and the next update tries again. 
+			 */
+			SparseArray<ComboActions> combos = new SparseArray<ComboActions>();
+			boolean hasOrdered = false;
+
+			int tapTimeout = manager.getInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, ViewConfiguration.getDoubleTapTimeout());
+			int pressTimeout = manager.getInt(Settings.REMAP_TIMEOUT_LONGPRESS, ViewConfiguration.getLongPressTimeout());
+			int repeatDelay = manager.getInt(Settings.REMAP_REPEAT_DELAY, SDK.VIEW_CONFIGURATION_VERSION > 1 ? ViewConfiguration.getKeyRepeatDelay() : 50);
+			int repeatMinDelay = manager.getInt(Settings.REMAP_REPEAT_MIN_DELAY, repeatDelay / 2);
+			int repeatSteps = manager.getInt(Settings.REMAP_REPEAT_ACCELERATION, 20);
+
+			List<String> keys = manager.getStringArray(Settings.REMAP_LIST_KEYS, null);
+
+			if (keys != null) {
+				/*
+				 * Count the combos that share each unordered chord id, 
+				 * so that colliding ones can be kept in their configured order
+				 */
+				SparseIntArray unordered = new SparseIntArray();
+
+				for (String key : keys) {
+					int[] codes = parseChord(key);
+
+					if (codes != null && codes[1] != 0 && !manager.getBooleanGroup(Settings.REMAP_KEY_ENABLE_STRICT_ORDER, key)) {
+						int chordId = chordId(codes[0], codes[1], codes[2], false);
+
+						unordered.put(chordId, unordered.get(chordId) + 1);
+					}
+				}
+
+				for (String key : keys) {
+					int[] codes = parseChord(key);
+					List<String> conditions = manager.getStringArrayGroup(Settings.REMAP_KEY_LIST_CONDITIONS, key, null);
+
+					if (codes == null || conditions == null) {
+						continue;
+					}
+
+					/*
+					 * Key order only matters on combos
+					 */
+					boolean ordered = codes[1] != 0 && manager.getBooleanGroup(Settings.REMAP_KEY_ENABLE_STRICT_ORDER, key);
+
+					if (codes[1] != 0 && !ordered && unordered.get(chordId(codes[0], codes[1], codes[2], false)) > 1) {
+						if(Common.debug()) Log.d(TAG, "The key combo '" + key + "' has the same keys as another combo, keeping it's key order");
+
+						ordered = true;
+					}
+
+					int chordId = chordId(codes[0], codes[1], codes[2], ordered);
+
+					if (chordId == NO_CHORD) {
+						continue;
+					}
+
+					ComboActions combo = new ComboActions();
+					combo.mCallButton = manager.getBooleanGroup(Settings.REMAP_KEY_ENABLE_CALLBTN, key);
+
+					for (String condition : conditions) {
+						List<String> actions = manager.getStringArrayGroup(Settings.REMAP_KEY_LIST_ACTIONS.get(condition), key, null);
+
+						if (actions != null) {
+							combo.mConditions.put(condition, new ConditionActions(actions));
+						}
+					}
+
+					combos.put(chordId, combo);
+					hasOrdered |= ordered;
+				}
+			}
+
+			mTapTimeout = tapTimeout;
+			mPressTimeout = pressTimeout;
+			mRepeatDelay = repeatDelay;
+			mRepeatMinDelay = repeatMinDelay;
+			mRepeatSteps = repeatSteps;
+			mCombos = combos;
+			mHasOrdered = hasOrdered;
+			mVersion = version;
+		}
+	}
+
+	/**
+	 * Find the actions for the pressed keys, in the order they were pressed. Use 0 for unused positions.
+	 * A combo with strict order takes precedence over one without.
+	 */
+	public ComboActions get(int code1, int code2, int code3) {
+		ComboActions combo = null;
+
+		if (mHasOrdered) {
+			int chordId = chordId(code1, code2, code3, true);
+
+			if (chordId != NO_CHORD) {
+				combo = mCombos.get(chordId);
+			}
+		}
+
+		if (combo == null) {
+			int chordId = chordId(code1, code2, code3, false);
+
+			if (chordId != NO_CHORD) {
+				combo = mCombos.get(chordId);
+			}
+		}
+
+		return combo;
+	}
+
+	public int getTapTimeout() {
+		return mTapTimeout;
+	}
+
+	public int getPressTimeout() {
+		return mPressTimeout;
+	}
+
+	public int getRepeatDelay() {
+		return mRepeatDelay;
+	}
+
+	public int getRepeatMinDelay() {
+		return mRepeatMinDelay;
+	}
+
+	/**
+	 * Number of repeats it takes to accelerate from the repeat delay to the minimum delay
+	 */
+	public int getRepeatSteps() {
+		return mRepeatSteps;
+	}
+
+	/*
+	 * Config names are stored as 'primary:secondary', where secondary is '0' on single key configs.
+	 * Chords with more keys simply add more codes, like 'primary:secondary:third'.
+	 */
+	private static int[] parseChord(String key) {
+		String[] parts = key.split(":");
+
+		if (parts.length >= 2 && parts.length <= MAX_CHORD_KEYS) {
+			int[] codes = new int[MAX_CHORD_KEYS];
+
+			try {
+				for (int i=0, x=0; i < parts.length; i++) {
+					int code = Integer.parseInt(parts[i]);
+
+					if (code != 0) {
+						codes[x++] = code;
+					}
+				}
+
+				return codes[0] != 0 ? codes : null;
+
+			} catch (NumberFormatException e) {}
+		}
+
+		return null;
+	}
+}
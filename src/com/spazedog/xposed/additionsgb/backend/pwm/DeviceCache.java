@@ -0,0 +1,77 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import android.hardware.input.InputManager.InputDeviceListener;
+import android.util.SparseBooleanArray;
+
+/**
+ * Cached device validations for IEventMediator.validateDeviceType(), by device id.
+ *
+ * Input devices can be plugged in and out at any time, and a new device may get the id
+ * of one that was removed, with a different configuration. So the cache is dropped whenever
+ * the InputManager reports a change to any device, as well as when the preferences change.
+ *
+ * The listener callbacks run on the handler thread and only bump a version, while everything
+ * else is only touched by the queueing thread, which drops the cache on the next key event.
+ */
+public final class DeviceCache implements InputDeviceListener {
+
+	private final SparseBooleanArray mDeviceIds = new SparseBooleanArray();
+	private int mDataVersion = -1;
+	private int mInputVersion = -1;
+
+	/*
+	 * Only written by the handler thread
+	 */
+	private volatile int mInputDeviceVersion = 0;
+
+	/**
+	 * Drop the cache if the preferences or the input devices has changed since the last call
+	 *
+	 * @return
+	 *     True if the cache was dropped, in which case the device settings should be reloaded
+	 */
+	public boolean update(int dataVersion) {
+		int inputVersion = mInputDeviceVersion;
+
+		if (dataVersion != mDataVersion || inputVersion != mInputVersion) {
+			mDataVersion = dataVersion;
+			mInputVersion = inputVersion;
+			mDeviceIds.clear();
+
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return
+	 *     The index of the device, for use with isValidAt(), or a negative value if it has not been validated
+	 */
+	public int indexOf(int deviceId) {
+		return mDeviceIds.indexOfKey(deviceId);
+	}
+
+	public boolean isValidAt(int index) {
+		return mDeviceIds.valueAt(index);
+	}
+
+	public void put(int deviceId, boolean validated) {
+		mDeviceIds.put(deviceId, validated);
+	}
+
+	@Override
+	public void onInputDeviceAdded(int deviceId) {
+		mInputDeviceVersion += 1;
+	}
+
+	@Override
+	public void onInputDeviceRemoved(int deviceId) {
+		mInputDeviceVersion += 1;
+	}
+
+	@Override
+	public void onInputDeviceChanged(int deviceId) {
+		mInputDeviceVersion += 1;
+	}
+}
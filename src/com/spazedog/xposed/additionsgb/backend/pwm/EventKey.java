@@ -1,26 +1,40 @@
 package com.spazedog.xposed.additionsgb.backend.pwm;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import android.view.KeyEvent;
 
 public class EventKey {
 	
 	public static final int FLAG_CUSTOM = 4096;
 	
-	private Long mDownTime;
-	private Integer mKeyCode;
-	private Integer mFlags;
-	private Integer mMetaState;
-	private Integer mRepeatCount;
-	private Boolean mIsPressed;
-	private Boolean mIsOnGoing;
+	private long mDownTime;
+	private int mKeyCode;
+	private int mFlags;
+	private int mMetaState;
+	
+	/*
+	 * Changed by the queueing thread while the dispatcher and the KeyRepeater read them
+	 */
+	private volatile int mRepeatCount;
+	private volatile boolean mIsPressed;
+	private volatile boolean mIsOnGoing;
 	
 	private EventManager mManager;
 	
+	/*
+	 * Number of threads using this instance outside of the EventManager lock, 
+	 * that is the dispatcher and the KeyRepeater. The EventKeyPool keeps a released 
+	 * instance aside until it is no longer held, so it is never reused for another key 
+	 * while someone still has a reference to it. 
+	 */
+	private final AtomicInteger mHolders = new AtomicInteger(0);
+	
 	protected EventKey(EventManager manager) {
 		mManager = manager;
 	}
 	
-	protected void initiateInstance(Integer keyCode, Integer flags, Integer metaState, Long downTime) {
+	protected void initiateInstance(int keyCode, int flags, int metaState, long downTime) {
 		mIsOnGoing = false;
 		mRepeatCount = 0;
 		mKeyCode = keyCode;
@@ -37,58 +51,81 @@ public class EventKey {
 		}
 	}
 	
-	protected void updateInstance(Boolean pressed) {
+	protected void updateInstance(boolean pressed) {
 		mIsPressed = pressed;
 	}
 	
-	public Long getDownTime() {
+	protected void hold() {
+		mHolders.incrementAndGet();
+	}
+	
+	protected void unhold() {
+		mHolders.decrementAndGet();
+	}
+	
+	protected boolean isHeld() {
+		return mHolders.get() > 0;
+	}
+	
+	public long getDownTime() {
 		return mDownTime;
 	}
 
-	public Integer getPosition() {
+	public int getPosition() {
 		return mManager.getKeyCodePosition(mKeyCode);
 	}
 
-	public Integer getCode() {
+	public int getCode() {
 		return mKeyCode;
 	}
 
-	public Integer getFlags() {
+	public int getFlags() {
 		return mFlags;
 	}
 	
-	public Integer getMetaState() {
+	public int getMetaState() {
 		return mMetaState;
 	}
 
-	public Integer getRepeatCount() {
+	public int getRepeatCount() {
 		return mRepeatCount;
 	}
 
-	public Boolean isPressed() {
+	public boolean isPressed() {
 		return mIsPressed;
 	}
 
-	public Boolean isLastQueued() {
-		return mManager.getLastQueuedKeyCode().equals(mKeyCode);
+	public boolean isLastQueued() {
+		return mManager.getLastQueuedKeyCode() == mKeyCode;
 	}
 
-	public Boolean isOnGoing() {
+	public boolean isOnGoing() {
 		return mIsOnGoing;
 	}
 	
+	/*
+	 * Add down events for the other keys in a combo, 
+	 * so that they are injected together with this key.
+	 */
+	private void addComboKeys(KeyInjectionBatch batch) {
+		for (int i=0; i < mManager.getKeyCount(); i++) {
+			EventKey combo = mManager.getKeyAt(i);
+			
+			if (combo != null && combo.mKeyCode != mKeyCode && !combo.mIsOnGoing) {
+				combo.mIsOnGoing = true;
+				batch.add(combo.mKeyCode, KeyEvent.ACTION_DOWN, 0L, 0, combo.mFlags, combo.mMetaState);
+			}
+		}
+	}
+	
 	public void invokeAndRelease() {
 		if (!mIsOnGoing) {
-			for (int i=0; i < mManager.getKeyCount(); i++) {
-				EventKey combo = mManager.getKeyAt(i);
-				
-				if (combo != null && !combo.mKeyCode.equals(mKeyCode) && !combo.mIsOnGoing) {
-					combo.mIsOnGoing = true;
-					mManager.injectInputEvent(combo.mKeyCode, KeyEvent.ACTION_DOWN, 0L, 0L, 0, combo.mFlags, combo.mMetaState);
-				}
-			}
+			KeyInjectionBatch batch = mManager.getInjector().obtainInjectionBatch();
 			
-			mManager.injectInputEvent(mKeyCode, KeyEvent.ACTION_MULTIPLE, 0L, 0L, 0, mFlags, mMetaState);
+			addComboKeys(batch);
+			batch.add(mKeyCode, KeyEvent.ACTION_MULTIPLE, 0L, 0, mFlags, mMetaState);
+			
+			mManager.getInjector().injectInputEvents(batch);
 			
 		} else {
 			release();
@@ -97,31 +134,27 @@ public class EventKey {
 	
 	public void invoke() {
 		if (mIsPressed) {
+			KeyInjectionBatch batch = mManager.getInjector().obtainInjectionBatch();
+			
 			if (!mIsOnGoing) {
-				for (int i=0; i < mManager.getKeyCount(); i++) {
-					EventKey combo = mManager.getKeyAt(i);
-					
-					if (combo != null && !combo.mKeyCode.equals(mKeyCode) && !combo.mIsOnGoing) {
-						combo.mIsOnGoing = true;
-						mManager.injectInputEvent(combo.mKeyCode, KeyEvent.ACTION_DOWN, 0L, 0L, 0, combo.mFlags, combo.mMetaState);
-					}
-				}
-
+				addComboKeys(batch);
 				mIsOnGoing = true;
 			}
 
 			mRepeatCount += 1;
-			mManager.injectInputEvent(mKeyCode, KeyEvent.ACTION_DOWN, 0L, 0L, mRepeatCount-1, mFlags, mMetaState);
+			batch.add(mKeyCode, KeyEvent.ACTION_DOWN, 0L, mRepeatCount-1, mFlags, mMetaState);
+			
+			mManager.getInjector().injectInputEvents(batch);
 		}
 	}
 	
 	public void release() {
 		if (mIsOnGoing) {
-			Boolean wasRepeat = mRepeatCount > 1;
+			boolean wasRepeat = mRepeatCount > 1;
 			
 			mRepeatCount = 0;
 			mIsOnGoing = false;
-			mManager.injectInputEvent(mKeyCode, KeyEvent.ACTION_UP, 0L, 0L, wasRepeat ? 1 : 0, mFlags, mMetaState);
+			mManager.getInjector().injectInputEvent(mKeyCode, KeyEvent.ACTION_UP, 0L, wasRepeat ? 1 : 0, mFlags, mMetaState);
 		}
 	}
 }
@@ -0,0 +1,170 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import android.util.Log;
+
+/*
+ * A fixed size pool of EventKey instances.
+ *
+ * All instances are allocated up front and handed out/returned through a ring buffer,
+ * so both operations are constant time and the pool never grows over time.
+ * If the pool runs dry, a new instance is created. Instances returned to a full pool
+ * are simply dropped and left to the GC.
+ *
+ * An instance that is still held by the dispatcher or the KeyRepeater when it is released,
+ * is put aside as pending instead. Pending instances are moved back into the pool once they
+ * are no longer held, which is checked whenever the pool is used. That way unholding a key never
+ * has to touch the pool, and the pool does not have to be refilled with new instances.
+ *
+ * The pool is not thread safe, the EventManager only uses it while holding it's event lock.
+ */
+public final class EventKeyPool {
+	public static final String TAG = EventKeyPool.class.getName();
+
+	/*
+	 * Combos are limited to two keys, but users may still press a few more
+	 * keys while an event is ongoing.
+	 */
+	public static final int CAPACITY = 8;
+
+	/*
+	 * A key that is still held this long after it was released, was never given back
+	 * by whoever was holding it. No dispatch or repeat takes anywhere near this long.
+	 */
+	public static final int LEAK_TIMEOUT = 10000;
+
+	private final EventManager mManager;
+
+	private final EventKey[] mKeys = new EventKey[CAPACITY];
+	private int mHead = 0;
+	private int mCount = 0;
+
+	/*
+	 * Released keys that are still held, along with the event time of the release
+	 */
+	private final EventKey[] mPending = new EventKey[CAPACITY];
+	private final long[] mPendingTimes = new long[CAPACITY];
+	private final boolean[] mPendingReported = new boolean[CAPACITY];
+	private int mPendingCount = 0;
+
+	protected EventKeyPool(EventManager manager) {
+		mManager = manager;
+
+		for (int i=0; i < CAPACITY; i++) {
+			mKeys[i] = new EventKey(manager);
+		}
+
+		mCount = CAPACITY;
+	}
+
+	public EventKey acquire() {
+		if (mCount == 0) {
+			reclaim();
+		}
+
+		if (mCount > 0) {
+			EventKey key = mKeys[mHead];
+			mKeys[mHead] = null;
+			mHead = (mHead + 1) % CAPACITY;
+			mCount -= 1;
+
+			return key;
+		}
+
+		/*
+		 * This should not happen unless more keys are pressed than the pool can hold,
+		 * or keys are not being given back by whoever is holding them
+		 */
+		Log.w(TAG, "The EventKey pool is empty, " + mPendingCount + " keys are still being held");
+
+		return new EventKey(mManager);
+	}
+
+	/**
+	 * Return a key to the pool. A key that is still held is kept aside until it is no longer held.
+	 *
+	 * @param eventTime
+	 *     The time of the event that released the key, used to detect keys that are never given back
+	 */
+	public void release(EventKey key, long eventTime) {
+		if (key != null) {
+			reclaim();
+
+			if (!key.isHeld()) {
+				put(key);
+
+			} else if (mPendingCount < CAPACITY) {
+				mPending[mPendingCount] = key;
+				mPendingTimes[mPendingCount] = eventTime;
+				mPendingReported[mPendingCount] = false;
+				mPendingCount += 1;
+
+			} else {
+				Log.w(TAG, "Too many EventKey instances are still being held, leaving one to the GC");
+			}
+		}
+	}
+
+	private void put(EventKey key) {
+		if (mCount < CAPACITY) {
+			mKeys[(mHead + mCount) % CAPACITY] = key;
+			mCount += 1;
+		}
+	}
+
+	/*
+	 * Move pending keys that are no longer held back into the pool
+	 */
+	private void reclaim() {
+		for (int i=mPendingCount-1; i >= 0; i--) {
+			if (!mPending[i].isHeld()) {
+				put(mPending[i]);
+				removePendingAt(i);
+			}
+		}
+	}
+
+	private void removePendingAt(int index) {
+		mPendingCount -= 1;
+
+		System.arraycopy(mPending, index+1, mPending, index, mPendingCount - index);
+		System.arraycopy(mPendingTimes, index+1, mPendingTimes, index, mPendingCount - index);
+		System.arraycopy(mPendingReported, index+1, mPendingReported, index, mPendingCount - index);
+
+		mPending[mPendingCount] = null;
+	}
+
+	/**
+	 * Check for keys that has been held for more than LEAK_TIMEOUT after they were released.
+	 * Each of them is only reported once. They stay pending, in case they are given back later.
+	 *
+	 * @return
+	 *     True if any such key was found
+	 */
+	public boolean checkLeaks(long eventTime) {
+		boolean leaked = false;
+
+		reclaim();
+
+		for (int i=0; i < mPendingCount; i++) {
+			if (eventTime - mPendingTimes[i] > LEAK_TIMEOUT) {
+				if (!mPendingReported[i]) {
+					Log.w(TAG, "The EventKey for key code " + mPending[i].getCode() + " has been held for " + (eventTime - mPendingTimes[i]) + "ms after it was released");
+
+					mPendingReported[i] = true;
+				}
+
+				leaked = true;
+			}
+		}
+
+		return leaked;
+	}
+
+	public int getAvailable() {
+		return mCount;
+	}
+
+	public int getPending() {
+		return mPendingCount;
+	}
+}
@@ -1,51 +1,146 @@
 package com.spazedog.xposed.additionsgb.backend.pwm;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.util.Log;
-import android.view.ViewConfiguration;
 
 import com.spazedog.lib.reflecttools.ReflectClass;
 import com.spazedog.xposed.additionsgb.Common;
+import com.spazedog.xposed.additionsgb.backend.pwm.ActionTable.ComboActions;
+import com.spazedog.xposed.additionsgb.backend.pwm.ActionTable.ConditionActions;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventClock;
 import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IKeyInjector;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IRemapSettings;
 import com.spazedog.xposed.additionsgb.backend.service.XServiceManager;
-import com.spazedog.xposed.additionsgb.configs.Settings;
-import com.spazedog.xposed.additionsgb.tools.MapList;
+import com.spazedog.xposed.additionsgb.tools.IntMapList;
 
 public final class EventManager extends IEventMediator {
 	
-	public static enum State { PENDING, ONGOING, REPEATING, INVOKED }
+	public static enum State { PENDING, ONGOING, REPEATING, INVOKED, REGISTERING }
 	
-	private final MapList<Integer, EventKey> mEventKeys = new MapList<Integer, EventKey>();
-	private final List<EventKey> mKeyCache = new ArrayList<EventKey>();
+	/*
+	 * The event state is kept in a single atomic word, so that the queueing (input reader) 
+	 * and dispatching threads never have to lock each other out. The lower bits hold the State ordinal 
+	 * while the upper bits hold a generation counter that is bumped on every registered key. 
+	 * 
+	 * Transitions:
+	 *  - registerKey()        Any        -> REGISTERING  Before any event field is changed
+	 *  - registerKey()        Any        -> ONGOING      New event (single or combo)
+	 *  - registerKey()        !REPEATING -> ONGOING      Key down on the ongoing event (taps)
+	 *  - registerKey()        REPEATING  -> REPEATING    Key down while repeating
+	 *  - registerKey()        Any        -> Same         Key up
+	 *  - compareAndSetState() ONGOING    -> INVOKED      Dispatcher fired a click or long press
+	 *  - compareAndSetState() INVOKED    -> REPEATING    Dispatcher started the default long press
+	 * 
+	 * The states of registerKey() are in relation to the state from before REGISTERING. 
+	 * 
+	 * Only registerKey() moves the generation forward, and much like a seqlock it does so twice. 
+	 * It leaves the current generation for REGISTERING before it changes any of the event fields, 
+	 * and moves on to the next generation with the resulting state once it is done. 
+	 * The dispatcher transitions are CAS operations against a word read before it started waiting, 
+	 * so they fail if any key has been registered in the meantime, instead of overwriting the newer state. 
+	 * The dispatcher reads the event fields before it's CAS, so a CAS that succeeds means that 
+	 * none of them belonged to a newer event. 
+	 * 
+	 * REGISTERING is only ever seen within the event lock, getStateWord() waits for it to end. 
+	 */
+	private static final int STATE_BITS = 4;
+	private static final int STATE_MASK = (1 << STATE_BITS) - 1;
+	private static final State[] STATES = State.values();
 	
-	private Integer mLastQueued = 0;
-	public State mState = State.PENDING;
-	private Integer mTapCount = 0;
-	private Long mEventTime = 0L;
+	private final AtomicInteger mStateWord = new AtomicInteger(State.PENDING.ordinal());
 	
-	private Boolean mIsScreenOn = true;
-	private Boolean mIsExtended = false;
-	private Boolean mIsCallButton = false;
-	private Integer mTapTimeout = 0;
-	private Integer mPressTimeout = 0;
+	private final IntMapList<EventKey> mEventKeys = new IntMapList<EventKey>();
+	private final EventKeyPool mKeyPool;
+	private final KeyRepeater mKeyRepeater;
 	
-	private String[] mClickActions = new String[3];
-	private String[] mPressActions = new String[3];
+	/*
+	 * Everything in here is touched on each key event, 
+	 * so keep it primitive to avoid boxing while handling keys.
+	 */
+	private volatile int mLastQueued = 0;
+	private volatile int mTapCount = 0;
+	private volatile long mEventTime = 0L;
+	
+	private volatile boolean mIsScreenOn = true;
+	private volatile boolean mIsExtended = false;
+	private volatile boolean mIsCallButton = false;
+	private volatile int mTapTimeout = 0;
+	private volatile int mPressTimeout = 0;
+	private volatile int mRepeatDelay = 0;
+	private volatile int mRepeatMinDelay = 0;
+	private volatile int mRepeatSteps = 0;
+	
+	private final ActionTable mActionTable = new ActionTable();
+	
+	private volatile ConditionActions mActions = ConditionActions.NONE;
 	
 	private final Object mEventLock = new Object();
+	
+	/*
+	 * Used to signal threads in waitForChange() and getStateWord() whenever a new key is registered
+	 */
+	private final Object mChangeLock = new Object();
+	
+	/*
+	 * Records every registered key and state change, see FlightRecorder
+	 */
+	private final FlightRecorder mFlightRecorder = FlightRecorder.getInstance();
+	private long mLastAnomalyDump = 0L;
+	
+	/*
+	 * A key that has been held for longer than this when another key goes down, 
+	 * is considered stuck. Nobody holds a hardware key for this long on purpose. 
+	 */
+	private static final int STUCK_KEY_TIMEOUT = 30000;
+	
+	/*
+	 * Codes of keys that were still pressed when they were recycled by this class, 
+	 * so that their key up is not reported as an orphan. 
+	 */
+	private final int[] mDiscardedCodes = new int[EventKeyPool.CAPACITY];
+	private final long[] mDiscardedDownTimes = new long[EventKeyPool.CAPACITY];
+	private int mDiscardedCount = 0;
+
+	/*
+	 * The decision logic only talks to the outside world through these, 
+	 * so that it can be driven by something other than the real system
+	 */
+	private final IEventClock mClock;
+	private final IRemapSettings mSettings;
+	private final IKeyInjector mInjector;
 
 	protected EventManager(ReflectClass pwm, XServiceManager xServiceManager) {
+		this(pwm, xServiceManager, IEventClock.SYSTEM, xServiceManager, null);
+	}
+	
+	/**
+	 * @param injector
+	 *     The injector used by the EventKey objects, or null to inject into the system
+	 */
+	protected EventManager(ReflectClass pwm, XServiceManager xServiceManager, IEventClock clock, IRemapSettings settings, IKeyInjector injector) {
 		super(pwm, xServiceManager);
+		
+		mClock = clock;
+		mSettings = settings;
+		mInjector = injector != null ? injector : this;
+		mKeyPool = new EventKeyPool(this);
+		mKeyRepeater = new KeyRepeater(this, mWakeManager);
+	}
+	
+	public IKeyInjector getInjector() {
+		return mInjector;
 	}
 	
-	private EventKey initiateEventKey(Integer keyCode, Boolean isKeyDown, Integer policyFlags, Integer metaState, Long downTime) {
+	private EventKey initiateEventKey(int keyCode, boolean isKeyDown, int policyFlags, int metaState, long downTime) {
 		synchronized(mEventLock) {
 			EventKey eventKey = mEventKeys.get(keyCode);
 			
 			if (eventKey == null) {
-				eventKey = mKeyCache.size() > 0 ? mKeyCache.remove(0) : new EventKey(this);
+				eventKey = mKeyPool.acquire();
 
 				mEventKeys.put(keyCode, eventKey);
 			}
@@ -60,137 +155,224 @@ public final class EventManager extends IEventMediator {
 		}
 	}
 	
-	private void recycleEventKeys() {
+	private void recycleEventKeys(long eventTime) {
 		synchronized(mEventLock) {
-			for (Integer key : mEventKeys.keySet()) {
-				mKeyCache.add(mEventKeys.get(key));
+			for (int i=0; i < mEventKeys.size(); i++) {
+				EventKey eventKey = mEventKeys.getAt(i);
+				
+				if (eventKey.isPressed()) {
+					addDiscarded(eventKey.getCode(), eventKey.getDownTime());
+				}
+				
+				/*
+				 * The dispatcher or the KeyRepeater may still be working on this key, 
+				 * in which case the pool keeps it aside until they are done with it. 
+				 */
+				mKeyPool.release(eventKey, eventTime);
 			}
 			
 			mEventKeys.clear();
 		}
 	}
 	
-	public Boolean registerKey(Integer keyCode, Boolean isKeyDown, Boolean isScreenOn, Integer policyFlags, Integer metaState, Long downTime, Long eventTime) {
+	public boolean registerKey(int keyCode, boolean isKeyDown, boolean isScreenOn, int flags, int policyFlags, int metaState, long downTime, long eventTime) {
 		synchronized(mEventLock) {
-			if (isKeyDown && (eventTime - mEventTime) > 1500) { // 1000 + Default Android Long Press timeout
-				releaseAllKeys();
-				recycleEventKeys();
-			}
-			
-			mLastQueued = keyCode;
-			mEventTime = eventTime;
-			Boolean newEvent = false;
-			Boolean newKey = !mEventKeys.containsKey(keyCode);
+			/*
+			 * Any new event, including the key up, ends the current repeats. 
+			 * This has to happen before the keys are updated, so that no repeat 
+			 * can be injected after the key up has been registered. 
+			 */
+			mKeyRepeater.stop();
 			
-			initiateEventKey(keyCode, isKeyDown, policyFlags, metaState, downTime);
+			/*
+			 * Leave the current generation before anything is changed, 
+			 * so that the dispatcher can no longer act on it
+			 */
+			int previousWord = beginRegistering();
+			State state = stateOf(previousWord);
+			boolean newEvent = false;
 			
-			if (isKeyDown) {
-				if (mState == State.ONGOING && !newKey) {
-					if(Common.debug()) Log.d(TAG, "Registering new tap event");
-					
-					mTapCount += 1;
-					
-				} else if (hasState(State.ONGOING, State.INVOKED) && getKeyCount() > 1 && isDownEvent()) {
-					if(Common.debug()) Log.d(TAG, "Registering new combo event");
-					
-					mTapCount = 0;
-					newEvent = true;
-					
-				} else {
-					if(Common.debug()) Log.d(TAG, "Registering new single event");
-					
-					if (getKeyCount() > 1) {
-						recycleEventKeys();
-						initiateEventKey(keyCode, isKeyDown, policyFlags, metaState, downTime);
-					}
-					
-					mTapCount = 0;
-					newEvent = true;
-				}
-
-				if (newEvent) {
-					String configName = mEventKeys.joinKeys(":");
-					
-					if (mEventKeys.size() == 1) {
-						configName += ":0";
-					}
-					
-					if(Common.debug()) Log.d(TAG, "Getting actions for the key combo '" + configName + "'");
-					
-					mIsScreenOn = isScreenOn;
-					mIsExtended = mXServiceManager.isPackageUnlocked();
-					mIsCallButton = mXServiceManager.getBooleanGroup(Settings.REMAP_KEY_ENABLE_CALLBTN, configName);
-					mTapTimeout = mXServiceManager.getInt(Settings.REMAP_TIMEOUT_DOUBLECLICK, ViewConfiguration.getDoubleTapTimeout());
-					mPressTimeout = mXServiceManager.getInt(Settings.REMAP_TIMEOUT_LONGPRESS, ViewConfiguration.getLongPressTimeout());
-					String appCondition = !isScreenOn ? null : isKeyguardShowing() ? "guard" : mIsExtended ? getPackageNameFromStack(0, StackAction.INCLUDE_HOME) : null;
-					List<String> actions = appCondition != null ? mXServiceManager.getStringArrayGroup(Settings.REMAP_KEY_LIST_ACTIONS.get(appCondition), configName, null) : null;
-					
-					if ((getKeyCount() > 1 && !mIsExtended) || (actions == null && (actions = mXServiceManager.getStringArrayGroup(Settings.REMAP_KEY_LIST_ACTIONS.get(isScreenOn ? "on" : "off"), configName, null)) == null)) {
-						actions = new ArrayList<String>();
-					}
-					
-					actions = convertOldConfig(actions);
-					
+			try {
+				if (isKeyDown) {
 					/*
-					 * TODO: Update the config file to produce the same output as convertOldConfig()
+					 * Make sure that we work on the newest configuration
 					 */
-					for (int i=0,x=0,y=0; i < actions.size(); i++) {
+					mActionTable.update(mSettings);
+				}
+				
+				if (isKeyDown) {
+					checkStuckKeys(keyCode, policyFlags, downTime, eventTime);
+				}
+				
+				if (isKeyDown && (eventTime - mEventTime) > 1500) { // 1000 + Default Android Long Press timeout
+					releaseAllKeys();
+					recycleEventKeys(eventTime);
+				}
+				
+				mLastQueued = keyCode;
+				mEventTime = eventTime;
+				
+				boolean newKey = !mEventKeys.containsKey(keyCode);
+				
+				/*
+				 * A key up for a key that we recycled while it was pressed is expected, 
+				 * only a key up that we never saw go down is an anomaly. 
+				 */
+				if (!removeDiscarded(keyCode) && !isKeyDown && newKey) {
+					reportAnomaly(FlightRecorder.ANOMALY_ORPHAN_UP, keyCode, policyFlags, eventTime);
+				}
+				
+				initiateEventKey(keyCode, isKeyDown, policyFlags, metaState, downTime);
+				
+				if (isKeyDown) {
+					if (state == State.ONGOING && !newKey) {
+						if(Common.debug()) Log.d(TAG, "Registering new tap event");
+						
+						mTapCount += 1;
+						
+					} else if ((state == State.ONGOING || state == State.INVOKED) && getKeyCount() > 1 && isDownEvent()) {
+						if(Common.debug()) Log.d(TAG, "Registering new combo event");
+						
+						mTapCount = 0;
+						newEvent = true;
+						
+					} else {
+						if(Common.debug()) Log.d(TAG, "Registering new single event");
+						
+						if (getKeyCount() > 1) {
+							recycleEventKeys(eventTime);
+							initiateEventKey(keyCode, isKeyDown, policyFlags, metaState, downTime);
+						}
+						
+						mTapCount = 0;
+						newEvent = true;
+					}
+
+					if (newEvent) {
+						int keyCount = getKeyCount();
+						
 						/*
-						 * Only include Click and Long Press along with excluding Application Launch on non-pro versions
+						 * The keys are passed in the order they were pressed, 
+						 * the table decides whether that order matters for the chord
 						 */
-						String action = mIsExtended || (i < 2 && (actions.get(i) != null && actions.get(i).matches("^[a-z0-9_]+$"))) ? actions.get(i) : null;
-
-						if (i == 0 || (i % 2) == 0) {
-							mClickActions[x] = action; x += 1;
-							
-						} else {
-							mPressActions[y] = action; y += 1;
+						ComboActions combo = keyCount > ActionTable.MAX_CHORD_KEYS ? null : 
+							mActionTable.get(mEventKeys.getAt(0).getCode(), keyCount > 1 ? mEventKeys.getAt(1).getCode() : 0, keyCount > 2 ? mEventKeys.getAt(2).getCode() : 0);
+						
+						if(Common.debug()) Log.d(TAG, "Getting actions for the key combo '" + mEventKeys.joinKeys(":") + "'");
+						
+						mIsScreenOn = isScreenOn;
+						mIsExtended = mSettings.isPackageUnlocked();
+						mIsCallButton = combo != null && combo.isCallButton();
+						mTapTimeout = mActionTable.getTapTimeout();
+						mPressTimeout = mActionTable.getPressTimeout();
+						mRepeatDelay = mActionTable.getRepeatDelay();
+						mRepeatMinDelay = mActionTable.getRepeatMinDelay();
+						mRepeatSteps = mActionTable.getRepeatSteps();
+						
+						ConditionActions actions = null;
+						
+						if (combo != null && (getKeyCount() == 1 || mIsExtended)) {
+							String appCondition = !isScreenOn ? null : isKeyguardShowing() ? "guard" : mIsExtended ? getPackageNameFromStack(0, StackAction.INCLUDE_HOME) : null;
+							actions = combo.getActions(appCondition, isScreenOn);
 						}
+						
+						mActions = actions != null ? actions : ConditionActions.NONE;
+						
+					} else {
+						mIsCallButton = false;
 					}
-					
-				} else {
-					mIsCallButton = false;
 				}
+				
+			} finally {
+				endRegistering(previousWord, isKeyDown, newEvent);
+			}
+			
+			/*
+			 * Keys released by earlier events should have been given back by now
+			 */
+			if (!isKeyDown && !hasPressedKeys() && !hasState(State.ONGOING)) {
+				mKeyPool.checkLeaks(eventTime);
 			}
 			
+			mFlightRecorder.record(FlightRecorder.TYPE_QUEUED, keyCode, isKeyDown ? 0 : 1, flags, policyFlags, 
+					state.ordinal(), mStateWord.get() & STATE_MASK, mTapCount, downTime, eventTime);
+			
 			return newEvent;
 		}
 	}
 	
-	private List<String> convertOldConfig(List<String> oldConfig) {
-		/*
-		 * This is a tmp method that will be used until
-		 * such time where the config file is updated to produce
-		 * the same output.
-		 * 
-		 * TODO: Remove this method
-		 */
+	/*
+	 * A key is stuck if it goes down again without a key up in between, or if it has 
+	 * been held for longer than any real press. Repeats from the input driver keep the 
+	 * down time of the original press, so those are not reported. 
+	 */
+	private void checkStuckKeys(int keyCode, int policyFlags, long downTime, long eventTime) {
+		EventKey eventKey = mEventKeys.get(keyCode);
+		int discarded = indexOfDiscarded(keyCode);
 		
-		/*
-		 *  - 0 = Click
-		 *  - 1 = Double Click
-		 *  - 2 = Long Press
-		 *  - 3 = Double Long Press
-		 *  - 4 = Triple Click
-		 *  - 5 = Triple Long Press
-		 */
-		Integer[] newLocations = new Integer[]{0,2,1,3,4,5};
-		List<String> newConfig = new ArrayList<String>(newLocations.length);
+		if ((eventKey != null && eventKey.isPressed() && eventKey.getDownTime() != downTime) 
+				|| (discarded >= 0 && mDiscardedDownTimes[discarded] != downTime)) {
+			
+			reportAnomaly(FlightRecorder.ANOMALY_STUCK_KEY, keyCode, policyFlags, eventTime); return;
+		}
 		
-		for (int i=0; i < newLocations.length; i++) {
-			Integer x = newLocations[i];
+		for (int i=0; i < mEventKeys.size(); i++) {
+			eventKey = mEventKeys.getAt(i);
 			
-			newConfig.add(oldConfig.size() > x ? oldConfig.get(x) : null);
+			if (eventKey.isPressed() && eventKey.getCode() != keyCode && (eventTime - eventKey.getDownTime()) > STUCK_KEY_TIMEOUT) {
+				reportAnomaly(FlightRecorder.ANOMALY_STUCK_KEY, eventKey.getCode(), policyFlags, eventTime); return;
+			}
+		}
+	}
+	
+	/*
+	 * The list is only ever a few entries long, and is full only if key ups are lost, 
+	 * in which case the oldest entry is dropped. 
+	 */
+	private void addDiscarded(int keyCode, long downTime) {
+		removeDiscarded(keyCode);
+		
+		if (mDiscardedCount == mDiscardedCodes.length) {
+			removeDiscardedAt(0);
 		}
 		
-		return newConfig;
+		mDiscardedCodes[mDiscardedCount] = keyCode;
+		mDiscardedDownTimes[mDiscardedCount] = downTime;
+		mDiscardedCount += 1;
 	}
 	
-	public Boolean isDownEvent() {
-		Integer count = mEventKeys.size();
+	private int indexOfDiscarded(int keyCode) {
+		for (int i=0; i < mDiscardedCount; i++) {
+			if (mDiscardedCodes[i] == keyCode) {
+				return i;
+			}
+		}
 		
-		for (Integer key : mEventKeys.keySet()) {
-			if (!mEventKeys.get(key).isPressed()) {
+		return -1;
+	}
+	
+	private boolean removeDiscarded(int keyCode) {
+		int index = indexOfDiscarded(keyCode);
+		
+		if (index >= 0) {
+			removeDiscardedAt(index); return true;
+		}
+		
+		return false;
+	}
+	
+	private void removeDiscardedAt(int index) {
+		mDiscardedCount -= 1;
+		
+		System.arraycopy(mDiscardedCodes, index+1, mDiscardedCodes, index, mDiscardedCount - index);
+		System.arraycopy(mDiscardedDownTimes, index+1, mDiscardedDownTimes, index, mDiscardedCount - index);
+	}
+	
+	public boolean isDownEvent() {
+		int count = mEventKeys.size();
+		
+		for (int i=0; i < count; i++) {
+			if (!mEventKeys.getAt(i).isPressed()) {
 				return false;
 			}
 		}
@@ -198,85 +380,365 @@ public final class EventManager extends IEventMediator {
 		return count > 0;
 	}
 	
-	public Integer getTapCount() {
+	public boolean hasPressedKeys() {
+		for (int i=0; i < mEventKeys.size(); i++) {
+			if (mEventKeys.getAt(i).isPressed()) {
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	public int getTapCount() {
 		return mTapCount;
 	}
 	
-	public Long getEventTime() {
+	public long getEventTime() {
 		return mEventTime;
 	}
 	
-	public Integer getKeyCount() {
+	public int getKeyCount() {
 		return mEventKeys.size();
 	}
 	
-	public EventKey getKey(Integer keyCode) {
+	public EventKey getKey(int keyCode) {
 		return mEventKeys.get(keyCode);
 	}
 	
-	public EventKey getKeyAt(Integer keyIndex) {
+	/**
+	 * Get a key for use outside of the event lock, like across waitForChange(). 
+	 * The instance is not reused for another key until it is given back with unholdKey(). 
+	 */
+	public EventKey holdKey(int keyCode) {
+		synchronized(mEventLock) {
+			EventKey eventKey = mEventKeys.get(keyCode);
+			
+			if (eventKey != null) {
+				eventKey.hold();
+			}
+			
+			return eventKey;
+		}
+	}
+	
+	public void unholdKey(EventKey eventKey) {
+		if (eventKey != null) {
+			eventKey.unhold();
+		}
+	}
+	
+	public EventKey getKeyAt(int keyIndex) {
 		return mEventKeys.getAt(keyIndex);
 	}
 	
-	public Boolean isCallButton() {
+	public boolean isCallButton() {
 		return mIsCallButton;
 	}
 	
-	public Boolean isExtended() {
+	public boolean isExtended() {
 		return mIsExtended;
 	}
 	
-	public Boolean isScreenOn() {
+	public boolean isScreenOn() {
 		return mIsScreenOn;
 	}
 	
-	public Integer getPressTimeout() {
+	public int getPressTimeout() {
 		return mPressTimeout;
 	}
 	
-	public Integer getTapTimeout() {
+	public int getTapTimeout() {
 		return mTapTimeout;
 	}
+	
+
+	/**
+	 * Decide what to do with a key that has reached the dispatching hook. 
+	 * This waits on the long press or tap timeout of the ongoing event, and then invokes 
+	 * the matching action, or the original key if there is nothing configured for it. 
+	 * 
+	 * This is the dispatcher half of the key handling, while registerKey() is the queueing half. 
+	 * It only talks to the system through the clock, injector and mediator, so that it can 
+	 * be driven by a simulated dispatcher as well. 
+	 * 
+	 * Everything about the event is read before the CAS that claims it, see the state transitions. 
+	 * 
+	 * @param key
+	 *     The dispatched key, held by the caller, see holdKey()
+	 * 
+	 * @param stateWord
+	 *     A word from getStateWord(), read after the key was held
+	 * 
+	 * @param dispatchStart
+	 *     System.nanoTime() from when the dispatcher got the key
+	 * 
+	 * @return
+	 *     True if the original event should be parsed on to the dispatcher, 
+	 *     which is only the case when the default long press starts
+	 */
+	public boolean dispatchKey(EventKey key, int stateWord, boolean down, long dispatchStart) {
+		String tag = Common.debug() ? TAG + "#Dispatching/" + (down ? "Down " : "Up ") + key.getCode() + "(" + mTapCount + ") " : TAG;
+		
+		if (stateOf(stateWord) == State.ONGOING) {
+			if (down) {
+				if(Common.debug()) Log.d(tag, "Waiting on long press timeout");
+				
+				/*
+				 * Long Press timeout
+				 */
+				boolean continueEvent = waitForChange(stateWord, mPressTimeout);
+				long waitEnd = System.nanoTime();
+				
+				LatencyTracker.record(LatencyTracker.STAGE_DISPATCH_WAIT, dispatchStart);
+				
+				/*
+				 * The CAS fails if the queueing thread registered anything since we read the state, 
+				 * in which case that newer event takes over. 
+				 */
+				int tapCount = mTapCount;
+				boolean isScreenOn = mIsScreenOn;
+				boolean isCallButton = mIsCallButton;
+				long eventTime = mEventTime;
+				int repeatDelay = mRepeatDelay;
+				int repeatMinDelay = mRepeatMinDelay;
+				int repeatSteps = mRepeatSteps;
+				KeyAction eventAction = getAction(ActionType.PRESS);
+				
+				if (continueEvent && key.isLastQueued() && key.isPressed() && compareAndSetState(stateWord, State.INVOKED)) {
+					LatencyTracker.record(LatencyTracker.STAGE_ACTION_DECISION, waitEnd);
+					
+					if (eventAction == null || !handleKeyAction(eventAction, ActionType.PRESS, tapCount, isScreenOn, isCallButton, eventTime, 0)) {
+						if (compareAndSetState(stateWord(stateWord, State.INVOKED), State.REPEATING)) {
+							if(Common.debug()) Log.d(tag, "Invoking default long press action");
+							
+							key.invoke();
+							
+							/*
+							 * When we disallow applications from getting the event, we also disable repeats. 
+							 * So we inject them our self, from a timer thread that does not hold up the dispatcher. 
+							 */
+							mKeyRepeater.start(key, stateWord(stateWord, State.REPEATING), repeatDelay, repeatMinDelay, repeatSteps, !isScreenOn);
+							
+							return true;
+						}
+						
+					} else if (Common.debug()) {
+						Log.d(tag, "Invoking custom long press action");
+					}
+				}
+				
+			} else {
+				boolean continueEvent = true;
+				
+				if (hasMoreActions()) {
+					if(Common.debug()) Log.d(tag, "Waiting on tap timeout");
+					
+					/*
+					 * Tap timeout
+					 */
+					continueEvent = waitForChange(stateWord, mTapTimeout);
+				}
+				
+				long waitEnd = System.nanoTime();
+				
+				LatencyTracker.record(LatencyTracker.STAGE_DISPATCH_WAIT, dispatchStart);
+
+				int tapCount = mTapCount;
+				boolean isScreenOn = mIsScreenOn;
+				boolean isCallButton = mIsCallButton;
+				long eventTime = mEventTime;
+				KeyAction eventAction = getAction(ActionType.CLICK);
+
+				if (continueEvent && key.isLastQueued() && !key.isPressed() && compareAndSetState(stateWord, State.INVOKED)) {
+					if(Common.debug()) Log.d(tag, "Invoking Click Event");
+					if(Common.debug()) Log.d(tag, "Using action '" + (eventAction != null ? eventAction : "") + "'");
+					
+					LatencyTracker.record(LatencyTracker.STAGE_ACTION_DECISION, waitEnd);
+					
+					if (!handleKeyAction(eventAction, ActionType.CLICK, tapCount, isScreenOn, isCallButton, eventTime, tapCount == 0 ? key.getFlags() : 0)) {
+						key.invokeAndRelease();
+					}
+				}
+			}
+			
+		} else if (!down) {
+			key.release();
+		}
+		
+		/*
+		 * The event is done once the last key is up and nothing is waiting for more taps. 
+		 * A new tap would have moved the state back to ONGOING. 
+		 */
+		if (!down && !hasPressedKeys() && !hasState(State.ONGOING)) {
+			mWakeManager.release(WakeManager.HOLDER_EVENT);
+		}
+		
+		return false;
+	}
 
-	public String getAction(ActionType type) {
+	public KeyAction getAction(ActionType type) {
 		switch (type) {
-			case PRESS: return mTapCount < mPressActions.length ? mPressActions[mTapCount] : null;
-			default: return mTapCount < mClickActions.length ? mClickActions[mTapCount] : null;
+			case PRESS: return mActions.getPressAction(mTapCount, mIsExtended);
+			default: return mActions.getClickAction(mTapCount, mIsExtended);
 		}
 	}
 	
-	public Boolean hasMoreActions() {
-		for (int i=mTapCount+1; i < 3; i++) {
-			if (mClickActions[i] != null || mPressActions[i] != null) {
-				return true;
+	public boolean hasMoreActions() {
+		return mActions.hasMoreActions(mTapCount, mIsExtended);
+	}
+	
+	/*
+	 * Move to a new generation in the REGISTERING state, and return the word from before. 
+	 * The dispatcher may CAS the word at the same time, so retry until our update goes through. 
+	 * Once this returns, every CAS against an older word fails. 
+	 */
+	private int beginRegistering() {
+		for (;;) {
+			int word = mStateWord.get();
+			
+			if (mStateWord.compareAndSet(word, ((word >>> STATE_BITS) + 1) << STATE_BITS | State.REGISTERING.ordinal())) {
+				return word;
 			}
 		}
-		
-		return false;
 	}
 	
-	public State setState(State state) {
-		State oldState = mState;
-		mState = state;
+	/*
+	 * Move on to the next generation and apply the registerKey() transitions to the state from before 
+	 * beginRegistering(). Nobody else changes a REGISTERING word, so this does not need a CAS. 
+	 */
+	private void endRegistering(int previousWord, boolean isKeyDown, boolean newEvent) {
+		int state = previousWord & STATE_MASK;
+		
+		if (isKeyDown && (newEvent || state != State.REPEATING.ordinal())) {
+			state = State.ONGOING.ordinal();
+		}
 		
-		return oldState;
+		synchronized(mChangeLock) {
+			mStateWord.set(((previousWord >>> STATE_BITS) + 2) << STATE_BITS | state);
+			mChangeLock.notifyAll();
+		}
 	}
 	
-	public Boolean hasState(State... states) {
-		for (int i=0; i < states.length; i++) {
-			if (mState == states[i]) {
-				return true;
+	/*
+	 * The current word, once it is no longer REGISTERING. The registering thread holds 
+	 * the event lock, and gets the raw word so that it does not wait on itself. 
+	 */
+	private int settledWord() {
+		int word = mStateWord.get();
+		
+		if ((word & STATE_MASK) == State.REGISTERING.ordinal() && !Thread.holdsLock(mEventLock)) {
+			synchronized(mChangeLock) {
+				while (((word = mStateWord.get()) & STATE_MASK) == State.REGISTERING.ordinal()) {
+					try {
+						mChangeLock.wait();
+						
+					} catch (InterruptedException e) {}
+				}
 			}
 		}
 		
+		return word;
+	}
+	
+	public static State stateOf(int stateWord) {
+		return STATES[stateWord & STATE_MASK];
+	}
+	
+	/**
+	 * Get the current state word. This should be parsed to 
+	 * waitForChange() and compareAndSetState() by the dispatcher.
+	 */
+	public int getStateWord() {
+		return settledWord();
+	}
+	
+	public State getState() {
+		return stateOf(settledWord());
+	}
+	
+	/**
+	 * Change the state, but only if nothing has changed since <code>expectedWord</code> was read. 
+	 * 
+	 * @return
+	 *     False if a new key was registered or the state was changed by another thread
+	 */
+	public boolean compareAndSetState(int expectedWord, State state) {
+		if (mStateWord.compareAndSet(expectedWord, stateWord(expectedWord, state))) {
+			mFlightRecorder.record(FlightRecorder.TYPE_INVOKED, mLastQueued, -1, 0, 0, 
+					expectedWord & STATE_MASK, state.ordinal(), mTapCount, 0L, mEventTime);
+			
+			return true;
+		}
+		
 		return false;
 	}
 	
-	public Integer getKeyCodePosition(Integer keyCode) {
+	/**
+	 * Get the word that represents <code>state</code> within the same generation as <code>stateWord</code>
+	 */
+	public static int stateWord(int stateWord, State state) {
+		return (stateWord & ~STATE_MASK) | state.ordinal();
+	}
+	
+	/*
+	 * Fixed argument versions, so that checking the state 
+	 * does not allocate a varargs array on each key event
+	 */
+	public boolean hasState(State state) {
+		return (settledWord() & STATE_MASK) == state.ordinal();
+	}
+	
+	public boolean hasState(State state1, State state2) {
+		int state = settledWord() & STATE_MASK;
+		
+		return state == state1.ordinal() || state == state2.ordinal();
+	}
+	
+	/*
+	 * Record an anomaly and write the flight recorder to a file, so that it can be 
+	 * inspected from the log viewer. The file is written on the ActionExecutor, 
+	 * at most once every 10 seconds, to keep disk IO away from the input thread. 
+	 */
+	private void reportAnomaly(int anomaly, int keyCode, int policyFlags, long eventTime) {
+		int state = mStateWord.get() & STATE_MASK;
+		
+		mFlightRecorder.record(FlightRecorder.TYPE_ANOMALY, keyCode, -1, anomaly, policyFlags, state, state, mTapCount, 0L, eventTime);
+		
+		if (eventTime - mLastAnomalyDump > 10000 || mLastAnomalyDump == 0L) {
+			final byte[] data = mFlightRecorder.dump();
+			
+			mLastAnomalyDump = eventTime;
+			
+			mActionExecutor.execute(ActionExecutor.LANE_LAUNCH, mFlightRecorder, new Runnable() {
+				public void run() {
+					FileOutputStream out = null;
+					
+					try {
+						out = new FileOutputStream(Common.LogFile.FLIGHT, false);
+						out.write(data);
+						
+						Common.LogFile.FLIGHT.setReadable(true, false);
+						
+					} catch (IOException e) {
+						Log.e(TAG, e.getMessage(), e);
+						
+					} finally {
+						try {
+							out.close();
+							
+						} catch (Throwable e) {}
+					}
+				}
+			});
+		}
+	}
+	
+	public int getKeyCodePosition(int keyCode) {
 		return mEventKeys.indexOf(keyCode);
 	}
 	
-	public Integer getLastQueuedKeyCode() {
+	public int getLastQueuedKeyCode() {
 		return mLastQueued;
 	}
 	
@@ -286,19 +748,34 @@ public final class EventManager extends IEventMediator {
 		}
 	}
 	
-	public Boolean waitForChange(Integer timeout) {
-		Long lastEventTime = mEventTime;
+	/**
+	 * Block the current thread until either the timeout expires or a new key event 
+	 * has been registered. Rather than polling, this waits on a lock that registerKey() 
+	 * signals, so the waiting thread only wakes up when something actually happens. 
+	 * 
+	 * @param stateWord
+	 *     A word from getStateWord() that was read before deciding to wait
+	 * 
+	 * @return
+	 *     True if the timeout expired without any new events
+	 */
+	public boolean waitForChange(int stateWord, int timeout) {
+		int generation = stateWord >>> STATE_BITS;
 		
-		do {
-			try {
-				Thread.sleep(1);
-				
-			} catch (Throwable e) {}
+		synchronized(mChangeLock) {
+			long deadline = mClock.uptimeMillis() + timeout;
+			long remaining = timeout;
 			
-			timeout -= 1;
+			while (generation == (mStateWord.get() >>> STATE_BITS) && remaining > 0) {
+				try {
+					mClock.waitOn(mChangeLock, remaining);
+					
+				} catch (InterruptedException e) {}
+				
+				remaining = deadline - mClock.uptimeMillis();
+			}
 			
-		} while (lastEventTime.equals(mEventTime) && timeout > 0);
-		
-		return timeout <= 0;
+			return generation == (mStateWord.get() >>> STATE_BITS);
+		}
 	}
 }
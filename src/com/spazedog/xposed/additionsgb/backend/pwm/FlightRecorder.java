@@ -0,0 +1,238 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import android.util.Log;
+
+/**
+ * An always-on recorder of the last key events handled by the EventManager.
+ *
+ * Each record is stored across a set of preallocated primitive arrays that are used as a ring,
+ * so recording an event never allocates anything. Only dump() allocates, which is done when
+ * the application asks for the records or when the EventManager detects an anomaly.
+ *
+ * Binary format (big endian, as written by DataOutputStream):
+ *
+ *   Header:  int MAGIC, int VERSION, int record count, long uptime at dump
+ *   Record:  byte type, byte action, byte state before, byte state after,
+ *            int key code, int flags, int policy flags, int tap count,
+ *            long down time, long event time, long recorded time
+ *
+ * Records are written oldest first.
+ */
+public final class FlightRecorder {
+	public static final String TAG = FlightRecorder.class.getName();
+
+	public static final int MAGIC = 0x58414652; // XAFR
+	public static final int VERSION = 1;
+
+	public static final int CAPACITY = 256;
+
+	private static final FlightRecorder sInstance = new FlightRecorder();
+
+	/*
+	 * Record types
+	 */
+	public static final int TYPE_QUEUED = 0;		// registerKey()
+	public static final int TYPE_INVOKED = 1;		// Dispatcher changed the state
+	public static final int TYPE_ANOMALY = 2;		// Something that should not happen
+
+	/*
+	 * Anomaly codes, stored in the flags field of TYPE_ANOMALY records
+	 */
+	public static final int ANOMALY_STUCK_KEY = 1;	// A key went down again without a key up, or was held for too long
+	public static final int ANOMALY_ORPHAN_UP = 2;	// A key up without a registered key down
+
+	/*
+	 * A set of record arrays, used both for the ring and for copies of it
+	 */
+	private static final class Records {
+		final byte[] mTypes = new byte[CAPACITY];
+		final byte[] mActions = new byte[CAPACITY];
+		final byte[] mStatesBefore = new byte[CAPACITY];
+		final byte[] mStatesAfter = new byte[CAPACITY];
+		final int[] mKeyCodes = new int[CAPACITY];
+		final int[] mFlags = new int[CAPACITY];
+		final int[] mPolicyFlags = new int[CAPACITY];
+		final int[] mTapCounts = new int[CAPACITY];
+		final long[] mDownTimes = new long[CAPACITY];
+		final long[] mEventTimes = new long[CAPACITY];
+		final long[] mRecordTimes = new long[CAPACITY];
+
+		void copyTo(Records records) {
+			System.arraycopy(mTypes, 0, records.mTypes, 0, CAPACITY);
+			System.arraycopy(mActions, 0, records.mActions, 0, CAPACITY);
+			System.arraycopy(mStatesBefore, 0, records.mStatesBefore, 0, CAPACITY);
+			System.arraycopy(mStatesAfter, 0, records.mStatesAfter, 0, CAPACITY);
+			System.arraycopy(mKeyCodes, 0, records.mKeyCodes, 0, CAPACITY);
+			System.arraycopy(mFlags, 0, records.mFlags, 0, CAPACITY);
+			System.arraycopy(mPolicyFlags, 0, records.mPolicyFlags, 0, CAPACITY);
+			System.arraycopy(mTapCounts, 0, records.mTapCounts, 0, CAPACITY);
+			System.arraycopy(mDownTimes, 0, records.mDownTimes, 0, CAPACITY);
+			System.arraycopy(mEventTimes, 0, records.mEventTimes, 0, CAPACITY);
+			System.arraycopy(mRecordTimes, 0, records.mRecordTimes, 0, CAPACITY);
+		}
+	}
+
+	private final Records mRecords = new Records();
+
+	/*
+	 * Total number of records written, the next slot is mCount % CAPACITY
+	 */
+	private long mCount = 0;
+
+	/**
+	 * There is only one EventManager in the system process, so the recorder is shared
+	 * in order for the XService to be able to dump it.
+	 */
+	public static FlightRecorder getInstance() {
+		return sInstance;
+	}
+
+	private FlightRecorder() {}
+
+	public synchronized void record(int type, int keyCode, int action, int flags, int policyFlags, int stateBefore, int stateAfter, int tapCount, long downTime, long eventTime) {
+		Records records = mRecords;
+		int slot = (int) (mCount++ % CAPACITY);
+
+		records.mTypes[slot] = (byte) type;
+		records.mActions[slot] = (byte) action;
+		records.mStatesBefore[slot] = (byte) stateBefore;
+		records.mStatesAfter[slot] = (byte) stateAfter;
+		records.mKeyCodes[slot] = keyCode;
+		records.mFlags[slot] = flags;
+		records.mPolicyFlags[slot] = policyFlags;
+		records.mTapCounts[slot] = tapCount;
+		records.mDownTimes[slot] = downTime;
+		records.mEventTimes[slot] = eventTime;
+		records.mRecordTimes[slot] = android.os.SystemClock.uptimeMillis();
+	}
+
+	/**
+	 * Write the current records into the binary format described above.
+	 *
+	 * record() is called while handling keys, so the ring is only copied while holding the lock.
+	 * Everything that allocates or formats is done on the copy afterwards.
+	 */
+	public byte[] dump() {
+		Records records = new Records();
+		long count;
+		long dumpTime;
+
+		synchronized (this) {
+			mRecords.copyTo(records);
+			count = mCount;
+			dumpTime = android.os.SystemClock.uptimeMillis();
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		int size = (int) Math.min(count, CAPACITY);
+		long first = count - size;
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(size);
+			out.writeLong(dumpTime);
+
+			for (long i=first; i < count; i++) {
+				int slot = (int) (i % CAPACITY);
+
+				out.writeByte(records.mTypes[slot]);
+				out.writeByte(records.mActions[slot]);
+				out.writeByte(records.mStatesBefore[slot]);
+				out.writeByte(records.mStatesAfter[slot]);
+				out.writeInt(records.mKeyCodes[slot]);
+				out.writeInt(records.mFlags[slot]);
+				out.writeInt(records.mPolicyFlags[slot]);
+				out.writeInt(records.mTapCounts[slot]);
+				out.writeLong(records.mDownTimes[slot]);
+				out.writeLong(records.mEventTimes[slot]);
+				out.writeLong(records.mRecordTimes[slot]);
+			}
+
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Render a binary dump as text, used by the log viewer
+	 *
+	 * @return
+	 *     The decoded records, or null if the data is not a valid dump
+	 */
+	public static String decode(byte[] data) {
+		if (data == null || data.length < 20) {
+			return null;
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+		StringBuilder builder = new StringBuilder();
+		EventManager.State[] states = EventManager.State.values();
+
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				return null;
+			}
+
+			int size = in.readInt();
+			long dumpTime = in.readLong();
+
+			for (int i=0; i < size; i++) {
+				int type = in.readByte();
+				int action = in.readByte();
+				int stateBefore = in.readByte();
+				int stateAfter = in.readByte();
+				int keyCode = in.readInt();
+				int flags = in.readInt();
+				int policyFlags = in.readInt();
+				int tapCount = in.readInt();
+				long downTime = in.readLong();
+				long eventTime = in.readLong();
+				long recordTime = in.readLong();
+
+				builder.append("-").append(dumpTime - recordTime).append("ms ");
+
+				switch (type) {
+					case TYPE_QUEUED: builder.append("QUEUED "); break;
+					case TYPE_INVOKED: builder.append("INVOKED "); break;
+					case TYPE_ANOMALY:
+						builder.append(flags == ANOMALY_STUCK_KEY ? "STUCK KEY " : flags == ANOMALY_ORPHAN_UP ? "ORPHAN UP " : "ANOMALY ");
+				}
+
+				builder.append(action == 0 ? "Down " : action == 1 ? "Up " : "").append(keyCode)
+					.append(" tap=").append(tapCount)
+					.append(" state=").append(stateBefore >= 0 && stateBefore < states.length ? states[stateBefore].name() : "?")
+					.append("->").append(stateAfter >= 0 && stateAfter < states.length ? states[stateAfter].name() : "?");
+
+				if (type != TYPE_ANOMALY) {
+					builder.append(" flags=0x").append(Integer.toHexString(flags));
+				}
+
+				builder.append(" policy=0x").append(Integer.toHexString(policyFlags));
+
+				if (downTime > 0) {
+					builder.append(" held=").append(eventTime - downTime).append("ms");
+				}
+
+				builder.append("\n");
+			}
+
+		} catch (IOException e) {
+			/*
+			 * Show whatever was decoded before the data ended
+			 */
+			builder.append("(truncated)\n");
+		}
+
+		return builder.toString();
+	}
+}
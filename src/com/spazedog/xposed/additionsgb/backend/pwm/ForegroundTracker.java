@@ -0,0 +1,179 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+
+import com.spazedog.lib.reflecttools.ReflectClass;
+import com.spazedog.lib.reflecttools.ReflectField;
+import com.spazedog.lib.reflecttools.utils.ReflectException;
+import com.spazedog.xposed.additionsgb.Common;
+
+import de.robv.android.xposed.XC_MethodHook;
+
+/**
+ * Keeps track of the application in the foreground.
+ *
+ * Instead of asking the ActivityManager for the running tasks each time a key event starts,
+ * this hooks the ActivityManagerService whenever it moves focus to a new activity and stores the
+ * package name and task id. Looking up the current application is then a simple memory read.
+ * Both are published together in one immutable Foreground object, so that a reader never sees
+ * the package of one activity along with the task of another.
+ *
+ * It also caches the current home package, which is invalidated whenever packages or
+ * preferred activities change.
+ */
+public final class ForegroundTracker {
+	public static final String TAG = ForegroundTracker.class.getName();
+
+	public static final class Foreground {
+		public final String packageName;
+		public final int taskId;
+
+		private Foreground(String packageName, int taskId) {
+			this.packageName = packageName;
+			this.taskId = taskId;
+		}
+	}
+
+	private final Context mContext;
+
+	private ReflectField mRecordPackage;
+	private ReflectField mRecordTask;
+	private ReflectField mTaskId;
+
+	private volatile Foreground mForeground;
+
+	private volatile String mHomePackage;
+
+	public ForegroundTracker(Context context) {
+		mContext = context;
+
+		try {
+			ReflectClass ams = ReflectClass.forName("com.android.server.am.ActivityManagerService");
+
+			mRecordPackage = ReflectClass.forName("com.android.server.am.ActivityRecord").findField("packageName");
+			mRecordTask = ReflectClass.forName("com.android.server.am.ActivityRecord").findField("task");
+			mTaskId = ReflectClass.forName("com.android.server.am.TaskRecord").findField("taskId");
+
+			ams.inject("setFocusedActivityLocked", hook_setFocusedActivityLocked);
+
+		} catch (ReflectException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+
+		/*
+		 * The home package can change whenever packages are changed or
+		 * when the user picks a new default launcher.
+		 */
+		IntentFilter packageFilter = new IntentFilter();
+		packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+		packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+		packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+		packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+		packageFilter.addDataScheme("package");
+
+		IntentFilter preferredFilter = new IntentFilter();
+		preferredFilter.addAction("android.intent.action.ACTION_PREFERRED_ACTIVITY_CHANGED");
+
+		mContext.registerReceiver(mHomeReceiver, packageFilter);
+		mContext.registerReceiver(mHomeReceiver, preferredFilter);
+
+		/*
+		 * Not all Android versions broadcast preferred activity changes
+		 */
+		for (String className : new String[]{"com.android.server.pm.PackageManagerService", "com.android.server.PackageManagerService"}) {
+			try {
+				ReflectClass pms = ReflectClass.forName(className);
+
+				pms.inject("addPreferredActivity", hook_preferredActivity);
+				pms.inject("replacePreferredActivity", hook_preferredActivity);
+				pms.inject("clearPackagePreferredActivities", hook_preferredActivity);
+
+				break;
+
+			} catch (ReflectException e) {}
+		}
+	}
+
+	private final BroadcastReceiver mHomeReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			mHomePackage = null;
+		}
+	};
+
+	private final XC_MethodHook hook_preferredActivity = new XC_MethodHook() {
+		@Override
+		protected final void afterHookedMethod(final MethodHookParam param) {
+			mHomePackage = null;
+		}
+	};
+
+	/**
+	 * Original Arguments
+	 * 		- ActivityManagerService.setFocusedActivityLocked(ActivityRecord r)
+	 * 		- Marshmallow & Above: ActivityManagerService.setFocusedActivityLocked(ActivityRecord r, String reason)
+	 */
+	private final XC_MethodHook hook_setFocusedActivityLocked = new XC_MethodHook() {
+		@Override
+		protected final void afterHookedMethod(final MethodHookParam param) {
+			Object record = param.args[0];
+
+			if (record != null) {
+				try {
+					String packageName = (String) mRecordPackage.getValueFromReceiver(record);
+					Object task = mRecordTask.getValueFromReceiver(record);
+
+					/*
+					 * Ignore SystemUI, like the stack lookup would
+					 */
+					if (packageName != null && !packageName.equals("com.android.systemui") && task != null) {
+						mForeground = new Foreground(packageName, (Integer) mTaskId.getValueFromReceiver(task));
+					}
+
+				} catch (ReflectException e) {
+					Log.e(TAG, e.getMessage(), e);
+				}
+			}
+		}
+	};
+
+	/**
+	 * Whether the tracker has seen a focus change yet. Until then the caller will have to
+	 * fall back to asking the ActivityManager.
+	 */
+	public boolean isTracking() {
+		return mForeground != null;
+	}
+
+	/**
+	 * @return
+	 *     The application in the foreground, or null if the tracker has not seen a focus change yet
+	 */
+	public Foreground getForeground() {
+		return mForeground;
+	}
+
+	public String getHomePackage() {
+		String homePackage = mHomePackage;
+
+		if (homePackage == null) {
+			Intent intent = new Intent(Intent.ACTION_MAIN);
+			intent.addCategory(Intent.CATEGORY_HOME);
+			ResolveInfo res = mContext.getPackageManager().resolveActivity(intent, 0);
+
+			homePackage = res != null && res.activityInfo != null && !"android".equals(res.activityInfo.packageName) ?
+					res.activityInfo.packageName : "com.android.launcher";
+
+			if(Common.debug()) Log.d(TAG, "Caching home package " + homePackage);
+
+			mHomePackage = homePackage;
+		}
+
+		return homePackage;
+	}
+}
@@ -0,0 +1,125 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import java.util.List;
+
+import android.util.Log;
+import android.view.HapticFeedbackConstants;
+
+import com.spazedog.lib.reflecttools.ReflectMethod;
+import com.spazedog.lib.reflecttools.utils.ReflectException;
+import com.spazedog.xposed.additionsgb.Common;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IRemapSettings;
+import com.spazedog.xposed.additionsgb.configs.Settings;
+
+/**
+ * Performs haptic feedback for the key handling.
+ *
+ * The feedback method (Samsung or stock) is picked once when this is created, and the keys that
+ * should always get feedback are kept in a bitset indexed by key code. The bitset is only rebuilt
+ * when the settings change, so checking a key is a single bit test instead of building a string
+ * and scanning the settings list on each key down.
+ */
+public final class HapticFeedback {
+	public static final String TAG = HapticFeedback.class.getName();
+
+	/*
+	 * Feedback methods for virtual key feedback
+	 */
+	public static final int MODE_STOCK = 0;
+	public static final int MODE_SAMSUNG_V1 = 1;			// performSystemKeyFeedback(KeyEvent)
+	public static final int MODE_SAMSUNG_V2 = 2;			// performSystemKeyFeedback(KeyEvent, Boolean, Boolean)
+
+	/*
+	 * Covers all Android key codes, anything above is never forced
+	 */
+	private static final int MAX_KEYCODE = 512;
+
+	private final int mMode;
+	private final int mVirtualFlag;
+	private final ReflectMethod mKeyFeedbackMethod;
+	private final ReflectMethod mFeedbackMethod;
+
+	/*
+	 * Replaced as a whole whenever the settings change, so readers never see a partial update
+	 */
+	private volatile long[] mForcedKeys = new long[MAX_KEYCODE / 64];
+	private volatile int mDataVersion = -1;
+
+	/**
+	 * @param mode
+	 *     One of the MODE_ constants
+	 *
+	 * @param keyFeedbackMethod
+	 *     The Samsung performSystemKeyFeedback method, or null for MODE_STOCK
+	 *
+	 * @param feedbackMethod
+	 *     PhoneWindowManager.performHapticFeedbackLw
+	 *
+	 * @param virtualFlag
+	 *     The policy flag used to mark virtual keys
+	 */
+	public HapticFeedback(int mode, ReflectMethod keyFeedbackMethod, ReflectMethod feedbackMethod, int virtualFlag) {
+		mMode = keyFeedbackMethod != null ? mode : MODE_STOCK;
+		mKeyFeedbackMethod = keyFeedbackMethod;
+		mFeedbackMethod = feedbackMethod;
+		mVirtualFlag = virtualFlag;
+	}
+
+	/**
+	 * Rebuild the forced key bitset if the settings has changed since the last time
+	 */
+	public void update(IRemapSettings settings) {
+		int version = settings.getDataVersion();
+
+		if (version != mDataVersion) {
+			if(Common.debug()) Log.d(TAG, "Rebuilding the forced haptic key set");
+
+			long[] forcedKeys = new long[MAX_KEYCODE / 64];
+			List<String> keys = settings.getStringArray(Settings.REMAP_LIST_FORCED_HAPTIC, null);
+
+			if (keys != null) {
+				for (String key : keys) {
+					try {
+						int keyCode = Integer.parseInt(key);
+
+						if (keyCode >= 0 && keyCode < MAX_KEYCODE) {
+							forcedKeys[keyCode >>> 6] |= 1L << keyCode;
+						}
+
+					} catch (NumberFormatException e) {}
+				}
+			}
+
+			mForcedKeys = forcedKeys;
+			mDataVersion = version;
+		}
+	}
+
+	public boolean isForced(int keyCode) {
+		return keyCode >= 0 && keyCode < MAX_KEYCODE && (mForcedKeys[keyCode >>> 6] & (1L << keyCode)) != 0;
+	}
+
+	/**
+	 * @param keyEvent
+	 *     The KeyEvent, or the key code on Gingerbread. Only used for HapticFeedbackConstants.VIRTUAL_KEY.
+	 */
+	public void perform(Object keyEvent, int keyCode, int type, int policyFlags) {
+		try {
+			if (type == HapticFeedbackConstants.VIRTUAL_KEY && !isForced(keyCode)) {
+				switch (mMode) {
+					case MODE_SAMSUNG_V1: mKeyFeedbackMethod.invokeOriginal(keyEvent); return;
+					case MODE_SAMSUNG_V2: mKeyFeedbackMethod.invokeOriginal(keyEvent, false, true); return;
+					default:
+						if ((policyFlags & mVirtualFlag) == 0) {
+							return;
+						}
+				}
+			}
+
+			mFeedbackMethod.invokeOriginal(null, type, false);
+
+		} catch (ReflectException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,268 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import net.dinglisch.android.tasker.TaskerIntent;
+import android.content.Intent;
+import android.util.Log;
+import android.view.KeyEvent;
+
+import com.spazedog.xposed.additionsgb.Common;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator;
+
+/**
+ * A pre-parsed key action.
+ *
+ * The action strings from the remap configuration are parsed once when the ActionTable is built,
+ * so that executing an action is a single virtual call instead of matching and parsing
+ * the string each time a key is handled.
+ */
+public abstract class KeyAction {
+	public static final String TAG = KeyAction.class.getName();
+
+	/*
+	 * Action types, used to group latency statistics
+	 */
+	public static final int TYPE_DISPATCH = 0;
+	public static final int TYPE_LAUNCHER = 1;
+	public static final int TYPE_CUSTOM = 2;
+	public static final int TYPE_TASKER = 3;
+	public static final int TYPE_SHORTCUT = 4;
+
+	public static enum Custom { DISABLED, TORCH, POWERMENU, RECENTAPPS, SCREENSHOT, FLIPLEFT, FLIPRIGHT, FLIPTOGGLE, PREVIOUSAPP, KILLAPP, GUARDDISMISS }
+
+	private static final Map<String, Custom> CUSTOM_ACTIONS = new HashMap<String, Custom>();
+
+	static {
+		for (Custom custom : Custom.values()) {
+			CUSTOM_ACTIONS.put(custom.name().toLowerCase(Locale.US), custom);
+		}
+	}
+
+	private final String mAction;
+
+	protected KeyAction(String action) {
+		mAction = action;
+	}
+
+	/**
+	 * Parse an action string from the remap configuration
+	 *
+	 * @return
+	 *     The compiled action, or null if the string is empty or cannot be parsed
+	 */
+	public static KeyAction parse(String action) {
+		String type = Common.actionType(action);
+
+		if (type == null) {
+			return null;
+
+		} else if ("dispatch".equals(type)) {
+			try {
+				return new Dispatch(action, Integer.parseInt(action));
+
+			} catch (NumberFormatException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+
+		} else if ("launcher".equals(type)) {
+			return new Launcher(action);
+
+		} else if ("tasker".equals(type)) {
+			return new Tasker(action, action.replace("tasker:", ""));
+
+		} else if ("shortcut".equals(type)) {
+			try {
+				Intent intent = Intent.parseUri(action.substring(action.indexOf(':', "shortcut".length()+1)+1), Intent.URI_INTENT_SCHEME);
+				intent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TASK | Intent.FLAG_ACTIVITY_NEW_TASK);
+
+				return new Shortcut(action, intent);
+
+			} catch (Throwable e) {
+				Log.e(TAG, e.getMessage(), e);
+
+				/*
+				 * Still consume the key, like we would have if it failed on launch
+				 */
+				return new CustomAction(action, Custom.DISABLED);
+			}
+
+		} else {
+			Custom custom = CUSTOM_ACTIONS.get(action);
+
+			return new CustomAction(action, custom != null ? custom : Custom.DISABLED);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Get the ActionExecutor lane that this action should be executed in
+	 */
+	public int getLane() {
+		return ActionExecutor.LANE_LAUNCH;
+	}
+
+	/**
+	 * Get the key used by the ActionExecutor to drop this action, if it is already waiting to be executed
+	 *
+	 * @return
+	 *     The key, or null if every execution counts
+	 */
+	public Object getCoalesceKey() {
+		return this;
+	}
+
+	/**
+	 * @return
+	 *     The key code if this action dispatches a key, otherwise 0
+	 */
+	public int getKeyCode() {
+		return 0;
+	}
+
+	public abstract int getType();
+
+	public abstract void execute(IEventMediator mediator, long eventDownTime, int policyFlags);
+
+	@Override
+	public String toString() {
+		return mAction;
+	}
+
+	public static final class Dispatch extends KeyAction {
+		private final int mKeyCode;
+
+		private Dispatch(String action, int keyCode) {
+			super(action);
+
+			mKeyCode = keyCode;
+		}
+
+		@Override
+		public int getLane() {
+			return mKeyCode == KeyEvent.KEYCODE_POWER ? ActionExecutor.LANE_WAKE : ActionExecutor.LANE_INJECT;
+		}
+
+		/*
+		 * Each dispatch is a key press of it's own, and pressing a key like Power twice 
+		 * does not do the same as pressing it once. 
+		 */
+		@Override
+		public Object getCoalesceKey() {
+			return null;
+		}
+
+		@Override
+		public int getKeyCode() {
+			return mKeyCode;
+		}
+
+		@Override
+		public int getType() {
+			return TYPE_DISPATCH;
+		}
+
+		@Override
+		public void execute(IEventMediator mediator, long eventDownTime, int policyFlags) {
+			mediator.injectInputEvent(mKeyCode, KeyEvent.ACTION_MULTIPLE, eventDownTime, 0, policyFlags, 0);
+		}
+	}
+
+	public static final class Launcher extends KeyAction {
+		private Launcher(String packageName) {
+			super(packageName);
+		}
+
+		@Override
+		public int getType() {
+			return TYPE_LAUNCHER;
+		}
+
+		@Override
+		public void execute(IEventMediator mediator, long eventDownTime, int policyFlags) {
+			mediator.launchPackage(toString());
+		}
+	}
+
+	public static final class Tasker extends KeyAction {
+		private final String mTask;
+
+		private Tasker(String action, String task) {
+			super(action);
+
+			mTask = task;
+		}
+
+		@Override
+		public int getType() {
+			return TYPE_TASKER;
+		}
+
+		@Override
+		public void execute(IEventMediator mediator, long eventDownTime, int policyFlags) {
+			mediator.sendBroadcast(new TaskerIntent(mTask));
+		}
+	}
+
+	public static final class Shortcut extends KeyAction {
+		private final Intent mIntent;
+
+		private Shortcut(String action, Intent intent) {
+			super(action);
+
+			mIntent = intent;
+		}
+
+		@Override
+		public int getType() {
+			return TYPE_SHORTCUT;
+		}
+
+		@Override
+		public void execute(IEventMediator mediator, long eventDownTime, int policyFlags) {
+			/*
+			 * Launch a copy, the receiver is free to change the one it gets
+			 */
+			mediator.launchIntent(new Intent(mIntent));
+		}
+	}
+
+	public static final class CustomAction extends KeyAction {
+		private final Custom mCustom;
+
+		private CustomAction(String action, Custom custom) {
+			super(action);
+
+			mCustom = custom;
+		}
+
+		public Custom getCustom() {
+			return mCustom;
+		}
+
+		@Override
+		public int getType() {
+			return TYPE_CUSTOM;
+		}
+
+		@Override
+		public void execute(IEventMediator mediator, long eventDownTime, int policyFlags) {
+			switch (mCustom) {
+				case TORCH: mediator.toggleFlashLight(); break;
+				case POWERMENU: mediator.openGlobalActionsDialog(); break;
+				case RECENTAPPS: mediator.openRecentAppsDialog(); break;
+				case SCREENSHOT: mediator.takeScreenshot(); break;
+				case FLIPLEFT: mediator.freezeRotation( mediator.getNextRotation(true) ); break;
+				case FLIPRIGHT: mediator.freezeRotation( mediator.getNextRotation(false) ); break;
+				case FLIPTOGGLE: mediator.toggleRotationLock(); break;
+				case PREVIOUSAPP: mediator.togglePreviousApplication(); break;
+				case KILLAPP: mediator.killForegroundApplication(); break;
+				case GUARDDISMISS: mediator.keyGuardDismiss(); break;
+				case DISABLED:
+			}
+		}
+	}
+}
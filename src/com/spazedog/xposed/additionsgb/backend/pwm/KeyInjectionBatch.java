@@ -0,0 +1,114 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import java.util.Arrays;
+
+import android.view.KeyEvent;
+
+/*
+ * A reusable sequence of key events that should be injected in one pass,
+ * like the combo downs followed by the main key and it's up event.
+ *
+ * Everything is kept in primitive arrays, so that a batch can be filled and
+ * injected over and over without allocating anything but the KeyEvent objects themselves.
+ * A batch is not thread safe, use IEventMediator.obtainInjectionBatch() to get one for the current thread.
+ */
+public final class KeyInjectionBatch {
+
+	private int mSize = 0;
+
+	private int[] mKeyCodes;
+	private int[] mActions;
+	private long[] mDownTimes;
+	private int[] mRepeatCounts;
+	private int[] mFlags;
+	private int[] mMetaStates;
+
+	public KeyInjectionBatch() {
+		this(8);
+	}
+
+	public KeyInjectionBatch(int capacity) {
+		mKeyCodes = new int[capacity];
+		mActions = new int[capacity];
+		mDownTimes = new long[capacity];
+		mRepeatCounts = new int[capacity];
+		mFlags = new int[capacity];
+		mMetaStates = new int[capacity];
+	}
+
+	/**
+	 * Add a key event to the batch. ACTION_MULTIPLE is added as a down event followed by an up event.
+	 *
+	 * @param downTime
+	 *     The down time of the event, or 0 to use the injection time
+	 */
+	public KeyInjectionBatch add(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState) {
+		if (action == KeyEvent.ACTION_MULTIPLE) {
+			append(keyCode, KeyEvent.ACTION_DOWN, downTime, repeatCount, flags, metaState);
+			append(keyCode, KeyEvent.ACTION_UP, downTime, repeatCount, flags, metaState);
+
+		} else {
+			append(keyCode, action, downTime, repeatCount, flags, metaState);
+		}
+
+		return this;
+	}
+
+	private void append(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState) {
+		if (mSize == mKeyCodes.length) {
+			int capacity = mSize * 2;
+
+			mKeyCodes = Arrays.copyOf(mKeyCodes, capacity);
+			mActions = Arrays.copyOf(mActions, capacity);
+			mDownTimes = Arrays.copyOf(mDownTimes, capacity);
+			mRepeatCounts = Arrays.copyOf(mRepeatCounts, capacity);
+			mFlags = Arrays.copyOf(mFlags, capacity);
+			mMetaStates = Arrays.copyOf(mMetaStates, capacity);
+		}
+
+		mKeyCodes[mSize] = keyCode;
+		mActions[mSize] = action;
+		mDownTimes[mSize] = downTime;
+		mRepeatCounts[mSize] = repeatCount;
+		mFlags[mSize] = flags;
+		mMetaStates[mSize] = metaState;
+
+		mSize += 1;
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	public void clear() {
+		mSize = 0;
+	}
+
+	public int keyCodeAt(int location) {
+		return mKeyCodes[location];
+	}
+
+	public int actionAt(int location) {
+		return mActions[location];
+	}
+
+	public long downTimeAt(int location) {
+		return mDownTimes[location];
+	}
+
+	public int repeatCountAt(int location) {
+		return mRepeatCounts[location];
+	}
+
+	public int flagsAt(int location) {
+		return mFlags[location];
+	}
+
+	public int metaStateAt(int location) {
+		return mMetaStates[location];
+	}
+}
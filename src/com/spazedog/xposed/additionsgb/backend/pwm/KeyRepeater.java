@@ -0,0 +1,185 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.spazedog.xposed.additionsgb.Common;
+
+/**
+ * Generates key repeats for remapped keys from a timer thread of it's own.
+ *
+ * Repeats used to be created by letting each injected repeat re-enter the dispatching hook,
+ * which then blocked the dispatcher for the repeat delay before injecting the next one.
+ * This instead schedules the repeats on a dedicated thread, so the dispatcher is free
+ * the whole time, and the rate is no longer bound to how fast the dispatch path is.
+ *
+ * The delay between repeats starts at the configured repeat delay and eases down
+ * to the minimum delay over a number of repeats:
+ *
+ *     delay(n) = min + (start - min) * (steps - n)^2 / steps^2,   n < steps
+ *     delay(n) = min,                                             n >= steps
+ *
+ * Repeating stops when stop() is called, which is done by the EventManager
+ * whenever a new key event is registered, including the key up.
+ */
+public final class KeyRepeater {
+	public static final String TAG = KeyRepeater.class.getName();
+
+	private final EventManager mManager;
+	private final WakeManager mWakeManager;
+
+	private final HandlerThread mThread;
+	private final Handler mHandler;
+
+	/*
+	 * Everything below is guarded by mLock. The lock is also held while injecting a repeat,
+	 * so once stop() returns, no more repeats will be injected.
+	 */
+	private final Object mLock = new Object();
+
+	private EventKey mKey;
+	private boolean mHoldWake;
+	private int mStateWord;
+	private int mCount;
+	private long mNextTime;
+
+	private int mStartDelay;
+	private int mMinDelay;
+	private int mSteps;
+
+	private final Runnable mRepeatRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(mLock) {
+				EventKey key = mKey;
+
+				if (key == null) {
+					return;
+
+				} else if (!key.isPressed() || mManager.getStateWord() != mStateWord) {
+					/*
+					 * Should have been stopped by the EventManager already,
+					 * but do not keep repeating on a finished event
+					 */
+					finish(); return;
+				}
+
+				key.invoke();
+
+				/*
+				 * Schedule from the planned time rather than from now, so
+				 * that a late repeat does not push all of the following ones
+				 */
+				mNextTime = Math.max(mNextTime + getDelay(++mCount), SystemClock.uptimeMillis());
+				mHandler.postAtTime(this, mNextTime);
+			}
+		}
+	};
+
+	public KeyRepeater(EventManager manager, WakeManager wakeManager) {
+		mManager = manager;
+		mWakeManager = wakeManager;
+
+		mThread = new HandlerThread("XposedAdditions:KeyRepeater", Process.THREAD_PRIORITY_DISPLAY);
+		mThread.start();
+
+		mHandler = new Handler(mThread.getLooper());
+	}
+
+	private int getDelay(int count) {
+		if (count >= mSteps) {
+			return mMinDelay;
+		}
+
+		long remaining = mSteps - count;
+
+		return (int) (mMinDelay + (mStartDelay - mMinDelay) * remaining * remaining / ((long) mSteps * mSteps));
+	}
+
+	/**
+	 * Start repeating a key
+	 *
+	 * @param key
+	 *     The key to repeat. The first event should already have been sent. 
+	 *     The caller must be holding the key, see EventManager.holdKey().
+	 *
+	 * @param stateWord
+	 *     The EventManager state word of the repeating event. Repeating stops if the state changes.
+	 *
+	 * @param startDelay
+	 *     Delay before the first repeat, and the starting point of the acceleration
+	 *
+	 * @param minDelay
+	 *     The delay that the repeats accelerate towards
+	 *
+	 * @param steps
+	 *     Number of repeats it takes to reach the minimum delay
+	 *
+	 * @param holdWake
+	 *     Keep the device awake until the repeats stop
+	 */
+	public void start(EventKey key, int stateWord, int startDelay, int minDelay, int steps, boolean holdWake) {
+		synchronized(mLock) {
+			if(Common.debug()) Log.d(TAG, "Starting repeats of key " + key.getCode() + " (Delay " + startDelay + "ms to " + minDelay + "ms over " + steps + " repeats)");
+
+			finish();
+
+			if (holdWake) {
+				mWakeManager.acquire(WakeManager.HOLDER_REPEAT);
+			}
+
+			key.hold();
+
+			mKey = key;
+			mHoldWake = holdWake;
+			mStateWord = stateWord;
+			mCount = 0;
+			mStartDelay = startDelay;
+			mMinDelay = Math.max(1, Math.min(minDelay, startDelay));
+			mSteps = Math.max(1, steps);
+			mNextTime = SystemClock.uptimeMillis() + startDelay;
+
+			mHandler.postAtTime(mRepeatRunnable, mNextTime);
+		}
+	}
+
+	/**
+	 * Stop repeating. When this returns, no more repeats will be injected.
+	 */
+	public void stop() {
+		synchronized(mLock) {
+			if (mKey != null) {
+				if(Common.debug()) Log.d(TAG, "Stopping repeats of key " + mKey.getCode() + " after " + mCount + " repeats");
+
+				finish();
+			}
+		}
+	}
+
+	/*
+	 * Must be called while holding mLock
+	 */
+	private void finish() {
+		mHandler.removeCallbacks(mRepeatRunnable);
+
+		if (mKey != null) {
+			mManager.unholdKey(mKey);
+
+			if (mHoldWake) {
+				mWakeManager.release(WakeManager.HOLDER_REPEAT);
+			}
+		}
+
+		mKey = null;
+		mHoldWake = false;
+	}
+
+	public boolean isRepeating() {
+		synchronized(mLock) {
+			return mKey != null;
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import com.spazedog.xposed.additionsgb.tools.LatencyHistogram;
+
+/**
+ * Latency histograms for each stage of the key handling, and for each type of action.
+ * It also keeps track of how long each WakeManager holder keeps the device awake.
+ *
+ * The histograms are recorded inside the system process and read by the
+ * XService, which makes them available to the application through IXService.getLatencyData().
+ */
+public final class LatencyTracker {
+
+	/*
+	 * Stages
+	 */
+	public static final int STAGE_QUEUEING = 0;				// Queueing hook entry to exit
+	public static final int STAGE_INPUT_TO_DISPATCH = 1;	// Key event time to dispatching hook entry
+	public static final int STAGE_DISPATCH_WAIT = 2;		// Dispatching hook entry until waitForChange() returns
+	public static final int STAGE_ACTION_DECISION = 3;		// waitForChange() returns until the action is posted
+	public static final int STAGE_ACTION_QUEUED = 4;		// Action posted until the executor starts it
+
+	/*
+	 * Action types, posted until the action has completed.
+	 * Use action() to get the histogram for a KeyAction type.
+	 */
+	private static final int ACTIONS = 5;
+
+	/*
+	 * Wakelock hold times, use wake() to get the histogram for a WakeManager holder
+	 */
+	private static final int WAKES = 10;
+	public static final int WAKE_TOTAL = 13;
+
+	public static final String[] NAMES = new String[]{
+		"Queueing",
+		"Input to Dispatch",
+		"Dispatch Wait",
+		"Action Decision",
+		"Action Queued",
+		"Action: Dispatch",
+		"Action: Launcher",
+		"Action: Custom",
+		"Action: Tasker",
+		"Action: Shortcut",
+		"Wake: Event",
+		"Wake: Action",
+		"Wake: Repeat",
+		"Wake: Total"
+	};
+
+	private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[NAMES.length];
+
+	static {
+		for (int i=0; i < HISTOGRAMS.length; i++) {
+			HISTOGRAMS[i] = new LatencyHistogram();
+		}
+	}
+
+	/**
+	 * Get the histogram id for one of the KeyAction.TYPE_ constants
+	 */
+	public static int action(int type) {
+		return ACTIONS + type;
+	}
+
+	/**
+	 * Get the histogram id for one of the WakeManager.HOLDER_ constants
+	 */
+	public static int wake(int holder) {
+		return WAKES + holder;
+	}
+
+	/**
+	 * Record the time since <code>startTime</code>, taken from System.nanoTime()
+	 */
+	public static void record(int histogram, long startTime) {
+		HISTOGRAMS[histogram].record((System.nanoTime() - startTime) / 1000L);
+	}
+
+	public static void recordMillis(int histogram, long millis) {
+		HISTOGRAMS[histogram].record(millis * 1000L);
+	}
+
+	public static void reset() {
+		for (int i=0; i < HISTOGRAMS.length; i++) {
+			HISTOGRAMS[i].reset();
+		}
+	}
+
+	/**
+	 * Export all histograms into one array. Each histogram takes up
+	 * LatencyHistogram.EXPORT_SIZE entries, in the same order as NAMES.
+	 */
+	public static long[] export() {
+		long[] data = new long[HISTOGRAMS.length * LatencyHistogram.EXPORT_SIZE];
+
+		for (int i=0; i < HISTOGRAMS.length; i++) {
+			HISTOGRAMS[i].export(data, i * LatencyHistogram.EXPORT_SIZE);
+		}
+
+		return data;
+	}
+
+	/**
+	 * Render exported data as text, used by the diagnostics screen
+	 */
+	public static String format(long[] data) {
+		StringBuilder builder = new StringBuilder();
+
+		for (int i=0; i < NAMES.length && (i+1) * LatencyHistogram.EXPORT_SIZE <= data.length; i++) {
+			int offset = i * LatencyHistogram.EXPORT_SIZE;
+			long count = data[offset];
+
+			builder.append(NAMES[i]).append("\n");
+			builder.append("  count=").append(count);
+
+			if (count > 0) {
+				builder.append(", avg=").append(formatMicros(data[offset+1] / count))
+					.append(", p50<").append(formatMicros(LatencyHistogram.percentile(data, offset, 50)))
+					.append(", p95<").append(formatMicros(LatencyHistogram.percentile(data, offset, 95)))
+					.append(", p99<").append(formatMicros(LatencyHistogram.percentile(data, offset, 99)))
+					.append(", max=").append(formatMicros(data[offset+2]));
+
+				builder.append("\n");
+
+				for (int x=0; x < LatencyHistogram.BUCKETS; x++) {
+					long bucket = data[offset+3+x];
+
+					/*
+					 * Bucket labels use the exact boundaries, like '1.024ms - 2.048ms' 
+					 * for values from 1024µs up to, but not including, 2048µs
+					 */
+					if (bucket > 0) {
+						builder.append("    ").append(formatExact(LatencyHistogram.bucketStart(x)))
+							.append(x < LatencyHistogram.BUCKETS-1 ? " - " + formatExact(LatencyHistogram.bucketLimit(x)) : " and above")
+							.append(": ").append(bucket).append("\n");
+					}
+				}
+
+			} else {
+				builder.append("\n");
+			}
+
+			builder.append("\n");
+		}
+
+		return builder.toString();
+	}
+
+	private static String formatMicros(long micros) {
+		return micros >= 1000L ? (micros / 1000L) + "ms" : micros + "µs";
+	}
+
+	/*
+	 * Like formatMicros(), but without dropping the microseconds
+	 */
+	private static String formatExact(long micros) {
+		if (micros >= 1000L) {
+			long fraction = micros % 1000L;
+
+			return (micros / 1000L) + "." + (fraction < 100L ? fraction < 10L ? "00" : "0" : "") + fraction + "ms";
+		}
+
+		return micros + "µs";
+	}
+}
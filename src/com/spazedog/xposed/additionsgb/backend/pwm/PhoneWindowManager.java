@@ -10,13 +10,11 @@ import android.os.Bundle;
 import android.util.Log;
 import android.view.HapticFeedbackConstants;
 import android.view.KeyEvent;
-import android.view.ViewConfiguration;
 
 import com.spazedog.lib.reflecttools.ReflectClass;
 import com.spazedog.lib.reflecttools.utils.ReflectException;
 import com.spazedog.xposed.additionsgb.Common;
 import com.spazedog.xposed.additionsgb.backend.pwm.EventManager.State;
-import com.spazedog.xposed.additionsgb.backend.pwm.iface.IEventMediator.ActionType;
 import com.spazedog.xposed.additionsgb.backend.pwm.iface.IMediatorSetup.ORIGINAL;
 import com.spazedog.xposed.additionsgb.backend.pwm.iface.IMediatorSetup.SDK;
 import com.spazedog.xposed.additionsgb.backend.service.XServiceManager;
@@ -30,12 +28,21 @@ public final class PhoneWindowManager {
 	private XServiceManager mXServiceManager;
 	private EventManager mEventManager;
 	
-	private Boolean mInterceptKeyCode = false;
+	private boolean mInterceptKeyCode = false;
 	
-	private Boolean mActiveQueueing = false;
-	private Boolean mActiveDispatching = false;
+	private boolean mActiveQueueing = false;
+	private boolean mActiveDispatching = false;
 	
-	private final Object mQueueLock = new Object();
+	/*
+	 * The key held by the dispatcher while handling an event. 
+	 * Dispatching is only invoked from the input dispatcher thread. 
+	 */
+	private EventKey mDispatchingKey = null;
+	
+	/*
+	 * Queueing is only invoked from the input reader thread
+	 */
+	private long mQueueingStart = 0;
 
 	/**
 	 * This is a static initialization method.
@@ -208,21 +215,28 @@ public final class PhoneWindowManager {
 	protected final XC_MethodHook hook_interceptKeyBeforeQueueing = new XC_MethodHook() {
 		@Override
 		protected final void beforeHookedMethod(final MethodHookParam param) {
-			Integer methodVersion = SDK.METHOD_INTERCEPT_VERSION;
+			/*
+			 * This is invoked on every single key event, so keep everything primitive 
+			 * and do not build any strings unless we are actually going to log something. 
+			 */
+			mQueueingStart = System.nanoTime();
+			
+			int methodVersion = SDK.METHOD_INTERCEPT_VERSION;
 			KeyEvent keyEvent = methodVersion == 1 ? null : (KeyEvent) param.args[0];
-			Integer keyCode = (Integer) (methodVersion == 1 ? param.args[3] : keyEvent.getKeyCode());
-			Object keyObject = keyEvent == null ? keyCode : keyEvent;
-			Integer action = (Integer) (methodVersion == 1 ? param.args[1] : keyEvent.getAction());
-			Integer policyFlags = (Integer) (methodVersion == 1 ? param.args[5] : param.args[1]);
-			Integer policyFlagsPos = methodVersion == 1 ? 5 : 1;
-			Integer repeatCount = (Integer) (methodVersion == 1 ? 0 : keyEvent.getRepeatCount());
-			Integer metaState = (Integer) (methodVersion == 1 ? 0 : keyEvent.getMetaState());
-			Boolean isScreenOn = true;
-			Boolean down = action == KeyEvent.ACTION_DOWN;
-			String tag = TAG + "#Queueing/" + (down ? "Down " : "Up ") + keyCode + "(" + mEventManager.getTapCount() + "," + repeatCount+ "):";
+			int keyCode = methodVersion == 1 ? (Integer) param.args[3] : keyEvent.getKeyCode();
+			Object keyObject = keyEvent == null ? param.args[3] : keyEvent;
+			int action = methodVersion == 1 ? (Integer) param.args[1] : keyEvent.getAction();
+			int flags = methodVersion == 1 ? (Integer) param.args[2] : keyEvent.getFlags();
+			int policyFlags = (Integer) (methodVersion == 1 ? param.args[5] : param.args[1]);
+			int policyFlagsPos = methodVersion == 1 ? 5 : 1;
+			int repeatCount = methodVersion == 1 ? 0 : keyEvent.getRepeatCount();
+			int metaState = methodVersion == 1 ? 0 : keyEvent.getMetaState();
+			boolean isScreenOn = true;
+			boolean down = action == KeyEvent.ACTION_DOWN;
+			String tag = Common.debug() ? TAG + "#Queueing/" + (down ? "Down " : "Up ") + keyCode + "(" + mEventManager.getTapCount() + "," + repeatCount+ "):" : TAG;
 			
-			Long downTime = methodVersion == 1 ? (((Long) param.args[0]) / 1000) / 1000 : keyEvent.getDownTime();
-			Long eventTime = android.os.SystemClock.uptimeMillis();
+			long downTime = methodVersion == 1 ? (((Long) param.args[0]) / 1000) / 1000 : keyEvent.getDownTime();
+			long eventTime = android.os.SystemClock.uptimeMillis();
 			
 			if (android.os.Build.VERSION.SDK_INT >= 21) {
 				isScreenOn = (policyFlags & ORIGINAL.FLAG_INTERACTIVE) != 0;
@@ -231,124 +245,121 @@ public final class PhoneWindowManager {
 				isScreenOn = (Boolean) (methodVersion == 1 ? param.args[6] : param.args[2]);
 			}
 			
-			if (down && mEventManager.getKeyCount() > 0) {
-				try {
-					Thread.sleep(1);
-					
-				} catch (InterruptedException e) {}
-			}
+			/*
+			 * Only disable default haptic feedback on 
+			 * our own injected events
+			 */
+			mActiveQueueing = (((KeyEvent) param.args[0]).getFlags() & EventKey.FLAG_CUSTOM) != 0;
 			
-			synchronized(mQueueLock) {
-				/*
-				 * Only disable default haptic feedback on 
-				 * our own injected events
-				 */
-				mActiveQueueing = (((KeyEvent) param.args[0]).getFlags() & EventKey.FLAG_CUSTOM) != 0;
+			// android.os.SystemClock.uptimeMillis
+			
+			/*
+			 * Using KitKat work-around from the InputManager Hook
+			 */
+			boolean isInjected = SDK.MANAGER_HARDWAREINPUT_VERSION > 1 ? 
+					(((KeyEvent) param.args[0]).getFlags() & ORIGINAL.FLAG_INJECTED) != 0 : (policyFlags & ORIGINAL.FLAG_INJECTED) != 0;
+			
+			/*
+			 * The module should not handle injected keys. 
+			 * First of all, we inject keys our self and would create a loop. 
+			 * Second, some software buttons use injection, and we don't remap software keys.
+			 */
+			if (isInjected) {
+				if (down && repeatCount > 0) {
+					/*
+					 * Normally repeated events will not continue to invoke this method. 
+					 * But it seams that repeating an event using injection will. On most devices
+					 * the original methods themselves seams to be handling this just fine, but a few 
+					 * stock ROM's are treating these as both new and repeated events. 
+					 */
+					param.setResult(ORIGINAL.QUEUEING_ALLOW);
+					
+				} else if ((policyFlags & ORIGINAL.FLAG_INJECTED) != 0) {
+					/*
+					 * Some ROM's disables features on injected keys. So let's remove the flag.
+					 */
+					param.args[policyFlagsPos] = policyFlags & ~ORIGINAL.FLAG_INJECTED;
+				}
 				
-				// android.os.SystemClock.uptimeMillis
+			/*
+			 * No need to do anything if the settings part of the module
+			 * has asked for the keys. However, do make sure that the screen is on.
+			 * The display could have been auto turned off while in the settings remap part.
+			 * We don't want to create a situation where users can't turn the screen back on.
+			 */
+			} else if (mInterceptKeyCode && isScreenOn) {
+				if (down) {
+					/*
+					 * Temp. re-activate our hooked feedback to account for ART XposedBridge being broken and does not
+					 * properly invoke original methods when being asked to. It still executes the hook as well. 
+					 */
+					mActiveQueueing = false;
+					mEventManager.performHapticFeedback(keyObject, HapticFeedbackConstants.VIRTUAL_KEY, policyFlags);
+					mActiveQueueing = true;
+					
+				} else if (mEventManager.validateDeviceType(keyObject)) {
+					Bundle bundle = new Bundle();
+					bundle.putInt("keyCode", keyCode);
+					
+					/*
+					 * Send the key back to the settings part
+					 */
+					mXServiceManager.sendBroadcast("keyIntercepter:keyCode", bundle);
+				}
 				
-				/*
-				 * Using KitKat work-around from the InputManager Hook
-				 */
-				Boolean isInjected = SDK.MANAGER_HARDWAREINPUT_VERSION > 1 ? 
-						(((KeyEvent) param.args[0]).getFlags() & ORIGINAL.FLAG_INJECTED) != 0 : (policyFlags & ORIGINAL.FLAG_INJECTED) != 0;
+				param.setResult(ORIGINAL.QUEUEING_REJECT);
 				
+			} else if (mEventManager.validateDeviceType(keyObject)) {
 				/*
-				 * The module should not handle injected keys. 
-				 * First of all, we inject keys our self and would create a loop. 
-				 * Second, some software buttons use injection, and we don't remap software keys.
+				 * Most ROM reboots after holding Power for 8-12s.
+				 * For those missing (like Omate TrueSmart) this is kind of a replacement.
 				 */
-				if (isInjected) {
-					if (down && repeatCount > 0) {
-						/*
-						 * Normally repeated events will not continue to invoke this method. 
-						 * But it seams that repeating an event using injection will. On most devices
-						 * the original methods themselves seams to be handling this just fine, but a few 
-						 * stock ROM's are treating these as both new and repeated events. 
-						 */
-						param.setResult(ORIGINAL.QUEUEING_ALLOW);
-						
-					} else if ((policyFlags & ORIGINAL.FLAG_INJECTED) != 0) {
-						/*
-						 * Some ROM's disables features on injected keys. So let's remove the flag.
-						 */
-						param.args[policyFlagsPos] = policyFlags & ~ORIGINAL.FLAG_INJECTED;
-					}
-					
+				mEventManager.powerHardResetTimer(keyCode, down);
+				
 				/*
-				 * No need to do anything if the settings part of the module
-				 * has asked for the keys. However, do make sure that the screen is on.
-				 * The display could have been auto turned off while in the settings remap part.
-				 * We don't want to create a situation where users can't turn the screen back on.
+				 * Check to see if this is a new event (Which means not a continued tap event or a general key up event).
+				 * The state itself is updated by registerKey(), which keeps it in a single atomic word. 
+				 * There is no locking against the dispatcher, it can only change the state if nothing 
+				 * has been registered since it read it. 
 				 */
-				} else if (mInterceptKeyCode && isScreenOn) {
-					if (down) {
-						/*
-						 * Temp. re-activate our hooked feedback to account for ART XposedBridge being broken and does not
-						 * properly invoke original methods when being asked to. It still executes the hook as well. 
-						 */
-						mActiveQueueing = false;
-						mEventManager.performHapticFeedback(keyObject, HapticFeedbackConstants.VIRTUAL_KEY, policyFlags);
-						mActiveQueueing = true;
-						
-					} else if (mEventManager.validateDeviceType(keyObject)) {
-						Bundle bundle = new Bundle();
-						bundle.putInt("keyCode", keyCode);
-						
-						/*
-						 * Send the key back to the settings part
-						 */
-						mXServiceManager.sendBroadcast("keyIntercepter:keyCode", bundle);
-					}
-					
-					param.setResult(ORIGINAL.QUEUEING_REJECT);
+				if (mEventManager.registerKey(keyCode, down, isScreenOn, flags, policyFlags, metaState, downTime, eventTime)) {
+					if(Common.debug()) Log.d(tag, "Starting a new event");
 					
-				} else if (mEventManager.validateDeviceType(keyObject)) {
 					/*
-					 * Most ROM reboots after holding Power for 8-12s.
-					 * For those missing (like Omate TrueSmart) this is kind of a replacement.
+					 * If the screen is off, it's a good idea to poke the device out of deep sleep. 
+					 * The wakelock is held until the dispatcher has finished handling the event. 
 					 */
-					mEventManager.powerHardResetTimer(keyCode, down);
-					
-					if (mEventManager.registerKey(keyCode, down, isScreenOn, policyFlags, metaState, downTime, eventTime)) {
-						if(Common.debug()) Log.d(tag, "Starting a new event");
+					if (!isScreenOn) {
+						WakeManager wakeManager = mEventManager.getWakeManager();
 						
-						/*
-						 * Check to see if this is a new event (Which means not a continued tap event or a general key up event).
-						 */
-						mEventManager.setState(State.ONGOING);
-						
-						/*
-						 * If the screen is off, it's a good idea to poke the device out of deep sleep. 
-						 */
-						if (!isScreenOn) {								
-							mEventManager.pokeUserActivity(mEventManager.getEventTime(), false);
+						if (!wakeManager.isHeld(WakeManager.HOLDER_EVENT)) {
+							wakeManager.acquire(WakeManager.HOLDER_EVENT);
 						}
 						
-					} else {
-						if(Common.debug()) Log.d(tag, "Continuing ongoing event");
-						
-						if (down && !mEventManager.hasState(State.REPEATING)) {
-							mEventManager.setState(State.ONGOING);
-						}
-					}
-					
-					if (down) {
-						mActiveQueueing = false;
-						mEventManager.performHapticFeedback(keyObject, HapticFeedbackConstants.VIRTUAL_KEY, policyFlags);
-						mActiveQueueing = true;
+						mEventManager.pokeUserActivity(mEventManager.getEventTime(), false);
 					}
 					
-					if(Common.debug()) Log.d(tag, "Parsing the event to the queue (" + mEventManager.mState.name() + ")");
-					
-					param.setResult(ORIGINAL.QUEUEING_ALLOW);
+				} else if (Common.debug()) {
+					Log.d(tag, "Continuing ongoing event");
+				}
+				
+				if (down) {
+					mActiveQueueing = false;
+					mEventManager.performHapticFeedback(keyObject, HapticFeedbackConstants.VIRTUAL_KEY, policyFlags);
+					mActiveQueueing = true;
 				}
+				
+				if(Common.debug()) Log.d(tag, "Parsing the event to the queue (" + mEventManager.getState().name() + ")");
+				
+				param.setResult(ORIGINAL.QUEUEING_ALLOW);
 			}
 		}
 		
 		@Override
 		protected final void afterHookedMethod(final MethodHookParam param) {
 			mActiveQueueing = false;
+			
+			LatencyTracker.record(LatencyTracker.STAGE_QUEUEING, mQueueingStart);
 		}
 	};
 	
@@ -363,16 +374,18 @@ public final class PhoneWindowManager {
 		@TargetApi(Build.VERSION_CODES.HONEYCOMB_MR1)
 		@Override
 		protected final void beforeHookedMethod(final MethodHookParam param) {
-			Integer methodVersion = SDK.METHOD_INTERCEPT_VERSION;
+			long dispatchStart = System.nanoTime();
+			int methodVersion = SDK.METHOD_INTERCEPT_VERSION;
 			KeyEvent keyEvent = methodVersion == 1 ? null : (KeyEvent) param.args[1];
-			Integer keyCode = (Integer) (methodVersion == 1 ? param.args[3] : keyEvent.getKeyCode());
-			Integer action = (Integer) (methodVersion == 1 ? param.args[1] : keyEvent.getAction());
-			Integer policyFlags = (Integer) (methodVersion == 1 ? param.args[7] : param.args[2]);
-			Integer policyFlagsPos = methodVersion == 1 ? 7 : 2;
-			Integer repeatCount = (Integer) (methodVersion == 1 ? param.args[6] : keyEvent.getRepeatCount());
-			Boolean down = action == KeyEvent.ACTION_DOWN;
-			EventKey key = mEventManager.getKey(keyCode);
-			String tag = TAG + "#Dispatching/" + (down ? "Down " : "Up ") + keyCode + "(" + mEventManager.getTapCount() + "," + repeatCount+ "):";
+			int keyCode = methodVersion == 1 ? (Integer) param.args[3] : keyEvent.getKeyCode();
+			int action = methodVersion == 1 ? (Integer) param.args[1] : keyEvent.getAction();
+			int policyFlags = (Integer) (methodVersion == 1 ? param.args[7] : param.args[2]);
+			int policyFlagsPos = methodVersion == 1 ? 7 : 2;
+			int repeatCount = methodVersion == 1 ? (Integer) param.args[6] : keyEvent.getRepeatCount();
+			boolean down = action == KeyEvent.ACTION_DOWN;
+			EventKey key = mDispatchingKey = mEventManager.holdKey(keyCode);
+			int stateWord = mEventManager.getStateWord();
+			String tag = Common.debug() ? TAG + "#Dispatching/" + (down ? "Down " : "Up ") + keyCode + "(" + mEventManager.getTapCount() + "," + repeatCount+ "):" : TAG;
 			
 			/*
 			 * Only disable default haptic feedback on 
@@ -383,106 +396,40 @@ public final class PhoneWindowManager {
 			/*
 			 * Using KitKat work-around from the InputManager Hook
 			 */
-			Boolean isInjected = SDK.MANAGER_HARDWAREINPUT_VERSION > 1 ? 
+			boolean isInjected = SDK.MANAGER_HARDWAREINPUT_VERSION > 1 ? 
 					(((KeyEvent) param.args[1]).getFlags() & ORIGINAL.FLAG_INJECTED) != 0 : (policyFlags & ORIGINAL.FLAG_INJECTED) != 0;
 			
 			if (isInjected) {
 				/*
-				 * When we disallow applications from getting the event, we also disable repeats. 
-				 * This is a hack where we create a controlled injection loop to simulate repeats. 
-				 * 
-				 * If we did not have to support GB, then we could have just returned the timeout to force repeat without global dispatching. 
-				 * But since we have GB to think about, this is the best solution. 
+				 * Repeats of our own keys are injected by the KeyRepeater thread, 
+				 * so there is nothing to wait for here. Just let them pass through. 
 				 */
-				if (down && key != null && key.getRepeatCount() > 0 && mEventManager.hasState(State.REPEATING) && mEventManager.isDownEvent()) {
-					if(Common.debug()) Log.d(tag, "Injecting a new repeat " + key.getRepeatCount());
-					
-					Integer curTimeout = SDK.VIEW_CONFIGURATION_VERSION > 1 ? ViewConfiguration.getKeyRepeatDelay() : 50;
-					Boolean continueEvent = mEventManager.waitForChange(curTimeout);
-					
-					synchronized(mQueueLock) {
-						if (continueEvent && key.isPressed()) {
-							key.invoke();
-						}
-					}
-				}
-				
 				if ((policyFlags & ORIGINAL.FLAG_INJECTED) != 0) {
 					param.args[policyFlagsPos] = policyFlags & ~ORIGINAL.FLAG_INJECTED;
 				}
 				
 			} else if (key != null) {
-				if (mEventManager.hasState(State.ONGOING)) {
-					if (down) {
-						if(Common.debug()) Log.d(tag, "Waiting on long press timeout");
-						
-						/*
-						 * Long Press timeout
-						 */
-						Boolean continueEvent = mEventManager.waitForChange(mEventManager.getPressTimeout());
-						
-						synchronized(mQueueLock) {
-							if (continueEvent && key.isLastQueued() && key.isPressed()) {
-								String eventAction = mEventManager.getAction(ActionType.PRESS);
-								mEventManager.setState(State.INVOKED);
-								
-								if (eventAction == null || !mEventManager.handleKeyAction(eventAction, ActionType.PRESS, mEventManager.getTapCount(), mEventManager.isScreenOn(), mEventManager.isCallButton(), mEventManager.getEventTime(), 0)) {
-									if(Common.debug()) Log.d(tag, "Invoking default long press action");
-									
-									mEventManager.setState(State.REPEATING);
-									key.invoke();
-									
-									/*
-									 * The first one MUST be dispatched throughout the system.
-									 * Applications can ONLY start tracking from the original event object.
-									 */
-									if(Common.debug()) Log.d(tag, "Parsing event to the dispatcher");
-									
-									param.setResult(ORIGINAL.DISPATCHING_ALLOW); 
-									
-									return;
-								}
-								
-								if(Common.debug()) Log.d(tag, "Invoking custom long press action");
-							}
-						}
-						
-					} else {
-						Boolean continueEvent = true;
-						
-						if (mEventManager.hasMoreActions()) {
-							if(Common.debug()) Log.d(tag, "Waiting on tap timeout");
-							
-							/*
-							 * Tap timeout
-							 */
-							continueEvent = mEventManager.waitForChange(mEventManager.getTapTimeout());
-						}
-
-						synchronized(mQueueLock) {
-							if (continueEvent && key.isLastQueued() && !key.isPressed()) {
-								if(Common.debug()) Log.d(tag, "Invoking Click Event");
-								
-								mEventManager.setState(State.INVOKED);
-
-								String eventAction = mEventManager.getAction(ActionType.CLICK);
-								
-								if(Common.debug()) Log.d(tag, "Using action '" + (eventAction != null ? eventAction : "") + "'");
-								
-								if (!mEventManager.handleKeyAction(eventAction, ActionType.CLICK, mEventManager.getTapCount(), mEventManager.isScreenOn(), mEventManager.isCallButton(), mEventManager.getEventTime(), mEventManager.getTapCount() == 0 ? key.getFlags() : 0)) {
-									key.invokeAndRelease();
-								}
-							}
-						}
-					}
-					
-				} else if (!down) {
-					key.release();
+				/*
+				 * Gingerbread does not parse the KeyEvent, so we can only measure the input delay on ICS and above
+				 */
+				if (keyEvent != null) {
+					LatencyTracker.recordMillis(LatencyTracker.STAGE_INPUT_TO_DISPATCH, android.os.SystemClock.uptimeMillis() - keyEvent.getEventTime());
 				}
 				
-				if(Common.debug()) Log.d(tag, "Disabling default dispatching (" + mEventManager.mState.name() + ")");
-				
-				param.setResult(ORIGINAL.DISPATCHING_REJECT);
+				if (mEventManager.dispatchKey(key, stateWord, down, dispatchStart)) {
+					/*
+					 * The first one MUST be dispatched throughout the system.
+					 * Applications can ONLY start tracking from the original event object.
+					 */
+					if(Common.debug()) Log.d(tag, "Parsing event to the dispatcher");
+					
+					param.setResult(ORIGINAL.DISPATCHING_ALLOW);
+					
+				} else {
+					if(Common.debug()) Log.d(tag, "Disabling default dispatching (" + mEventManager.getState().name() + ")");
+					
+					param.setResult(ORIGINAL.DISPATCHING_REJECT);
+				}
 				
 			} else if (Common.debug()) {
 				Log.d(tag, "This key is not handled by the module");
@@ -492,6 +439,9 @@ public final class PhoneWindowManager {
 		@Override
 		protected final void afterHookedMethod(final MethodHookParam param) {
 			mActiveDispatching = false;
+			
+			mEventManager.unholdKey(mDispatchingKey);
+			mDispatchingKey = null;
 		}
 	};
 	
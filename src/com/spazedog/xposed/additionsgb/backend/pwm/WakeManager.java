@@ -0,0 +1,167 @@
+package com.spazedog.xposed.additionsgb.backend.pwm;
+
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.spazedog.lib.reflecttools.ReflectMethod;
+import com.spazedog.lib.reflecttools.utils.ReflectException;
+import com.spazedog.xposed.additionsgb.Common;
+
+/**
+ * Keeps the device awake while keys are handled with the screen off.
+ *
+ * Instead of holding the wakelock for a fixed amount of time on each event, each part of the
+ * key handling that needs the device awake acquires it as a holder, and the wakelock is released
+ * as soon as the last holder is done. A timeout is still used as a safety net, in case a holder
+ * is never released.
+ *
+ * The time each type of holder keeps the device awake is recorded in the LatencyTracker.
+ *
+ * The power manager methods are bound once when this is created.
+ */
+public final class WakeManager {
+	public static final String TAG = WakeManager.class.getName();
+
+	/*
+	 * Holder types
+	 */
+	public static final int HOLDER_EVENT = 0;		// A key event that is still being handled
+	public static final int HOLDER_ACTION = 1;		// An action waiting in, or running on, the ActionExecutor
+	public static final int HOLDER_REPEAT = 2;		// The KeyRepeater
+	public static final int HOLDERS = 3;
+
+	/*
+	 * Safety timeout, re-armed each time a holder is acquired
+	 */
+	private static final long MAX_HOLD = 10000L;
+
+	/*
+	 * Minimum time between userActivity() calls
+	 */
+	private static final long USER_ACTIVITY_INTERVAL = 1000L;
+
+	private final WakeLock mWakeLock;
+	private final int mPowerVersion;
+	private final ReflectMethod mUserActivityMethod;
+	private final ReflectMethod mWakeUpMethod;
+	private final ReflectMethod mGoToSleepMethod;
+
+	/*
+	 * Guarded by this
+	 */
+	private final int[] mHolders = new int[HOLDERS];
+	private final long[] mHolderTime = new long[HOLDERS];
+	private int mHolderCount = 0;
+	private long mHoldTime = 0L;
+	private long mLastUserActivity = 0L;
+
+	/**
+	 * @param powerVersion
+	 *     SDK.MANAGER_POWER_VERSION
+	 *
+	 * @param wakeUpMethod
+	 *     PowerManagerService.wakeUp, or forceUserActivityLocked on version 1
+	 */
+	public WakeManager(WakeLock wakeLock, int powerVersion, ReflectMethod userActivityMethod, ReflectMethod wakeUpMethod, ReflectMethod goToSleepMethod) {
+		mWakeLock = wakeLock;
+		mWakeLock.setReferenceCounted(false);
+		mPowerVersion = powerVersion;
+		mUserActivityMethod = userActivityMethod;
+		mWakeUpMethod = wakeUpMethod;
+		mGoToSleepMethod = goToSleepMethod;
+	}
+
+	public synchronized void acquire(int holder) {
+		long time = SystemClock.uptimeMillis();
+
+		if (mHolders[holder]++ == 0) {
+			mHolderTime[holder] = time;
+		}
+
+		if (mHolderCount++ == 0) {
+			if(Common.debug()) Log.d(TAG, "Acquiring the wakelock");
+
+			mHoldTime = time;
+		}
+
+		mWakeLock.acquire(MAX_HOLD);
+	}
+
+	public synchronized void release(int holder) {
+		if (mHolders[holder] > 0) {
+			long time = SystemClock.uptimeMillis();
+
+			if (--mHolders[holder] == 0) {
+				LatencyTracker.recordMillis(LatencyTracker.wake(holder), time - mHolderTime[holder]);
+			}
+
+			if (--mHolderCount == 0) {
+				if(Common.debug()) Log.d(TAG, "Releasing the wakelock after " + (time - mHoldTime) + "ms");
+
+				LatencyTracker.recordMillis(LatencyTracker.WAKE_TOTAL, time - mHoldTime);
+
+				if (mWakeLock.isHeld()) {
+					mWakeLock.release();
+				}
+			}
+		}
+	}
+
+	public synchronized boolean isHeld(int holder) {
+		return mHolders[holder] > 0;
+	}
+
+	/**
+	 * Tell the power manager about user activity. Calls within USER_ACTIVITY_INTERVAL
+	 * of the last one are dropped, as they would not change anything.
+	 */
+	public void userActivity(long time) {
+		synchronized (this) {
+			if (mLastUserActivity > 0 && time >= mLastUserActivity && time - mLastUserActivity < USER_ACTIVITY_INTERVAL) {
+				return;
+			}
+
+			mLastUserActivity = time;
+		}
+
+		if (mPowerVersion == 1) {
+			mUserActivityMethod.invoke(time, true);
+
+		} else {
+			mUserActivityMethod.invoke(time, 0, 1 << 0);
+		}
+	}
+
+	public void wakeUp(long time) {
+		if (mPowerVersion > 1) {
+			mWakeUpMethod.invoke(time);
+
+		} else {
+			/*
+			 * API's below 17 does not support PowerManager#wakeUp, so
+			 * instead we will trick our way into the hidden IPowerManager#forceUserActivityLocked which
+			 * is not accessible trough the regular PowerManager class. It is the same method that
+			 * turns on the screen when you plug in your USB cable.
+			 */
+			try {
+				mWakeUpMethod.invoke();
+
+			} catch (ReflectException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+	}
+
+	public void goToSleep(long time) {
+		if (mPowerVersion > 3) {
+			mGoToSleepMethod.invoke(time, 4, 0);
+
+		} else if (mPowerVersion > 1) {
+			mGoToSleepMethod.invoke(time, 0);
+
+		} else {
+			mGoToSleepMethod.invoke(time);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.spazedog.xposed.additionsgb.backend.pwm.iface;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import com.spazedog.lib.reflecttools.ReflectMethod;
+import com.spazedog.lib.reflecttools.utils.ReflectException;
+
+/**
+ * Plain reflection for the methods that are used on each key event, see IMediatorSetup.bindDirect().
+ * The methods are bound once during setup, and invoked without the member and receiver
+ * resolution in ReflectTools.
+ */
+public final class DirectMethods {
+
+	private DirectMethods() {}
+
+	/**
+	 * Get the plain method from a ReflectMethod and make it accessible once, 
+	 * so that it can be used with invoke()
+	 */
+	public static Method bind(ReflectMethod method) {
+		Method object = method.getObject();
+		object.setAccessible(true);
+		
+		return object;
+	}
+	
+	/**
+	 * Invoke a method bound with bind(). Errors are thrown as ReflectException, 
+	 * like the ones from ReflectMethod.invoke()
+	 */
+	public static Object invoke(Method method, Object receiver, Object... args) {
+		try {
+			return method.invoke(receiver, args);
+			
+		} catch (InvocationTargetException e) {
+			throw new ReflectException(e.getCause());
+			
+		} catch (IllegalAccessException e) {
+			throw new ReflectException(e);
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.spazedog.xposed.additionsgb.backend.pwm.iface;
+
+import android.os.SystemClock;
+
+/**
+ * The time source used by the EventManager when waiting on tap and press timeouts. 
+ * Replacing it allows the key handling to be driven by a virtual clock. 
+ */
+public interface IEventClock {
+	
+	public static final IEventClock SYSTEM = new IEventClock() {
+		@Override
+		public long uptimeMillis() {
+			return SystemClock.uptimeMillis();
+		}
+		
+		@Override
+		public void waitOn(Object lock, long timeout) throws InterruptedException {
+			lock.wait(timeout);
+		}
+	};
+	
+	public long uptimeMillis();
+	
+	/**
+	 * Wait on a monitor that the caller already holds, like Object.wait(timeout)
+	 */
+	public void waitOn(Object lock, long timeout) throws InterruptedException;
+}
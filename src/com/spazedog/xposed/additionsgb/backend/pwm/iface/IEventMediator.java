@@ -1,18 +1,14 @@
 package com.spazedog.xposed.additionsgb.backend.pwm.iface;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
-import net.dinglisch.android.tasker.TaskerIntent;
 import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.app.ActivityManager;
 import android.app.ActivityManager.RunningTaskInfo;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.ResolveInfo;
+import android.hardware.input.InputManager;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
@@ -31,18 +27,52 @@ import com.spazedog.lib.reflecttools.ReflectClass;
 import com.spazedog.lib.reflecttools.utils.ReflectException;
 import com.spazedog.lib.reflecttools.utils.ReflectConstants.Match;
 import com.spazedog.xposed.additionsgb.Common;
-import com.spazedog.xposed.additionsgb.backend.pwm.PhoneWindowManager;
+import com.spazedog.xposed.additionsgb.backend.pwm.ActionExecutor;
+import com.spazedog.xposed.additionsgb.backend.pwm.DeviceCache;
+import com.spazedog.xposed.additionsgb.backend.pwm.ForegroundTracker;
+import com.spazedog.xposed.additionsgb.backend.pwm.ForegroundTracker.Foreground;
+import com.spazedog.xposed.additionsgb.backend.pwm.HapticFeedback;
+import com.spazedog.xposed.additionsgb.backend.pwm.KeyAction;
+import com.spazedog.xposed.additionsgb.backend.pwm.LatencyTracker;
+import com.spazedog.xposed.additionsgb.backend.pwm.WakeManager;
+import com.spazedog.xposed.additionsgb.backend.pwm.KeyInjectionBatch;
 import com.spazedog.xposed.additionsgb.backend.pwm.iface.IMediatorSetup.SDK;
 import com.spazedog.xposed.additionsgb.backend.service.XServiceManager;
 import com.spazedog.xposed.additionsgb.configs.Settings;
 
-public abstract class IEventMediator extends IMediatorSetup {
+public abstract class IEventMediator extends IMediatorSetup implements IKeyInjector {
 	
 	public static enum ActionType { CLICK, PRESS }
 	public static enum StackAction { EXLUDE_HOME, INCLUDE_HOME, JUMP_HOME }
 	
-	private Map<Integer, Boolean> mDeviceIds = new HashMap<Integer, Boolean>();
-	private ArrayList<String> mDeviceTypes;
+	/*
+	 * Device validation cache, only touched by the queueing thread. 
+	 * It is reset whenever the preferences or the input devices change. 
+	 */
+	private final DeviceCache mDeviceCache = new DeviceCache();
+	private boolean mAllowKeyboards = false;
+	private boolean mAllowControllers = false;
+	private boolean mAllowExternals = false;
+	
+	protected final ActionExecutor mActionExecutor = new ActionExecutor();
+	
+	protected final ForegroundTracker mForegroundTracker;
+	
+	protected final HapticFeedback mHapticFeedback;
+	
+	protected final WakeManager mWakeManager;
+	
+	/*
+	 * Lock stripes for key injection, the size must be a power of two
+	 */
+	private final Object[] mInjectionLocks = new Object[8];
+	
+	private final ThreadLocal<KeyInjectionBatch> mInjectionBatch = new ThreadLocal<KeyInjectionBatch>() {
+		@Override
+		protected KeyInjectionBatch initialValue() {
+			return new KeyInjectionBatch();
+		}
+	};
 	
 	private Runnable mPowerHardResetRunnable = new Runnable(){
 		@Override
@@ -58,228 +88,238 @@ public abstract class IEventMediator extends IMediatorSetup {
 
 	protected IEventMediator(ReflectClass pwm, XServiceManager xServiceManager) {
 		super(pwm, xServiceManager);
+		
+		mForegroundTracker = new ForegroundTracker((Context) mContext.getReceiver());
+		mWakeManager = new WakeManager(mWakelock, SDK.MANAGER_POWER_VERSION, mUserActivityMethod, mWakeUpMethod, mGoToSleepMethod);
+		mHapticFeedback = new HapticFeedback(SDK.SAMSUNG_FEEDBACK_VERSION, mSamsungKeyFeedbackMethod, mHapticFeedbackMethod, ORIGINAL.FLAG_VIRTUAL);
+		
+		registerInputDeviceListener();
+		
+		for (int i=0; i < mInjectionLocks.length; i++) {
+			mInjectionLocks[i] = new Object();
+		}
+	}
+	
+	/*
+	 * Load the device related settings and drop all cached validations, 
+	 * whenever the preferences or the connected input devices has changed. 
+	 */
+	private void updateDeviceCache() {
+		if (mDeviceCache.update(mXServiceManager.getDataVersion())) {
+			if(Common.debug()) Log.d(TAG, "Resetting the device validation cache");
+			
+			if (SDK.METHOD_INTERCEPT_VERSION > 1) {
+				List<String> deviceTypes = mXServiceManager.getStringArray(Settings.REMAP_EXTERNALS_LIST, null);
+				
+				mAllowKeyboards = deviceTypes != null && deviceTypes.contains("keyboard");
+				mAllowControllers = deviceTypes != null && deviceTypes.contains("controller");
+				mAllowExternals = deviceTypes != null && !deviceTypes.isEmpty();
+				
+			} else {
+				mAllowExternals = mXServiceManager.getBoolean(Settings.REMAP_ALLOW_EXTERNALS);
+			}
+		}
 	}
 	
-	public Boolean validateDeviceType(Object event) {
+	public boolean validateDeviceType(Object event) {
 		/*
 		 * Gingerbread has no access to the KeyEvent in the intercept method.
 		 * Instead we parse the keycode on these versions and skip the first check here. 
 		 */
 		KeyEvent keyEvent = event instanceof KeyEvent ? (KeyEvent) event : null;
-		Integer keyCode = event instanceof KeyEvent ? keyEvent.getKeyCode() : (Integer) event;
+		int keyCode = keyEvent != null ? keyEvent.getKeyCode() : (Integer) event;
 		
 		/*
 		 * Older Android version does not parse the KeyEvent object to the PhoneWindowManager class.
 		 * For these we validate individual key codes instead. Not as exact, but is does the job in most cases. 
+		 * This is fine since Gingerbread never has a device id to collide with. 
 		 */
-		Integer deviceId = keyEvent != null ? keyEvent.getDeviceId() : keyCode;
-		Integer allowExternals = -2;
+		int deviceId = keyEvent != null ? keyEvent.getDeviceId() : keyCode;
 		
-		/*
-		 * If the settings change, we have to re-validate the keys
-		 */
-		if (SDK.METHOD_INTERCEPT_VERSION > 1) {
-			if (mDeviceTypes == null || !mDeviceTypes.equals(mXServiceManager.getStringArray(Settings.REMAP_EXTERNALS_LIST, mDeviceTypes))) {
-				mDeviceIds.clear();
-				mDeviceTypes = (ArrayList<String>) mXServiceManager.getStringArray(Settings.REMAP_EXTERNALS_LIST, new ArrayList<String>());
-			}
+		updateDeviceCache();
+		
+		int index = mDeviceCache.indexOf(deviceId);
+		
+		if (index >= 0) {
+			return mDeviceCache.isValidAt(index);
+		}
+		
+		boolean validated = true;
+		
+		if (keyEvent != null && keyEvent.getDeviceId() != -1) {
+			int source = keyEvent.getSource();
+			InputDevice device = keyEvent.getDevice();
 			
-		} else {
-			if (!mDeviceIds.containsKey(allowExternals) || !mDeviceIds.get(allowExternals).equals(mXServiceManager.getBoolean(Settings.REMAP_ALLOW_EXTERNALS))) {
-				mDeviceIds.clear();
-				mDeviceIds.put(allowExternals, mXServiceManager.getBoolean(Settings.REMAP_ALLOW_EXTERNALS));
+			/*
+			 * We do not want to handle regular Keyboards or gaming devices. 
+			 * Do not trust KeyCharacterMap.getKeyboardType() as it can easily display anything
+			 * as a FULL PC Keyboard. InputDevice.getKeyboardType() should be safer. 
+			 */
+			if (device != null && (device.getKeyboardType() == InputDevice.KEYBOARD_TYPE_ALPHABETIC && !mAllowKeyboards) ||
+					(((source & InputDevice.SOURCE_GAMEPAD) == InputDevice.SOURCE_GAMEPAD
+					|| (source & InputDevice.SOURCE_DPAD) == InputDevice.SOURCE_DPAD
+					|| (source & InputDevice.SOURCE_JOYSTICK) == InputDevice.SOURCE_JOYSTICK) 
+						&& !mAllowControllers)) {
+				
+				validated = false;
 			}
 		}
 		
-		if (!mDeviceIds.containsKey(deviceId)) {
-			Boolean validated = true;
-			
-			if (keyEvent != null && keyEvent.getDeviceId() != -1) {
-				Integer source = keyEvent.getSource();
+		/*
+		 * Now that we know that the device type is supported, let's see if we should handle external once.
+		 */
+		if (validated && !mAllowExternals) {
+			if (SDK.INPUT_DEVICESTORAGE_VERSION > 1) {
 				InputDevice device = keyEvent.getDevice();
 				
-				/*
-				 * We do not want to handle regular Keyboards or gaming devices. 
-				 * Do not trust KeyCharacterMap.getKeyboardType() as it can easily display anything
-				 * as a FULL PC Keyboard. InputDevice.getKeyboardType() should be safer. 
-				 */
-				if (device != null && (device.getKeyboardType() == InputDevice.KEYBOARD_TYPE_ALPHABETIC && !mDeviceTypes.contains("keyboard")) ||
-						(((source & InputDevice.SOURCE_GAMEPAD) == InputDevice.SOURCE_GAMEPAD
-						|| (source & InputDevice.SOURCE_DPAD) == InputDevice.SOURCE_DPAD
-						|| (source & InputDevice.SOURCE_JOYSTICK) == InputDevice.SOURCE_JOYSTICK) 
-							&& !mDeviceTypes.contains("controller"))) {
+				try {
+					/*
+					 * @Google get a grip, this method should be publicly accessible. Makes no sense to hide it.
+					 */
+					validated = device == null || (Boolean) mDeviceExternalMethod.invokeReceiver(device);
 					
-					validated = false;
+				} catch (ReflectException e) { 
+					Log.e(TAG, e.getMessage(), e);
 				}
-			}
-			
-			/*
-			 * Now that we know that the device type is supported, let's see if we should handle external once.
-			 */
-			if (validated && 
-					((SDK.METHOD_INTERCEPT_VERSION == 1 && !mDeviceIds.get(allowExternals)) 
-							|| (SDK.METHOD_INTERCEPT_VERSION > 1 && mDeviceTypes.isEmpty()))) {
 				
-				if (SDK.INPUT_DEVICESTORAGE_VERSION > 1) {
-					InputDevice device = keyEvent.getDevice();
-					
-					try {
-						/*
-						 * @Google get a grip, this method should be publicly accessible. Makes no sense to hide it.
-						 */
-						validated = device == null || (Boolean) mMethods.get("isDeviceExternal").invokeReceiver(device);
-						
-					} catch (ReflectException e) { 
-						Log.e(TAG, e.getMessage(), e);
-					}
-					
-				} else {
-					validated = KeyCharacterMap.deviceHasKey(keyCode);
-				}
+			} else {
+				validated = KeyCharacterMap.deviceHasKey(keyCode);
 			}
-			
-			mDeviceIds.put(deviceId, validated);
 		}
 		
-		return mDeviceIds.get(deviceId);
+		mDeviceCache.put(deviceId, validated);
+		
+		return validated;
 	}
 	
-	@SuppressLint("NewApi")
-	public void injectInputEvent(Object event, Integer action, Long downTime, Long eventTime, Integer repeatCount, Integer flags, Integer metaState) {
-		synchronized(PhoneWindowManager.class) {
-			KeyEvent keyEvent = null;
-			Integer[] actions = action == KeyEvent.ACTION_MULTIPLE ? new Integer[]{KeyEvent.ACTION_DOWN, KeyEvent.ACTION_UP} : new Integer[]{action};
-			Long time = SystemClock.uptimeMillis();
-			
-			if (downTime == 0L)
-				downTime = time;
-			
-			if (eventTime == 0L)
-				eventTime = time;
-			
-			if ((flags & KeyEvent.FLAG_FROM_SYSTEM) == 0) 
-				flags |= KeyEvent.FLAG_FROM_SYSTEM;
-			
-			if ((flags & ORIGINAL.FLAG_INJECTED) == 0) 
-				flags |= ORIGINAL.FLAG_INJECTED;
-			
-			if ((flags & KeyEvent.FLAG_LONG_PRESS) == 0 && repeatCount == 1) 
-				flags |= KeyEvent.FLAG_LONG_PRESS;
-			
-			if ((flags & KeyEvent.FLAG_LONG_PRESS) != 0 && repeatCount != 1) 
-				flags &= ~KeyEvent.FLAG_LONG_PRESS;
+	/*
+	 * Devices can be re-used under the same id with a different configuration, 
+	 * so any change will invalidate the cache on the next key event. 
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+	private void registerInputDeviceListener() {
+		if (android.os.Build.VERSION.SDK_INT >= 16) {
+			InputManager inputManager = (InputManager) ((Context) mContext.getReceiver()).getSystemService(Context.INPUT_SERVICE);
 			
-			if (event instanceof KeyEvent) {
-				keyEvent = KeyEvent.changeTimeRepeat((KeyEvent) event, time, repeatCount, flags);
-				
-			} else {
-				keyEvent = new KeyEvent(downTime, eventTime, actions[0], (Integer) event, repeatCount, metaState, (SDK.INPUT_CHARACTERMAP_VERSION > 1 ? KeyCharacterMap.VIRTUAL_KEYBOARD : 0), 0, flags, InputDevice.SOURCE_KEYBOARD);
+			if (inputManager != null) {
+				inputManager.registerInputDeviceListener(mDeviceCache, mHandler);
 			}
-			
-			for (int i=0; i < actions.length; i++) {
-				/*
-				 * This is for when we have both an up and down event. 
-				 */
-				if (keyEvent.getAction() != actions[i]) {
-					keyEvent = KeyEvent.changeAction(keyEvent, actions[i]);
-				}
-				
-				try {
-					if (SDK.MANAGER_HARDWAREINPUT_VERSION > 1) {
-						mMethods.get("injectInputEvent").invoke(keyEvent, ORIGINAL.INPUT_MODE_ASYNC);
+		}
+	}
+	
+	/**
+	 * Inject a single key event. ACTION_MULTIPLE injects both a down and up event.
+	 */
+	public void injectInputEvent(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState) {
+		injectInputEvents( obtainInjectionBatch().add(keyCode, action, downTime, repeatCount, flags, metaState) );
+	}
+	
+	/**
+	 * Get an empty injection batch for the current thread
+	 */
+	public KeyInjectionBatch obtainInjectionBatch() {
+		KeyInjectionBatch batch = mInjectionBatch.get();
+		batch.clear();
+		
+		return batch;
+	}
+	
+	/**
+	 * Inject a whole sequence of key events in one pass. 
+	 * 
+	 * Instead of one global lock, each key code maps to one of a few lock stripes. 
+	 * The stripe is held while injecting consecutive events for the same key, so a down/up pair 
+	 * cannot be split by another thread injecting the same key, while other keys can be injected in parallel. 
+	 * The batch is cleared once it has been injected. 
+	 */
+	@SuppressLint("NewApi")
+	public void injectInputEvents(KeyInjectionBatch batch) {
+		long time = SystemClock.uptimeMillis();
+		int size = batch.size();
+		int i = 0;
+		
+		while (i < size) {
+			int keyCode = batch.keyCodeAt(i);
+			
+			synchronized(mInjectionLocks[keyCode & (mInjectionLocks.length - 1)]) {
+				do {
+					int repeatCount = batch.repeatCountAt(i);
+					int flags = batch.flagsAt(i) | KeyEvent.FLAG_FROM_SYSTEM | ORIGINAL.FLAG_INJECTED;
+					long downTime = batch.downTimeAt(i);
+					
+					if (downTime == 0L) {
+						downTime = time;
+					}
+					
+					if (repeatCount == 1) {
+						flags |= KeyEvent.FLAG_LONG_PRESS;
 						
 					} else {
-						mMethods.get("injectInputEvent").invoke(keyEvent);
+						flags &= ~KeyEvent.FLAG_LONG_PRESS;
 					}
 					
-				} catch (ReflectException e) {
-					Log.e(TAG, e.getMessage(), e);
-				}	
+					KeyEvent keyEvent = new KeyEvent(downTime, time, batch.actionAt(i), keyCode, repeatCount, batch.metaStateAt(i), (SDK.INPUT_CHARACTERMAP_VERSION > 1 ? KeyCharacterMap.VIRTUAL_KEYBOARD : 0), 0, flags, InputDevice.SOURCE_KEYBOARD);
+					
+					try {
+						if (SDK.MANAGER_HARDWAREINPUT_VERSION > 1) {
+							invokeDirect(mInjectInputEventMethod, mInjectInputEventReceiver, keyEvent, ORIGINAL.INPUT_MODE_ASYNC);
+							
+						} else {
+							invokeDirect(mInjectInputEventMethod, mInjectInputEventReceiver, keyEvent);
+						}
+						
+					} catch (ReflectException e) {
+						Log.e(TAG, e.getMessage(), e);
+					}
+					
+					i += 1;
+					
+				} while (i < size && batch.keyCodeAt(i) == keyCode);
 			}
 		}
+		
+		batch.clear();
 	}
 
-	public void performHapticFeedback(Object keyEvent, Integer type, Integer policyFlags) {
-		try {
-			if (type == HapticFeedbackConstants.VIRTUAL_KEY) {
-				List<String> forcedKeys = (List<String>) mXServiceManager.getStringArray(Settings.REMAP_LIST_FORCED_HAPTIC, null);
-				Integer keyCode = keyEvent instanceof KeyEvent ? ((KeyEvent) keyEvent).getKeyCode() : (Integer) keyEvent;
-				
-				if (forcedKeys == null || !forcedKeys.contains(""+keyCode)) {
-					if (SDK.SAMSUNG_FEEDBACK_VERSION == 1) {
-						mMethods.get("samsung.performSystemKeyFeedback").invokeOriginal(keyEvent); return;
-						
-					} else if (SDK.SAMSUNG_FEEDBACK_VERSION == 2) {
-						mMethods.get("samsung.performSystemKeyFeedback").invokeOriginal(keyEvent, false, true); return;
-						
-					} else if ((policyFlags & ORIGINAL.FLAG_VIRTUAL) == 0) {
-						return;
-					}
-				}
-			}
-			
-			mMethods.get("performHapticFeedback").invokeOriginal(null, type, false);
-			
-		} catch (ReflectException e) {
-			Log.e(TAG, e.getMessage(), e);
+	public void performHapticFeedback(Object keyEvent, int type, int policyFlags) {
+		int keyCode = 0;
+		
+		if (type == HapticFeedbackConstants.VIRTUAL_KEY) {
+			mHapticFeedback.update(mXServiceManager);
+			keyCode = keyEvent instanceof KeyEvent ? ((KeyEvent) keyEvent).getKeyCode() : (Integer) keyEvent;
 		}
+		
+		mHapticFeedback.perform(keyEvent, keyCode, type, policyFlags);
 	}
 	
-	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
-	public void pokeUserActivity(Long time, Boolean forced) {
+	/**
+	 * Poke the device out of deep sleep, or turn on the screen if <code>forced</code> is true. 
+	 * This does not keep the device awake, use getWakeManager() to hold the wakelock while a key is being handled. 
+	 */
+	public void pokeUserActivity(long time, boolean forced) {
 		if (forced) {
-			if (SDK.MANAGER_POWER_VERSION > 1) {
-				mMethods.get("wakeUp").invoke(time);
-				
-			} else {
-				/*
-				 * API's below 17 does not support PowerManager#wakeUp, so
-				 * instead we will trick our way into the hidden IPowerManager#forceUserActivityLocked which 
-				 * is not accessible trough the regular PowerManager class. It is the same method that 
-				 * turns on the screen when you plug in your USB cable.
-				 */
-				try {
-					mMethods.get("forceUserActivityLocked").invoke();
-					
-				} catch (ReflectException e) {
-					Log.e(TAG, e.getMessage(), e);
-				}
-			}
+			mWakeManager.wakeUp(time);
 			
 		} else {
-			if (!mWakelock.isHeld()) {
-				mWakelock.acquire(3000);
-			}
-			
-			if (SDK.MANAGER_POWER_VERSION == 1) {
-				mMethods.get("userActivity").invoke(time, true);
-				
-			} else {
-				mMethods.get("userActivity").invoke(time, 0, 1 << 0);
-			}
+			mWakeManager.userActivity(time);
 		}
 	}
 	
-	@SuppressLint("NewApi")
-	public void changeDisplayState(Long time, Boolean on) {
+	public void changeDisplayState(long time, boolean on) {
 		if (on) {
-			pokeUserActivity(time, true);
+			mWakeManager.wakeUp(time);
 			
 		} else {
-			if (SDK.MANAGER_POWER_VERSION > 3) {
-				mMethods.get("goToSleep").invoke(time, 4, 0);
-				
-			} else if (SDK.MANAGER_POWER_VERSION > 1) { 
-				mMethods.get("goToSleep").invoke(time, 0);
-				
-			} else {
-				mMethods.get("goToSleep").invoke(time);
-			}
+			mWakeManager.goToSleep(time);
 		}
 	}
 	
-	public void powerHardResetTimer(Integer keyCode, Boolean isKeyDown) {
-		if (keyCode.equals(KeyEvent.KEYCODE_POWER)) {
+	public WakeManager getWakeManager() {
+		return mWakeManager;
+	}
+	
+	public void powerHardResetTimer(int keyCode, boolean isKeyDown) {
+		if (keyCode == KeyEvent.KEYCODE_POWER) {
 			Integer delay = mXServiceManager.getInt(Settings.REMAP_TIMEOUT_HARD_RESET, 8000);
 			
 			if (isKeyDown && delay > 0) {
@@ -293,7 +333,7 @@ public abstract class IEventMediator extends IMediatorSetup {
 	
 	public Boolean isKeyguardShowing() {
 		try {
-			return (Boolean) mMethods.get("KeyguardMediator.isShowing").invoke();
+			return (Boolean) mKeyguardShowingMethod.invoke();
 			
 		} catch (ReflectException e) {
 			Log.e(TAG, e.getMessage(), e);
@@ -305,7 +345,7 @@ public abstract class IEventMediator extends IMediatorSetup {
 	public Boolean isKeyguardLockedAndInsecure() {
 		if (isKeyguardLocked()) {
 			try {
-				return !((Boolean) mMethods.get("KeyguardMediator.isRestricted").invoke());
+				return !((Boolean) mKeyguardRestrictedMethod.invoke());
 				
 			} catch (ReflectException e) {
 				Log.e(TAG, e.getMessage(), e);
@@ -317,7 +357,7 @@ public abstract class IEventMediator extends IMediatorSetup {
 	
 	public Boolean isKeyguardLocked() {
 		try {
-			return (Boolean) mMethods.get("KeyguardMediator.isLocked").invoke();
+			return (Boolean) mKeyguardLockedMethod.invoke();
 			
 		} catch (ReflectException e) {
 			Log.e(TAG, e.getMessage(), e);
@@ -329,7 +369,7 @@ public abstract class IEventMediator extends IMediatorSetup {
 	public void keyGuardDismiss() {
 		if (isKeyguardLocked()) {
 			try {
-				mMethods.get("KeyguardMediator.dismiss").invoke(false, true);
+				mKeyguardDismissMethod.invoke(false, true);
 				
 			} catch (ReflectException e) {
 				Log.e(TAG, e.getMessage(), e);
@@ -360,13 +400,34 @@ public abstract class IEventMediator extends IMediatorSetup {
 		return null;
 	}
 	
+	/*
+	 * The top of the stack can be answered by the ForegroundTracker without any IPC. 
+	 * JUMP_HOME and deeper positions still needs the full task list. 
+	 * Returns null if the task list should be used. 
+	 */
+	private Foreground getTrackedForeground(int stack, StackAction action) {
+		return stack == 0 && action != StackAction.JUMP_HOME ? mForegroundTracker.getForeground() : null;
+	}
+	
 	public String getPackageNameFromStack(Integer stack, StackAction action) {
+		Foreground foreground = getTrackedForeground(stack, action);
+		
+		if (foreground != null) {
+			return action == StackAction.INCLUDE_HOME || !foreground.packageName.equals(getHomePackage()) ? foreground.packageName : null;
+		}
+		
 		ActivityManager.RunningTaskInfo pkg = getPackageFromStack(stack, action);
 		
 		return pkg != null ? pkg.topActivity.getPackageName() : null;
 	}
 	
 	public Integer getPackageIdFromStack(Integer stack, StackAction action) {
+		Foreground foreground = getTrackedForeground(stack, action);
+		
+		if (foreground != null) {
+			return action == StackAction.INCLUDE_HOME || !foreground.packageName.equals(getHomePackage()) ? foreground.taskId : 0;
+		}
+		
 		ActivityManager.RunningTaskInfo pkg = getPackageFromStack(stack, action);
 		
 		return pkg != null ? pkg.id : 0;
@@ -384,22 +445,22 @@ public abstract class IEventMediator extends IMediatorSetup {
 		}
 		
 		if (callCode > 0) {
-			injectInputEvent(callCode, KeyEvent.ACTION_MULTIPLE, 0L, 0L, 0, 0, 0); return true;
+			injectInputEvent(callCode, KeyEvent.ACTION_MULTIPLE, 0L, 0, 0, 0); return true;
 		}
 		
 		return false;
 	}
 	
 	public Object getUserInstance() {
-		return mConstructors.get("UserHandle").invoke(
-				mFields.get("UserHandle.current").getValue()
+		return mUserHandleConstructor.invoke(
+				mUserCurrentField.getValue()
 		);
 	}
 	
 	public void launchIntent(Intent intent) {
 		if (SDK.MANAGER_MULTIUSER_VERSION > 0) {
 			try {
-				mMethods.get("startActivityAsUser").invoke(intent, getUserInstance());
+				mStartActivityAsUserMethod.invoke(intent, getUserInstance());
 				
 			} catch (ReflectException e) {
 				Log.e(TAG, e.getMessage(), e);
@@ -471,10 +532,10 @@ public abstract class IEventMediator extends IMediatorSetup {
 			
 			try {
 				if (SDK.MANAGER_MULTIUSER_VERSION > 0) {
-					mMethods.get("forceStopPackage").invoke(packageName, mFields.get("UserHandle.current").getValue());
+					mForceStopPackageMethod.invoke(packageName, mUserCurrentField.getValue());
 
 				} else {
-					mMethods.get("forceStopPackage").invoke(packageName);
+					mForceStopPackageMethod.invoke(packageName);
 				}
 				
 			} catch (ReflectException e) {
@@ -486,7 +547,7 @@ public abstract class IEventMediator extends IMediatorSetup {
 	public void sendBroadcast(Intent intent) {
 		if (SDK.MANAGER_MULTIUSER_VERSION > 0) {
 			try {
-				mMethods.get("sendBroadcastAsUser").invoke(intent, getUserInstance());
+				mSendBroadcastAsUserMethod.invoke(intent, getUserInstance());
 				
 			} catch (ReflectException e) {
 				Log.e(TAG, e.getMessage(), e);
@@ -515,11 +576,13 @@ public abstract class IEventMediator extends IMediatorSetup {
 	public void sendCloseSystemWindows(String reason) {
 		if(Common.debug()) Log.d(TAG, "Closing all system windows");
 		
-		try {
-			mMethods.get("closeSystemDialogs").invoke(reason);
-			
-		} catch (ReflectException e) {
-			Log.e(TAG, e.getMessage(), e);
+		if (mCloseSystemDialogsMethod != null) {
+			try {
+				mCloseSystemDialogsMethod.invoke(reason);
+				
+			} catch (ReflectException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
 		}
 	}
 	
@@ -529,11 +592,11 @@ public abstract class IEventMediator extends IMediatorSetup {
 		sendCloseSystemWindows("globalactions");
 		
 		try {
-			if (mMethods.containsKey("showGlobalActionsDialog.custom")) {
-				mMethods.get("showGlobalActionsDialog.custom").invoke(true);
+			if (mGlobalActionsCustomMethod != null) {
+				mGlobalActionsCustomMethod.invoke(true);
 				
-			} else {
-				mMethods.get("showGlobalActionsDialog").invoke();
+			} else if (mGlobalActionsMethod != null) {
+				mGlobalActionsMethod.invoke();
 			}
 			
 		} catch (ReflectException e) {
@@ -546,20 +609,24 @@ public abstract class IEventMediator extends IMediatorSetup {
 		
 		sendCloseSystemWindows("recentapps");
 		
-		try {
-			mMethods.get("toggleRecentApps").invoke();
-			
-		} catch (ReflectException e) {
-			Log.e(TAG, e.getMessage(), e);
+		if (mToggleRecentAppsMethod != null) {
+			try {
+				mToggleRecentAppsMethod.invoke();
+				
+			} catch (ReflectException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
 		}
 	}
 	
 	public void takeScreenshot() {
-		try {
-			mMethods.get("takeScreenshot").invoke();
-			
-		} catch (ReflectException e) {
-			Log.e(TAG, e.getMessage(), e);
+		if (mTakeScreenshotMethod != null) {
+			try {
+				mTakeScreenshotMethod.invoke();
+				
+			} catch (ReflectException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
 		}
 	}
 	
@@ -573,7 +640,7 @@ public abstract class IEventMediator extends IMediatorSetup {
 				}
 				
 				try {
-					mMethods.get("freezeRotation").invoke(orientation);
+					mFreezeRotationMethod.invoke(orientation);
 					
 				} catch (ReflectException e) {
 					Log.e(TAG, e.getMessage(), e);
@@ -581,7 +648,7 @@ public abstract class IEventMediator extends IMediatorSetup {
 				
 			} else {
 				try {
-					mMethods.get("thawRotation").invoke();
+					mThawRotationMethod.invoke();
 					
 				} catch (ReflectException e) {
 					Log.e(TAG, e.getMessage(), e);
@@ -593,13 +660,24 @@ public abstract class IEventMediator extends IMediatorSetup {
 		}
 	}
 	
+	public void toggleRotationLock() {
+		if (isRotationLocked()) {
+			Toast.makeText((Context) mContext.getReceiver(), "Rotation has been Enabled", Toast.LENGTH_SHORT).show();
+			freezeRotation(1);
+			
+		} else {
+			Toast.makeText((Context) mContext.getReceiver(), "Rotation has been Disabled", Toast.LENGTH_SHORT).show();
+			freezeRotation(-1);
+		}
+	}
+	
 	public Boolean isRotationLocked() {
         return android.provider.Settings.System.getInt(((Context) mContext.getReceiver()).getContentResolver(), android.provider.Settings.System.ACCELEROMETER_ROTATION, 0) == 0;
 	}
 	
 	public Integer getCurrentRotation() {
 		try {
-			return (Integer) mMethods.get("getRotation").invoke();
+			return (Integer) mGetRotationMethod.invoke();
 
 		} catch (ReflectException e) {
 			Log.e(TAG, e.getMessage(), e);
@@ -616,38 +694,33 @@ public abstract class IEventMediator extends IMediatorSetup {
 	}
 	
 	public String getHomePackage() {
-		Intent intent = new Intent(Intent.ACTION_MAIN);
-		intent.addCategory(Intent.CATEGORY_HOME);
-		ResolveInfo res = ((Context) mContext.getReceiver()).getPackageManager().resolveActivity(intent, 0);
-		
-		return res.activityInfo != null && !"android".equals(res.activityInfo.packageName) ? 
-				res.activityInfo.packageName : "com.android.launcher";
+		return mForegroundTracker.getHomePackage();
 	}
 	
-	public Boolean isWakeKeyWhenScreenOff(Integer keyCode) {
-		if (mMethods.get("isWakeKeyWhenScreenOff") != null) {
-			return (Boolean) mMethods.get("isWakeKeyWhenScreenOff").invoke(keyCode);
+	public boolean isWakeKeyWhenScreenOff(int keyCode) {
+		if (mWakeKeyMethod != null) {
+			return (Boolean) invokeDirect(mWakeKeyMethod, mWakeKeyReceiver, keyCode);
 		}
 		
 		return true;
 	}
 	
-	public Integer fixPolicyFlags(Integer keyCode, Integer policyFlags) {
-		if (!keyCode.equals(KeyEvent.KEYCODE_POWER) 
+	public int fixPolicyFlags(int keyCode, int policyFlags) {
+		if (keyCode != KeyEvent.KEYCODE_POWER 
 				&& !isWakeKeyWhenScreenOff(keyCode)
 				&& (policyFlags & ORIGINAL.FLAG_WAKE_DROPPED) != 0) {
 					
 					policyFlags &= ~ORIGINAL.FLAG_WAKE_DROPPED;
 			
-		} else if (keyCode.equals(KeyEvent.KEYCODE_POWER) && (policyFlags & ORIGINAL.FLAG_WAKE_DROPPED) == 0) {
+		} else if (keyCode == KeyEvent.KEYCODE_POWER && (policyFlags & ORIGINAL.FLAG_WAKE_DROPPED) == 0) {
 			policyFlags |= ORIGINAL.FLAG_WAKE_DROPPED;
 		}
 		
 		return policyFlags;
 	}
 	
-	public Boolean handleKeyAction(final String action, final ActionType actionType, final Integer tapCount, final Boolean isScreenOn, final Boolean invokeCallbutton, final Long eventDownTime, final Integer policyFlags) {		
-		Boolean isSingleClick = actionType != ActionType.PRESS && tapCount == 0;
+	public boolean handleKeyAction(final KeyAction action, final ActionType actionType, final int tapCount, final boolean isScreenOn, final boolean invokeCallbutton, final long eventDownTime, final int policyFlags) {		
+		boolean isSingleClick = actionType != ActionType.PRESS && tapCount == 0;
 		
 		if (!isSingleClick) {
 			performHapticFeedback(null, HapticFeedbackConstants.LONG_PRESS, policyFlags);
@@ -658,7 +731,7 @@ public abstract class IEventMediator extends IMediatorSetup {
 		 * when executing handlers while in deep sleep.
 		 * Some times they will need a few key presses before reacting.
 		 */
-		if (!isScreenOn && isSingleClick && ((action != null && action.equals("" + KeyEvent.KEYCODE_POWER)) || (action == null && (policyFlags & ORIGINAL.FLAG_WAKE_DROPPED) != 0))) {
+		if (!isScreenOn && isSingleClick && ((action != null && action.getKeyCode() == KeyEvent.KEYCODE_POWER) || (action == null && (policyFlags & ORIGINAL.FLAG_WAKE_DROPPED) != 0))) {
 			changeDisplayState(eventDownTime, true); return true;
 			
 		} else if (invokeCallbutton && invokeCallButton()) {
@@ -669,70 +742,45 @@ public abstract class IEventMediator extends IMediatorSetup {
 		}
 		
 		/*
-		 * This should always be wrapped and sent to a handler. 
+		 * This should always be wrapped and sent to the executor. 
 		 * If this is executed directly, some of the actions will crash with the error 
 		 * -> 'Can't create handler inside thread that has not called Looper.prepare()'
+		 * 
+		 * Do not use the PhoneWindowManager handler, as slow actions would compete with the window policy work.
+		 * The action itself decides which lane it belongs to. 
 		 */
-		mHandler.post(new Runnable() {
+		final long postTime = System.nanoTime();
+		
+		/*
+		 * Keep the device awake until the action has been executed
+		 */
+		final boolean holdWake = !isScreenOn;
+		
+		if (holdWake) {
+			mWakeManager.acquire(WakeManager.HOLDER_ACTION);
+		}
+		
+		boolean queued = mActionExecutor.execute(action.getLane(), action.getCoalesceKey(), new Runnable() {
 			public void run() {
-				String type = Common.actionType(action);
-				
-				if ("launcher".equals(type)) {
-					launchPackage(action);
+				try {
+					LatencyTracker.record(LatencyTracker.STAGE_ACTION_QUEUED, postTime);
 					
-				} else if ("custom".equals(type)) {
-					if (!"disabled".equals(action)) {
-						if ("torch".equals(action)) {
-							toggleFlashLight();
-							
-						} else if ("powermenu".equals(action)) {
-							openGlobalActionsDialog();	
-							
-						} else if ("recentapps".equals(action)) {
-							openRecentAppsDialog();
-							
-						} else if ("screenshot".equals(action)) {
-							takeScreenshot();
-							
-						} else if ("flipleft".equals(action)) {
-							freezeRotation( getNextRotation(true) );
-							
-						} else if ("flipright".equals(action)) {
-							freezeRotation( getNextRotation(false) );
-							
-						} else if ("fliptoggle".equals(action)) {
-							if (isRotationLocked()) {
-								Toast.makeText((Context) mContext.getReceiver(), "Rotation has been Enabled", Toast.LENGTH_SHORT).show();
-								freezeRotation(1);
-								
-							} else {
-								Toast.makeText((Context) mContext.getReceiver(), "Rotation has been Disabled", Toast.LENGTH_SHORT).show();
-								freezeRotation(-1);
-							}
-							
-						} else if ("previousapp".equals(action)) {
-							togglePreviousApplication();
-							
-						} else if ("killapp".equals(action)) {
-							killForegroundApplication();
-							
-						} else if ("guarddismiss".equals(action)) {
-							keyGuardDismiss();
-						}
-					}
+					action.execute(IEventMediator.this, eventDownTime, policyFlags);
 					
-				} else if ("tasker".equals(type)) { 
-					sendBroadcast(new TaskerIntent(action.replace("tasker:", "")));
+					LatencyTracker.record(LatencyTracker.action(action.getType()), postTime);
 					
-				} else if ("shortcut".equals(type)) { 
-					launchUri(action.substring(action.indexOf(':', "shortcut".length()+1)+1));
-				
-				} else {
-					injectInputEvent(Integer.parseInt(action), KeyEvent.ACTION_MULTIPLE, eventDownTime, 0L, 0, policyFlags, 0);
+				} finally {
+					if (holdWake) {
+						mWakeManager.release(WakeManager.HOLDER_ACTION);
+					}
 				}
 			}
 		});
 		
+		if (!queued && holdWake) {
+			mWakeManager.release(WakeManager.HOLDER_ACTION);
+		}
+		
 		return true;
 	}
 }
@@ -0,0 +1,15 @@
+package com.spazedog.xposed.additionsgb.backend.pwm.iface;
+
+import com.spazedog.xposed.additionsgb.backend.pwm.KeyInjectionBatch;
+
+/**
+ * Used by the EventKey objects to send key events back into the system
+ */
+public interface IKeyInjector {
+	
+	public KeyInjectionBatch obtainInjectionBatch();
+	
+	public void injectInputEvents(KeyInjectionBatch batch);
+	
+	public void injectInputEvent(int keyCode, int action, long downTime, int repeatCount, int flags, int metaState);
+}
@@ -1,8 +1,8 @@
 package com.spazedog.xposed.additionsgb.backend.pwm.iface;
 
-import java.util.HashMap;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import android.content.Context;
 import android.content.Intent;
@@ -176,9 +176,52 @@ public abstract class IMediatorSetup {
 	
 	protected Boolean mReady = false;
 	
-	protected Map<String, ReflectConstructor> mConstructors = new HashMap<String, ReflectConstructor>();
-	protected Map<String, ReflectMethod> mMethods = new HashMap<String, ReflectMethod>();
-	protected Map<String, ReflectField> mFields = new HashMap<String, ReflectField>();
+	/*
+	 * All members used by the mediator are bound here once, during setup. Required members
+	 * throws while the module is being set up, not when they are first used. Optional members are
+	 * left as null when the ROM does not have them, and are reported once at the end of the setup.
+	 */
+	protected ReflectMethod mSamsungKeyFeedbackMethod;				// SamsungPhoneWindowManager.performSystemKeyFeedback (Optional)
+	protected ReflectMethod mHapticFeedbackMethod;					// PhoneWindowManager.performHapticFeedbackLw
+	
+	protected ReflectMethod mKeyguardShowingMethod;					// KeyguardMediator.isShowingAndNotHidden / isShowingAndNotOccluded
+	protected ReflectMethod mKeyguardLockedMethod;					// KeyguardMediator.isShowing
+	protected ReflectMethod mKeyguardRestrictedMethod;				// KeyguardMediator.isInputRestricted
+	protected ReflectMethod mKeyguardDismissMethod;					// KeyguardMediator.keyguardDone
+	
+	protected ReflectMethod mGoToSleepMethod;						// PowerManagerService.goToSleep
+	protected ReflectMethod mUserActivityMethod;					// PowerManagerService.userActivity
+	protected ReflectMethod mWakeUpMethod;							// PowerManagerService.wakeUp or forceUserActivityLocked
+	
+	protected ReflectMethod mDeviceExternalMethod;					// InputDevice.isExternal (API 16+)
+	
+	protected ReflectConstructor mUserHandleConstructor;			// UserHandle(int) (API 17+)
+	protected ReflectField mUserCurrentField;						// UserHandle.USER_CURRENT (API 17+)
+	protected ReflectMethod mStartActivityAsUserMethod;				// Context.startActivityAsUser (API 17+)
+	protected ReflectMethod mSendBroadcastAsUserMethod;				// Context.sendBroadcastAsUser (API 17+)
+	
+	protected ReflectMethod mCloseSystemDialogsMethod;				// IActivityManager.closeSystemDialogs (Optional)
+	protected ReflectMethod mGlobalActionsMethod;					// PhoneWindowManager.showGlobalActions or showGlobalActionsDialog (Optional)
+	protected ReflectMethod mGlobalActionsCustomMethod;				// PhoneWindowManager.showGlobalActionsDialog(boolean) on some custom ROM's (Optional)
+	protected ReflectMethod mToggleRecentAppsMethod;				// IStatusBarService.toggleRecentApps or RecentApplicationsDialog.show (Optional)
+	protected ReflectMethod mTakeScreenshotMethod;					// PhoneWindowManager.takeScreenshot (Optional)
+	
+	protected ReflectMethod mGetRotationMethod;						// IWindowManager.getRotation
+	protected ReflectMethod mFreezeRotationMethod;					// IWindowManager.freezeRotation (API 11+)
+	protected ReflectMethod mThawRotationMethod;					// IWindowManager.thawRotation (API 11+)
+	
+	protected ReflectMethod mForceStopPackageMethod;				// IActivityManager.forceStopPackage
+	
+	/*
+	 * These are used for each key event, so they are kept as plain methods with a fixed receiver
+	 * and invoked directly using invokeDirect(), skipping the member and receiver resolution in ReflectTools.
+	 */
+	protected Method mInjectInputEventMethod;						// InputManager.injectInputEvent or IWindowManager.injectInputEventNoWait
+	protected Object mInjectInputEventReceiver;
+	protected Method mWakeKeyMethod;								// PhoneWindowManager.isWakeKeyWhenScreenOff (Optional)
+	protected Object mWakeKeyReceiver;
+	
+	private final List<String> mMissingMembers = new ArrayList<String>();
 	
 	protected IMediatorSetup(ReflectClass pwm, XServiceManager xServiceManager) {
 		mXServiceManager = xServiceManager;
@@ -226,17 +269,17 @@ public abstract class IMediatorSetup {
 			mSamsungPhoneWindowManager = pwm.findField("mSPWM").getValueToInstance();
 			
 			if (SDK.SAMSUNG_FEEDBACK_VERSION == 1) {
-				mMethods.put("samsung.performSystemKeyFeedback", mSamsungPhoneWindowManager.findMethod("performSystemKeyFeedback", Match.DEFAULT, KeyEvent.class));
+				mSamsungKeyFeedbackMethod = mSamsungPhoneWindowManager.findMethod("performSystemKeyFeedback", Match.DEFAULT, KeyEvent.class);
 				
 			} else {
-				mMethods.put("samsung.performSystemKeyFeedback", mSamsungPhoneWindowManager.findMethod("performSystemKeyFeedback", Match.DEFAULT, KeyEvent.class, Boolean.TYPE, Boolean.TYPE));
+				mSamsungKeyFeedbackMethod = mSamsungPhoneWindowManager.findMethod("performSystemKeyFeedback", Match.DEFAULT, KeyEvent.class, Boolean.TYPE, Boolean.TYPE);
 			}
 		}
 		
 		/*
 		 * Get the regular haptic feedback method
 		 */
-		mMethods.put("performHapticFeedback", pwm.findMethodDeep("performHapticFeedbackLw", Match.BEST, "android.view.WindowManagerPolicy$WindowState", Integer.TYPE, Boolean.TYPE));
+		mHapticFeedbackMethod = pwm.findMethodDeep("performHapticFeedbackLw", Match.BEST, "android.view.WindowManagerPolicy$WindowState", Integer.TYPE, Boolean.TYPE);
 		
 		/*
 		 * Locate KeyGuard Tools
@@ -252,15 +295,15 @@ public abstract class IMediatorSetup {
 		});
 		
 		if (SDK.MANAGER_KEYGUARD_VERSION > 2) {
-			mMethods.put("KeyguardMediator.isShowing", mKeyguardMediator.findMethodDeep("isShowingAndNotOccluded"));
+			mKeyguardShowingMethod = mKeyguardMediator.findMethodDeep("isShowingAndNotOccluded");
 		
 		} else {
-			mMethods.put("KeyguardMediator.isShowing", mKeyguardMediator.findMethodDeep("isShowingAndNotHidden"));
+			mKeyguardShowingMethod = mKeyguardMediator.findMethodDeep("isShowingAndNotHidden");
 		}
 		
-		mMethods.put("KeyguardMediator.isLocked", mKeyguardMediator.findMethodDeep("isShowing"));
-		mMethods.put("KeyguardMediator.isRestricted", mKeyguardMediator.findMethodDeep("isInputRestricted"));
-		mMethods.put("KeyguardMediator.dismiss", mKeyguardMediator.findMethodDeep("keyguardDone", Match.DEFAULT, Boolean.TYPE, Boolean.TYPE));
+		mKeyguardLockedMethod = mKeyguardMediator.findMethodDeep("isShowing");
+		mKeyguardRestrictedMethod = mKeyguardMediator.findMethodDeep("isInputRestricted");
+		mKeyguardDismissMethod = mKeyguardMediator.findMethodDeep("keyguardDone", Match.DEFAULT, Boolean.TYPE, Boolean.TYPE);
 		
 		/*
 		 * Get the Activity Management tools
@@ -280,22 +323,22 @@ public abstract class IMediatorSetup {
 		 */
 		
 		if (SDK.MANAGER_POWER_VERSION > 3) {
-			mMethods.put("goToSleep", mPowerManagerService.findMethodDeep("goToSleep", Match.DEFAULT, Long.TYPE, Integer.TYPE, Integer.TYPE));
+			mGoToSleepMethod = mPowerManagerService.findMethodDeep("goToSleep", Match.DEFAULT, Long.TYPE, Integer.TYPE, Integer.TYPE);
 			
 		} else if (SDK.MANAGER_POWER_VERSION > 1) { 
-			mMethods.put("goToSleep", mPowerManagerService.findMethodDeep("goToSleep", Match.DEFAULT, Long.TYPE, Integer.TYPE));
+			mGoToSleepMethod = mPowerManagerService.findMethodDeep("goToSleep", Match.DEFAULT, Long.TYPE, Integer.TYPE);
 			
 		} else {
-			mMethods.put("goToSleep", mPowerManagerService.findMethodDeep("goToSleep", Match.DEFAULT, Long.TYPE));
+			mGoToSleepMethod = mPowerManagerService.findMethodDeep("goToSleep", Match.DEFAULT, Long.TYPE);
 		}
 		
 		if (SDK.MANAGER_POWER_VERSION == 1) {
-			mMethods.put("userActivity", mPowerManagerService.findMethodDeep("userActivity", Match.DEFAULT, Long.TYPE, Boolean.TYPE));
-			mMethods.put("forceUserActivityLocked", mPowerManagerService.findMethodDeep("forceUserActivityLocked"));
+			mUserActivityMethod = mPowerManagerService.findMethodDeep("userActivity", Match.DEFAULT, Long.TYPE, Boolean.TYPE);
+			mWakeUpMethod = mPowerManagerService.findMethodDeep("forceUserActivityLocked");
 			
 		} else {
-			mMethods.put("userActivity", mPowerManagerService.findMethodDeep("userActivity", Match.DEFAULT, Long.TYPE, Integer.TYPE, Integer.TYPE));
-			mMethods.put("wakeUp", mPowerManagerService.findMethodDeep("wakeUp", Match.DEFAULT, Long.TYPE));
+			mUserActivityMethod = mPowerManagerService.findMethodDeep("userActivity", Match.DEFAULT, Long.TYPE, Integer.TYPE, Integer.TYPE);
+			mWakeUpMethod = mPowerManagerService.findMethodDeep("wakeUp", Match.DEFAULT, Long.TYPE);
 		}
 		
 		/*
@@ -305,17 +348,19 @@ public abstract class IMediatorSetup {
 		
 		if (SDK.MANAGER_HARDWAREINPUT_VERSION > 1) {
 			mInputManager = ReflectClass.forName("android.hardware.input.InputManager").findMethod("getInstance").invokeForReceiver();
-			mMethods.put("injectInputEvent", mInputManager.findMethodDeep("injectInputEvent", Match.DEFAULT, KeyEvent.class, Integer.TYPE));
+			mInjectInputEventMethod = bindDirect(mInputManager.findMethodDeep("injectInputEvent", Match.DEFAULT, KeyEvent.class, Integer.TYPE));
+			mInjectInputEventReceiver = mInputManager.getReceiver();
 		
 		} else {
-			mMethods.put("injectInputEvent", mWindowManagerService.findMethodDeep("injectInputEventNoWait", Match.DEFAULT, KeyEvent.class));
+			mInjectInputEventMethod = bindDirect(mWindowManagerService.findMethodDeep("injectInputEventNoWait", Match.DEFAULT, KeyEvent.class));
+			mInjectInputEventReceiver = mWindowManagerService.getReceiver();
 		}
 		
 		/*
 		 * Get a hidden method to check internal/external state of devices
 		 */
 		if (SDK.INPUT_DEVICESTORAGE_VERSION > 1) {
-			mMethods.put("isDeviceExternal", ReflectClass.forName("android.view.InputDevice").findMethod("isExternal"));
+			mDeviceExternalMethod = ReflectClass.forName("android.view.InputDevice").findMethod("isExternal");
 		}
 		
 		/*
@@ -327,24 +372,26 @@ public abstract class IMediatorSetup {
 		 * Get Multi User tools
 		 */
 		if (SDK.MANAGER_MULTIUSER_VERSION > 0) {
-			mConstructors.put("UserHandle", ReflectClass.forName("android.os.UserHandle").findConstructor(Match.BEST, Integer.TYPE));
-			mFields.put("UserHandle.current", ReflectClass.forName("android.os.UserHandle").findField("USER_CURRENT"));
-			mMethods.put("startActivityAsUser", mContext.findMethodDeep("startActivityAsUser", Match.BEST, Intent.class, "android.os.UserHandle"));
-			mMethods.put("sendBroadcastAsUser", mContext.findMethodDeep("sendBroadcastAsUser", Match.BEST, Intent.class, "android.os.UserHandle"));
+			ReflectClass userHandle = ReflectClass.forName("android.os.UserHandle");
+			
+			mUserHandleConstructor = userHandle.findConstructor(Match.BEST, Integer.TYPE);
+			mUserCurrentField = userHandle.findField("USER_CURRENT");
+			mStartActivityAsUserMethod = mContext.findMethodDeep("startActivityAsUser", Match.BEST, Intent.class, "android.os.UserHandle");
+			mSendBroadcastAsUserMethod = mContext.findMethodDeep("sendBroadcastAsUser", Match.BEST, Intent.class, "android.os.UserHandle");
 		}
 		
 		/*
 		 * Get Tools for displaying Global Actions Menu
 		 */
 		try {
-			mMethods.put("closeSystemDialogs", mActivityManagerService.findMethodDeep("closeSystemDialogs", Match.BEST, String.class));
+			mCloseSystemDialogsMethod = mActivityManagerService.findMethodDeep("closeSystemDialogs", Match.BEST, String.class);
 			
 			try {
 				if (android.os.Build.VERSION.SDK_INT >= 21) {
-					mMethods.put("showGlobalActionsDialog", mPhoneWindowManager.findMethodDeep("showGlobalActions"));
+					mGlobalActionsMethod = mPhoneWindowManager.findMethodDeep("showGlobalActions");
 					
 				} else {
-					mMethods.put("showGlobalActionsDialog", mPhoneWindowManager.findMethodDeep("showGlobalActionsDialog"));
+					mGlobalActionsMethod = mPhoneWindowManager.findMethodDeep("showGlobalActionsDialog");
 				}
 				
 				mXServiceManager.putBoolean("variable:remap.support.global_actions", true);
@@ -354,11 +401,11 @@ public abstract class IMediatorSetup {
 					/*
 					 * Support for ROM's like SlimKat that uses a 'boolean pokeWakeLock' parameter
 					 */
-					mMethods.put("showGlobalActionsDialog.custom", mPhoneWindowManager.findMethodDeep("showGlobalActionsDialog", Match.BEST, Boolean.TYPE));
+					mGlobalActionsCustomMethod = mPhoneWindowManager.findMethodDeep("showGlobalActionsDialog", Match.BEST, Boolean.TYPE);
 					mXServiceManager.putBoolean("variable:remap.support.global_actions", true);
 					
 				} catch (ReflectException ei) {
-					if(Common.debug()) Log.d(TAG, "Missing PhoneWindowManager.showGlobalActionsDialog()");
+					reportMissing("PhoneWindowManager.showGlobalActionsDialog()");
 				}
 			}
 			
@@ -387,11 +434,12 @@ public abstract class IMediatorSetup {
 				}
 			});
 			
-			mMethods.put("toggleRecentApps", mRecentApplicationsDialog.findMethodDeep( SDK.MANAGER_RECENT_DIALOG_VERSION > 1 ? "toggleRecentApps" : "show" ));
+			mToggleRecentAppsMethod = mRecentApplicationsDialog.findMethodDeep( SDK.MANAGER_RECENT_DIALOG_VERSION > 1 ? "toggleRecentApps" : "show" );
 			mXServiceManager.putBoolean("variable:remap.support.recent_dialog", true);
 			
 		} catch (ReflectException e) {
-			if(Common.debug()) Log.d(TAG, "Missing IActivityManager.closeSystemDialogs()");
+			reportMissing(mCloseSystemDialogsMethod == null ? "IActivityManager.closeSystemDialogs()" : 
+				SDK.MANAGER_RECENT_DIALOG_VERSION > 1 ? "IStatusBarService.toggleRecentApps()" : "RecentApplicationsDialog.show()");
 		}
 		
 		/*
@@ -401,27 +449,32 @@ public abstract class IMediatorSetup {
 			/*
 			 * This does not exists in all Gingerbread versions
 			 */
-			mMethods.put("takeScreenshot", mPhoneWindowManager.findMethodDeep("takeScreenshot"));
+			mTakeScreenshotMethod = mPhoneWindowManager.findMethodDeep("takeScreenshot");
 			mXServiceManager.putBoolean("variable:remap.support.screenshot", true);
 			
-		} catch (ReflectException e) {}
+		} catch (ReflectException e) {
+			reportMissing("PhoneWindowManager.takeScreenshot()");
+		}
 		
 		/*
 		 * Get Rotation Tools
 		 */
-		mMethods.put("getRotation", mWindowManagerService.findMethodDeep("getRotation"));
+		mGetRotationMethod = mWindowManagerService.findMethodDeep("getRotation");
 		if (SDK.MANAGER_ROTATION_VERSION > 1) {
-			mMethods.put("freezeRotation", mWindowManagerService.findMethodDeep("freezeRotation", Match.BEST, Integer.TYPE));
-			mMethods.put("thawRotation", mWindowManagerService.findMethodDeep("thawRotation"));
+			mFreezeRotationMethod = mWindowManagerService.findMethodDeep("freezeRotation", Match.BEST, Integer.TYPE);
+			mThawRotationMethod = mWindowManagerService.findMethodDeep("thawRotation");
 		}
 		
 		/*
 		 * Find tools to handle wake keys
 		 */
 		try {
-			mMethods.put("isWakeKeyWhenScreenOff", mPhoneWindowManager.findMethodDeep("isWakeKeyWhenScreenOff", Match.BEST, Integer.TYPE));
+			mWakeKeyMethod = bindDirect(mPhoneWindowManager.findMethodDeep("isWakeKeyWhenScreenOff", Match.BEST, Integer.TYPE));
+			mWakeKeyReceiver = mPhoneWindowManager.getReceiver();
 			
-		} catch (ReflectException e) {}
+		} catch (ReflectException e) {
+			reportMissing("PhoneWindowManager.isWakeKeyWhenScreenOff()");
+		}
 		
 		/*
 		 * Start searching for torch support
@@ -433,7 +486,11 @@ public abstract class IMediatorSetup {
 		/*
 		 * 
 		 */
-		mMethods.put("forceStopPackage", mActivityManagerService.findMethodDeep("forceStopPackage", Match.BEST, SDK.MANAGER_MULTIUSER_VERSION > 0 ? new Object[]{String.class, Integer.TYPE} : new Object[]{String.class}));
+		mForceStopPackageMethod = mActivityManagerService.findMethodDeep("forceStopPackage", Match.BEST, SDK.MANAGER_MULTIUSER_VERSION > 0 ? new Object[]{String.class, Integer.TYPE} : new Object[]{String.class});
+		
+		if (mMissingMembers.size() > 0) {
+			Log.w(TAG, "Some features are not available on this ROM, missing " + mMissingMembers);
+		}
 		
 		mReady = true;
 	}
@@ -442,6 +499,35 @@ public abstract class IMediatorSetup {
 		return mReady;
 	}
 	
+	/**
+	 * Get the optional members that could not be found during setup
+	 */
+	public List<String> getMissingMembers() {
+		return new ArrayList<String>(mMissingMembers);
+	}
+	
+	protected void reportMissing(String member) {
+		if(Common.debug()) Log.d(TAG, "Missing " + member);
+		
+		mMissingMembers.add(member);
+	}
+	
+	/*
+	 * Get the plain method from a ReflectMethod and make it accessible once, 
+	 * so that it can be used with invokeDirect(). See DirectMethods. 
+	 */
+	protected static Method bindDirect(ReflectMethod method) {
+		return DirectMethods.bind(method);
+	}
+	
+	/*
+	 * Invoke a method bound with bindDirect(). Errors are thrown as ReflectException, 
+	 * like the ones from ReflectMethod.invoke()
+	 */
+	protected static Object invokeDirect(Method method, Object receiver, Object... args) {
+		return DirectMethods.invoke(method, receiver, args);
+	}
+	
 	protected void torchLocator() {
 		try {
 			/*
@@ -0,0 +1,26 @@
+package com.spazedog.xposed.additionsgb.backend.pwm.iface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The settings read by the EventManager and ActionTable while handling keys. 
+ * This is implemented by XServiceManager. 
+ */
+public interface IRemapSettings {
+	
+	/**
+	 * A counter that changes every time the settings change
+	 */
+	public int getDataVersion();
+	
+	public Integer getInt(String key, Integer defaultValue);
+	
+	public List<String> getStringArray(String key, ArrayList<String> defaultValue);
+	
+	public List<String> getStringArrayGroup(String group, String key, ArrayList<String> defaultValue);
+	
+	public Boolean getBooleanGroup(String group, String key);
+	
+	public Boolean isPackageUnlocked();
+}
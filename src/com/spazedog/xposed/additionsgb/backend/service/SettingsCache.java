@@ -0,0 +1,141 @@
+package com.spazedog.xposed.additionsgb.backend.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.spazedog.xposed.additionsgb.utils.SettingsDelta;
+import com.spazedog.xposed.additionsgb.utils.SettingsSnapshot;
+
+/**
+ * The client side copy of the XService settings, used by XServiceManager.
+ *
+ * It holds the current SettingsSnapshot, along with values for keys that are not part of it,
+ * like defaults from the application resources. Keys are dropped from the defaults whenever
+ * a new snapshot contains them.
+ *
+ * Both are immutable once published, so they can be read from any thread without locking.
+ * Writers build new ones while holding mLock, and swap them in.
+ */
+public final class SettingsCache {
+
+	private volatile SettingsSnapshot mSnapshot = SettingsSnapshot.EMPTY;
+	private volatile Map<String, Object> mDefaults = Collections.emptyMap();
+
+	private final Object mLock = new Object();
+
+	public SettingsSnapshot getSnapshot() {
+		return mSnapshot;
+	}
+
+	public int getVersion() {
+		return mSnapshot.getVersion();
+	}
+
+	/**
+	 * @return
+	 *     The cached defaults. The map is never changed, so it is safe to keep while reading from it.
+	 */
+	public Map<String, Object> getDefaults() {
+		return mDefaults;
+	}
+
+	/**
+	 * Swap in a complete snapshot, like the one fetched from the service
+	 */
+	public void setSnapshot(SettingsSnapshot snapshot) {
+		synchronized (mLock) {
+			mSnapshot = snapshot;
+
+			dropDefaults(snapshot.keySet());
+		}
+	}
+
+	/**
+	 * Build the next snapshot from a delta sent by the service
+	 *
+	 * @return
+	 *     False if the delta does not follow the current snapshot, in which case it is not applied
+	 */
+	public boolean apply(SettingsDelta delta) {
+		synchronized (mLock) {
+			SettingsSnapshot current = mSnapshot;
+
+			if (delta.getBaseVersion() == current.getVersion()) {
+				List<String> keys = new ArrayList<String>(delta.size());
+
+				for (int i=0; i < delta.size(); i++) {
+					keys.add(delta.keyAt(i));
+				}
+
+				mSnapshot = current.apply(delta);
+
+				dropDefaults(keys);
+
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Cache a value that is not part of the snapshot
+	 *
+	 * @param snapshot
+	 *     The snapshot that was current before the value was requested. If another one has been
+	 *     swapped in since then, the value might belong to that one rather than being a default.
+	 *     In that case it is simply not cached.
+	 *
+	 * @return
+	 *     True if the value was cached
+	 */
+	public boolean putDefault(String key, Object value, SettingsSnapshot snapshot) {
+		synchronized (mLock) {
+			if (snapshot == mSnapshot && !snapshot.contains(key)) {
+				Map<String, Object> map = new HashMap<String, Object>(mDefaults);
+				map.put(key, value);
+
+				mDefaults = Collections.unmodifiableMap(map);
+
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	/**
+	 * Drop all cached defaults, for instance when the package has changed
+	 */
+	public void clearDefaults() {
+		synchronized (mLock) {
+			mDefaults = Collections.emptyMap();
+		}
+	}
+
+	/*
+	 * Only called after the snapshot containing the keys has been swapped in,
+	 * so that putDefault() cannot add them back afterwards
+	 */
+	private void dropDefaults(Collection<String> keys) {
+		Map<String, Object> map = null;
+
+		for (String key : keys) {
+			if (mDefaults.containsKey(key)) {
+				if (map == null) {
+					map = new HashMap<String, Object>(mDefaults);
+				}
+
+				map.remove(key);
+			}
+		}
+
+		if (map != null) {
+			mDefaults = Collections.unmodifiableMap(map);
+		}
+	}
+}
@@ -20,9 +20,7 @@
 package com.spazedog.xposed.additionsgb.backend.service;
 
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -44,8 +42,12 @@ import com.spazedog.lib.reflecttools.ReflectClass;
 import com.spazedog.lib.reflecttools.utils.ReflectConstants.Match;
 import com.spazedog.xposed.additionsgb.Common;
 import com.spazedog.xposed.additionsgb.IServicePreferences;
+import com.spazedog.xposed.additionsgb.backend.pwm.FlightRecorder;
+import com.spazedog.xposed.additionsgb.backend.pwm.LatencyTracker;
+import com.spazedog.xposed.additionsgb.utils.SettingsDelta;
 import com.spazedog.xposed.additionsgb.utils.SettingsHelper.SettingsData;
 import com.spazedog.xposed.additionsgb.utils.SettingsHelper.Type;
+import com.spazedog.xposed.additionsgb.utils.SettingsSnapshot;
 
 import de.robv.android.xposed.XC_MethodHook;
 
@@ -59,11 +61,30 @@ public final class XService extends IXService.Stub {
 	
 	private SettingsData mData = new SettingsData();
 	
+	/*
+	 * Held while changing mData, including when it is replaced as a whole. 
+	 * The data version is bumped before it is released again.
+	 */
+	private final Object mDataLock = new Object();
+	
+	/*
+	 * Bumped on each change to mData. The snapshot is created from mData on the first 
+	 * request after a change, and is then shared by all clients until the next change. 
+	 * Both are guarded by mSnapshotLock. A new snapshot is only created while also holding 
+	 * mDataLock, so that it never contains a change that is not yet part of it's version. 
+	 */
+	private final Object mSnapshotLock = new Object();
+	private int mDataVersion = 1;
+	private SettingsSnapshot mSnapshot;
+	
 	private Boolean mIsReady = false;
 	
 	private Integer mVersion = 0;
 	
-	private Set<IBinder> mListeners = new HashSet<IBinder>();
+	/*
+	 * Sends all notifications to the listeners from a separate thread
+	 */
+	private final XServiceNotifier mNotifier = new XServiceNotifier();
 	
 	private static class PREFERENCE {
 		private static int UID = 1000;
@@ -209,13 +230,17 @@ public final class XService extends IXService.Stub {
 						service.writeSettingsData(mData);
 						
 					} else {
-						mData = service.readSettingsData();
+						SettingsData data = service.readSettingsData();
 						
-						/*
-						 * Make sure that managers that has already collected some data 
-						 * makes sure to update it. 
-						 */
-						broadcastChange(null);
+						synchronized (mDataLock) {
+							mData = data;
+							
+							/*
+							 * Make sure that managers that has already collected some data 
+							 * makes sure to update it. 
+							 */
+							broadcastChange();
+						}
 					}
 					
 					mIsReady = true;
@@ -241,11 +266,14 @@ public final class XService extends IXService.Stub {
 	}
 	
 	private void setCached(String key, Object value, Integer preserve) {
-		synchronized (mData) {
+		synchronized (mDataLock) {
 			if (accessGranted()) {
 				mData.put(key, value, preserve == 1);
 				
-				broadcastChange(key);
+				SettingsDelta delta = new SettingsDelta();
+				delta.put(key, value, preserve == 1);
+				
+				broadcastChange(delta);
 			}
 		}
 	}
@@ -334,11 +362,14 @@ public final class XService extends IXService.Stub {
 	
 	@Override
 	public boolean remove(String key) {
-		synchronized (mData) {
+		synchronized (mDataLock) {
 			if (mData.contains(key) && accessGranted()) {
 				mData.remove(key);
 				
-				broadcastChange(key);
+				SettingsDelta delta = new SettingsDelta();
+				delta.remove(key);
+				
+				broadcastChange(delta);
 				
 				return true;
 			}
@@ -347,6 +378,83 @@ public final class XService extends IXService.Stub {
 		}
 	}
 	
+	/**
+	 * Apply a batch of changes from a client as one. If any of them fails, the ones 
+	 * already applied are reverted. The clients receive a single change notification 
+	 * for the whole batch.
+	 */
+	@Override
+	public boolean commit(SettingsDelta batch) {
+		synchronized (mDataLock) {
+			if (!accessGranted()) {
+				return false;
+			}
+			
+			SettingsData data = mData;
+			int size = batch.size();
+			boolean changed = data.changed();
+			Object[] values = new Object[size];
+			boolean[] existed = new boolean[size];
+			boolean[] persistent = new boolean[size];
+			int position = 0;
+			
+			try {
+				for (; position < size; position++) {
+					String key = batch.keyAt(position);
+					
+					existed[position] = data.contains(key);
+					values[position] = data.get(key);
+					persistent[position] = data.persistent(key);
+					
+					if (batch.typeAt(position) == Type.UNKNOWN) {
+						data.remove(key);
+						
+					} else {
+						data.put(key, batch.valueAt(position), batch.persistentAt(position));
+					}
+				}
+				
+			} catch (RuntimeException e) {
+				Log.e(TAG, "Reverting a batch of " + size + " changes", e);
+				
+				/*
+				 * Go backwards, in case the same key was changed more than once
+				 */
+				for (int i=Math.min(position, size-1); i >= 0; i--) {
+					String key = batch.keyAt(i);
+					
+					data.remove(key);
+					
+					if (existed[i]) {
+						data.put(key, values[i], persistent[i]);
+					}
+				}
+				
+				/*
+				 * Nothing has changed, so there is nothing new for apply() to write
+				 */
+				data.setChanged(changed);
+				
+				/*
+				 * getSnapshot() cannot build a snapshot while we hold mDataLock, but drop the 
+				 * shared one anyway, so that no part of a reverted batch can ever stay cached. 
+				 * The version is not bumped, as the data is the same as before the batch. 
+				 */
+				synchronized (mSnapshotLock) {
+					mSnapshot = null;
+				}
+				
+				return false;
+			}
+			
+			if (size > 0) {
+				broadcastChange(batch);
+			}
+			
+			return true;
+		}
+	}
+	
 	@Override
 	public int getType(String key) {
 		if (mData.contains(key)) {
@@ -386,7 +494,7 @@ public final class XService extends IXService.Stub {
 	}
 	
 	private void write() {
-		synchronized (mData) {
+		synchronized (mDataLock) {
 			pokeAppPreferenceService(PokeType.SAVE_SETTINGS);
 		}
 	}
@@ -409,86 +517,76 @@ public final class XService extends IXService.Stub {
 	
 	@Override
 	public void setOnChangeListener(IXServiceChangeListener listener) throws RemoteException {
-		final IBinder binder = listener.asBinder();
-		binder.linkToDeath(new DeathRecipient(){
-			@Override
-			public void binderDied() {
-				synchronized(mListeners) {
-					binder.unlinkToDeath(this, 0);
-					
-					mListeners.remove(binder);
-				}
-			}
-			
-		}, 0);
-		
-		synchronized(mListeners) {
-			if (!mListeners.contains(binder)) {
-				mListeners.add(binder);
-			}
-		}
+		mNotifier.addListener(listener);
 	}
 	
 	@Override
 	public void sendBroadcast(String action, Bundle data) {
-		synchronized(mListeners) {
-			for (IBinder listener : mListeners) {
-				if (listener != null && listener.pingBinder()) {
-					try {
-						IXServiceChangeListener.Stub.asInterface(listener).onBroadcastReceive(action, data);
-						
-					} catch (RemoteException e) {}
-				}
-			}
-		}
+		mNotifier.notifyBroadcast(action, data);
 	}
 	
 	protected BroadcastReceiver applicationNotifier = new BroadcastReceiver() {
 		@Override
 		public void onReceive(Context context, Intent intent) {
-			synchronized(mListeners) {
-				for (IBinder listener : mListeners) {
-					if (listener != null && listener.pingBinder()) {
-						try {
-							IXServiceChangeListener.Stub.asInterface(listener).onPackageChanged();
-							
-						} catch (RemoteException e) {}
-					}
-				}
-			}
+			mNotifier.notifyPackageChanged();
 		}
 	};
 	
-	private void broadcastChange(String key) {
-		Integer type = key != null && mData.contains(key) ? mData.type(key) : Type.UNKNOWN;
+	/*
+	 * Publish a new data version after the whole data set has been replaced. 
+	 * The clients will fetch the new snapshot themselves.
+	 */
+	private void broadcastChange() {
+		broadcastChange(null);
+	}
+	
+	/*
+	 * Publish a new data version and send the changes to the clients, 
+	 * so that they can update their snapshot without calling back into the service. 
+	 * Must be called while holding mDataLock. 
+	 * 
+	 * The notification is only queued here, so this never waits on any of the clients.
+	 */
+	private void broadcastChange(SettingsDelta delta) {
+		Integer version;
 		
-		synchronized(mListeners) {
-			for (IBinder listener : mListeners) {
-				if (listener != null && listener.pingBinder()) {
-					try {
-						if (key == null) {
-							IXServiceChangeListener.Stub.asInterface(listener).onPreferenceDataSetChanged();
-							
-						} else if (type == Type.UNKNOWN) {
-							IXServiceChangeListener.Stub.asInterface(listener).onPreferenceRemoved(key);
-							
-						} else {
-							IXServiceChangeListener.Stub.asInterface(listener).onPreferenceChanged(key, type);
-						}
-						
-					} catch (RemoteException e) {}
-				}
+		synchronized (mSnapshotLock) {
+			version = ++mDataVersion;
+			
+			if (delta != null) {
+				delta.setVersion(version);
+			}
+			
+			/*
+			 * Keep the shared snapshot current when possible, 
+			 * instead of copying all of mData on the next request
+			 */
+			if (delta != null && mSnapshot != null && mSnapshot.getVersion() == version - 1) {
+				mSnapshot = mSnapshot.apply(delta);
+				
+			} else {
+				mSnapshot = null;
+			}
+			
+			/*
+			 * Queued while holding the lock, so that the notifications are queued in version order
+			 */
+			if (delta != null) {
+				mNotifier.notifySettingsDelta(delta);
+				
+			} else {
+				mNotifier.notifySettingsChanged(version);
 			}
 		}
 	}
 	
 	@Override
 	public void setSettingsData(SettingsData data) {
-		synchronized (mData) {
+		synchronized (mDataLock) {
 			if (accessGranted()) {
 				mData = data;
 				
-				broadcastChange(null);
+				broadcastChange();
 			}
 		}
 	}
@@ -497,4 +595,53 @@ public final class XService extends IXService.Stub {
 	public SettingsData getSettingsData() {
 		return mData;
 	}
+	
+	/**
+	 * Get all settings as one immutable snapshot
+	 * 
+	 * @param version
+	 *     The snapshot version that the client already has
+	 *     
+	 * @return
+	 *     The current snapshot, or null if the client already has it
+	 */
+	@Override
+	public SettingsSnapshot getSnapshot(int version) {
+		synchronized (mSnapshotLock) {
+			if (version == mDataVersion) {
+				return null;
+				
+			} else if (mSnapshot != null) {
+				return mSnapshot;
+			}
+		}
+		
+		/*
+		 * Writers hold mDataLock from the first change until the version is bumped, 
+		 * so holding it here means that mData matches mDataVersion. 
+		 */
+		synchronized (mDataLock) {
+			synchronized (mSnapshotLock) {
+				if (version == mDataVersion) {
+					return null;
+				}
+				
+				if (mSnapshot == null) {
+					mSnapshot = new SettingsSnapshot(mDataVersion, mData);
+				}
+				
+				return mSnapshot;
+			}
+		}
+	}
+	
+	@Override
+	public long[] getLatencyData() {
+		return LatencyTracker.export();
+	}
+	
+	@Override
+	public byte[] getFlightRecord() {
+		return FlightRecorder.getInstance().dump();
+	}
 }
@@ -21,11 +21,10 @@ package com.spazedog.xposed.additionsgb.backend.service;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
 
 import android.os.Bundle;
 import android.os.RemoteException;
@@ -33,30 +32,46 @@ import android.util.Log;
 
 import com.spazedog.lib.reflecttools.ReflectClass;
 import com.spazedog.xposed.additionsgb.Common;
+import com.spazedog.xposed.additionsgb.backend.pwm.iface.IRemapSettings;
+import com.spazedog.xposed.additionsgb.utils.SettingsDelta;
 import com.spazedog.xposed.additionsgb.utils.SettingsHelper.SettingsData;
 import com.spazedog.xposed.additionsgb.utils.SettingsHelper.Type;
+import com.spazedog.xposed.additionsgb.utils.SettingsSnapshot;
 
 /*
  * This manager makes it easier to work with the XService. 
- * On top of that, the manager allows you to register a Context on which a BroadcastReceiver
- * will be added along with a data cache to make it faster acquiring key values. The
- * Receiver will make sure to keep the cache updated and avoid having to request values via IPC each time
- * you call the get methods. 
+ * On top of that, the manager keeps a snapshot of all the settings in the service, 
+ * which is replaced as a whole each time the service reports a new data version. This avoids 
+ * having to request values via IPC each time you call the get methods. 
+ * The get methods can be called from any thread, and never lock while reading cached values. 
  */
-public class XServiceManager {
+public class XServiceManager implements IRemapSettings {
 	public static final String TAG = XServiceManager.class.getName();
 	
 	private static WeakReference<XServiceManager> oInstance = new WeakReference<XServiceManager>(null);
 	
-	private Set<XServiceBroadcastListener> mListeners = new HashSet<XServiceBroadcastListener>();
+	/*
+	 * Listeners are called from binder threads while others might add or remove them
+	 */
+	private final Set<XServiceBroadcastListener> mListeners = new CopyOnWriteArraySet<XServiceBroadcastListener>();
 	
-	private IXService mService;
+	private volatile IXService mService;
 	
-	private Boolean mIsUnlocked;
+	private volatile Boolean mIsUnlocked;
 	
-	private Boolean isReady;
+	private volatile Boolean isReady;
 	
-	private Map<String, Object> mData = new HashMap<String, Object>();
+	/*
+	 * All settings stored in the service, along with cached defaults for keys that are not. 
+	 * The snapshot version is also used as the data version, which allows others to keep 
+	 * their own compiled data and only rebuild it once something has actually changed. 
+	 */
+	private final SettingsCache mCache = new SettingsCache();
+	
+	/*
+	 * Changes collected between beginBatch() and commit(), kept per thread
+	 */
+	private final ThreadLocal<SettingsDelta> mBatch = new ThreadLocal<SettingsDelta>();
 	
 	public static interface XServiceBroadcastListener {
 		public void onBroadcastReceive(String action, Bundle data);
@@ -64,32 +79,25 @@ public class XServiceManager {
 	
 	private IXServiceChangeListener mInternalListener = new IXServiceChangeListener.Stub(){
 		@Override
-		public void onPreferenceDataSetChanged() {
-			mData.clear();
+		public void onSettingsChanged(int version) {
+			if (version != mCache.getVersion()) {
+				updateSnapshot();
+			}
 		}
 		
 		@Override
-		public void onPreferenceChanged(String key, int type) {
-			try {
-				switch(type) {
-					case Type.STRING: mData.put(key, mService.getString(key, "")); break;
-					case Type.INTEGER: mData.put(key, mService.getInt(key, -1)); break;
-					case Type.BOOLEAN: mData.put(key, mService.getBoolean(key, false)); break;
-					case Type.LIST: mData.put(key, mService.getStringArray(key, new ArrayList<String>())); 
-					case Type.UNKNOWN: mData.remove(key);
-				}
-				
-			} catch (RemoteException e) { handleRemoteException(e); }
-		}
-
-		@Override
-		public void onPreferenceRemoved(String key) {
-			mData.remove(key);
+		public void onSettingsDelta(SettingsDelta delta) {
+			applyDelta(delta);
 		}
 
 		@Override
 		public void onPackageChanged() throws RemoteException {
 			mIsUnlocked = mService.isUnlocked();
+			
+			/*
+			 * Resource defaults might have changed with the package
+			 */
+			mCache.clearDefaults();
 		}
 
 		@Override
@@ -119,6 +127,7 @@ public class XServiceManager {
 						
 						if (instance.mService != null) {
 							instance.mService.setOnChangeListener(instance.mInternalListener);
+							instance.updateSnapshot();
 							
 							oInstance = new WeakReference<XServiceManager>(instance);
 							
@@ -150,6 +159,13 @@ public class XServiceManager {
 					if (mService != null) {
 						mService.setOnChangeListener(mInternalListener);
 						
+						/*
+						 * The service might have been restarted, in which case the 
+						 * versions starts over. So always get a new snapshot.
+						 */
+						mCache.setSnapshot(SettingsSnapshot.EMPTY);
+						updateSnapshot();
+						
 						break;
 					}
 				}
@@ -162,16 +178,78 @@ public class XServiceManager {
 	
 	private XServiceManager(){}
 	
-	public void addBroadcastListener(XServiceBroadcastListener listener) {
-		if (!mListeners.contains(listener)) {
-			mListeners.add(listener);
+	/*
+	 * Fetch the current snapshot from the service in a single transaction and swap it in
+	 */
+	private synchronized void updateSnapshot() {
+		SettingsSnapshot current = mCache.getSnapshot();
+		
+		try {
+			SettingsSnapshot snapshot = mService.getSnapshot(current.getVersion());
+			
+			if (snapshot != null) {
+				if(Common.debug()) Log.d(TAG, "Updating settings snapshot from version " + current.getVersion() + " to " + snapshot.getVersion());
+				
+				mCache.setSnapshot(snapshot);
+			}
+			
+		} catch (RemoteException e) { 
+			Log.e(TAG, e.getMessage(), e);
 		}
 	}
 	
-	public void removeBroadcastListener(XServiceBroadcastListener listener) {
-		if (mListeners.contains(listener)) {
-			mListeners.remove(listener);
+	/*
+	 * Build the next snapshot from a delta sent by the service. If a version was missed 
+	 * on the way, the whole snapshot is fetched instead.
+	 */
+	private synchronized void applyDelta(SettingsDelta delta) {
+		if (!mCache.apply(delta) && delta.getVersion() > mCache.getVersion()) {
+			updateSnapshot();
+		}
+	}
+	
+	/*
+	 * Get a value that is not part of the snapshot. These are requested via IPC 
+	 * the first time, and cached along with the snapshot.
+	 */
+	@SuppressWarnings("unchecked")
+	private Object getDefault(String key, Object defaultValue, int type) throws RemoteException {
+		Map<String, Object> defaults = mCache.getDefaults();
+		
+		if (defaults.containsKey(key)) {
+			return defaults.get(key);
+		}
+		
+		if(Common.debug()) Log.d(TAG, "Retrieving preference '" + key + "' via IPC");
+		
+		SettingsSnapshot snapshot = mCache.getSnapshot();
+		Object value = null;
+		
+		switch (type) {
+			case Type.STRING: value = mService.getString(key, (String) defaultValue); break;
+			case Type.INTEGER: value = mService.getInt(key, (Integer) defaultValue); break;
+			case Type.BOOLEAN: value = mService.getBoolean(key, (Boolean) defaultValue); break;
+			case Type.LIST: value = mService.getStringArray(key, (List<String>) defaultValue);
 		}
+		
+		/*
+		 * Not cached if a new snapshot was swapped in while waiting on the service
+		 */
+		mCache.putDefault(key, value, snapshot);
+		
+		return value;
+	}
+	
+	public void addBroadcastListener(XServiceBroadcastListener listener) {
+		mListeners.add(listener);
+	}
+	
+	public void removeBroadcastListener(XServiceBroadcastListener listener) {
+		mListeners.remove(listener);
+	}
+	
+	public int getDataVersion() {
+		return mCache.getVersion();
 	}
 	
 	public Integer getIntGroup(String group, String key) {
@@ -251,7 +329,12 @@ public class XServiceManager {
 					try {
 						if(Common.debug()) Log.d(TAG, "Removing group array '" + arrKey + "'");
 						
-						mService.remove(arrKey);
+						if (mBatch.get() != null) {
+							mBatch.get().remove(arrKey);
+							
+						} else {
+							mService.remove(arrKey);
+						}
 						
 					} catch (RemoteException e) { 
 						if(Common.debug()) Log.d(TAG, "The group array '" + arrKey + "' could not be removed");
@@ -279,13 +362,8 @@ public class XServiceManager {
 	
 	public Integer getInt(String key, Integer defaultValue) {
 		try {
-			if (!mData.containsKey(key)) {
-				if(Common.debug()) Log.d(TAG, "Retrieving preference Integer '" + key + "' via IPC");
-				
-				mData.put(key, mService.getInt(key, defaultValue));
-			}
-			
-			Integer value = (Integer) mData.get(key);
+			SettingsSnapshot snapshot = mCache.getSnapshot();
+			Integer value = (Integer) (snapshot.contains(key) ? snapshot.get(key) : getDefault(key, defaultValue, Type.INTEGER));
 
 			return value != null ? value : defaultValue;
 			
@@ -298,13 +376,8 @@ public class XServiceManager {
 	
 	public Boolean getBoolean(String key, Boolean defaultValue) {
 		try {
-			if (!mData.containsKey(key)) {
-				if(Common.debug()) Log.d(TAG, "Retrieving preference Boolean '" + key + "' via IPC");
-				
-				mData.put(key, mService.getBoolean(key, defaultValue));
-			}
-			
-			Boolean value = (Boolean) mData.get(key);
+			SettingsSnapshot snapshot = mCache.getSnapshot();
+			Boolean value = (Boolean) (snapshot.contains(key) ? snapshot.get(key) : getDefault(key, defaultValue, Type.BOOLEAN));
 
 			return value != null ? value : defaultValue;
 			
@@ -318,15 +391,13 @@ public class XServiceManager {
 	@SuppressWarnings("unchecked")
 	public List<String> getStringArray(String key, ArrayList<String> defaultValue) {
 		try {
-			if (!mData.containsKey(key)) {
-				if(Common.debug()) Log.d(TAG, "Retrieving preference StringArray '" + key + "' via IPC");
-				
-				mData.put(key, mService.getStringArray(key, defaultValue));
-			}
-			
-			List<String> list = (List<String>) mData.get(key);
+			SettingsSnapshot snapshot = mCache.getSnapshot();
+			List<String> list = (List<String>) (snapshot.contains(key) ? snapshot.get(key) : getDefault(key, defaultValue, Type.LIST));
 
-			return list != null ? list : defaultValue;
+			/*
+			 * Cached lists are shared, so callers get their own copy to work with
+			 */
+			return list != null ? new ArrayList<String>(list) : defaultValue;
 			
 		} catch (RemoteException e) { handleRemoteException(e); return defaultValue; }
 	}
@@ -337,74 +408,95 @@ public class XServiceManager {
 	
 	public String getString(String key, String defaultValue) {
 		try {
-			if (!mData.containsKey(key)) {
-				if(Common.debug()) Log.d(TAG, "Retrieving preference String '" + key + "' via IPC");
-				
-				mData.put(key, mService.getString(key, defaultValue));
-			}
+			SettingsSnapshot snapshot = mCache.getSnapshot();
 
-			return (String) mData.get(key);
+			return (String) (snapshot.contains(key) ? snapshot.get(key) : getDefault(key, defaultValue, Type.STRING));
 			
 		} catch (RemoteException e) { handleRemoteException(e); return defaultValue; }
 	}
 
 	public void putInt(String key, Integer value, Boolean preserve) {
 		try {
-			mService.putInt(key, value, preserve ? 1 : 0);
+			if (!addToBatch(key, value, preserve ? 1 : 0)) {
+				mService.putInt(key, value, preserve ? 1 : 0);
+			}
 			
 		} catch (RemoteException e) { handleRemoteException(e); }
 	}
 	
 	public void putInt(String key, Integer value) {
 		try {
-			mService.putInt(key, value, -1);
+			if (!addToBatch(key, value, -1)) {
+				mService.putInt(key, value, -1);
+			}
 			
 		} catch (RemoteException e) { handleRemoteException(e); }
 	}
 
 	public void putBoolean(String key, Boolean value, Boolean preserve) {
 		try {
-			mService.putBoolean(key, value, preserve ? 1 : 0);
+			if (!addToBatch(key, value, preserve ? 1 : 0)) {
+				mService.putBoolean(key, value, preserve ? 1 : 0);
+			}
 			
 		} catch (RemoteException e) { handleRemoteException(e); }
 	}
 	
 	public void putBoolean(String key, Boolean value) {
 		try {
-			mService.putBoolean(key, value, -1);
+			if (!addToBatch(key, value, -1)) {
+				mService.putBoolean(key, value, -1);
+			}
 			
 		} catch (RemoteException e) { handleRemoteException(e); }
 	}
 
 	public void putString(String key, String value, Boolean preserve) {
 		try {
-			mService.putString(key, value, preserve ? 1 : 0);
+			if (!addToBatch(key, value, preserve ? 1 : 0)) {
+				mService.putString(key, value, preserve ? 1 : 0);
+			}
 			
 		} catch (RemoteException e) { handleRemoteException(e); }
 	}
 	
 	public void putString(String key, String value) {
 		try {
-			mService.putString(key, value, -1);
+			if (!addToBatch(key, value, -1)) {
+				mService.putString(key, value, -1);
+			}
 			
 		} catch (RemoteException e) { handleRemoteException(e); }
 	}
 	
 	public void putStringArray(String key, ArrayList<String> value, Boolean preserve) {
 		try {
-			mService.putStringArray(key, value == null ? new ArrayList<String>() : value, preserve ? 1 : 0);
+			if (!addToBatch(key, value == null ? new ArrayList<String>() : value, preserve ? 1 : 0)) {
+				mService.putStringArray(key, value == null ? new ArrayList<String>() : value, preserve ? 1 : 0);
+			}
 			
 		} catch (RemoteException e) { handleRemoteException(e); }
 	}
 	
 	public void putStringArray(String key, ArrayList<String> value) {
 		try {
-			mService.putStringArray(key, value == null ? new ArrayList<String>() : value, -1);
+			if (!addToBatch(key, value == null ? new ArrayList<String>() : value, -1)) {
+				mService.putStringArray(key, value == null ? new ArrayList<String>() : value, -1);
+			}
 			
 		} catch (RemoteException e) { handleRemoteException(e); }
 	}
 	
+	/**
+	 * Remove a key. Inside a batch, this always returns true as the removal is not done until commit().
+	 */
 	public boolean remove(String key) {
+		SettingsDelta batch = mBatch.get();
+		
+		if (batch != null) {
+			batch.remove(key); return true;
+		}
+		
 		try {
 			return mService.remove(key);
 			
@@ -413,6 +505,65 @@ public class XServiceManager {
 		return false;
 	}
 	
+	/**
+	 * Start collecting all put and remove calls made from this thread, and send them 
+	 * to the service as one when commit() is called. The service applies them together and 
+	 * sends out a single change notification. 
+	 * 
+	 * Values read before commit() will not include the changes in the batch. 
+	 * Calling this while a batch is already open on this thread does nothing. 
+	 */
+	public void beginBatch() {
+		if (mBatch.get() == null) {
+			mBatch.set(new SettingsDelta());
+		}
+	}
+	
+	/**
+	 * Send the batch opened by beginBatch() to the service
+	 * 
+	 * @return
+	 *     False if the batch could not be applied, in which case none of the changes were made
+	 */
+	public boolean commit() {
+		SettingsDelta batch = mBatch.get();
+		
+		mBatch.remove();
+		
+		if (batch != null && batch.size() > 0) {
+			if(Common.debug()) Log.d(TAG, "Committing a batch of " + batch.size() + " changes");
+			
+			try {
+				return mService.commit(batch);
+				
+			} catch (RemoteException e) { handleRemoteException(e); }
+			
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Drop the batch opened by beginBatch() without sending any of it
+	 */
+	public void rollback() {
+		mBatch.remove();
+	}
+	
+	/*
+	 * Add a change to the batch of the current thread, if one has been opened
+	 */
+	private boolean addToBatch(String key, Object value, Integer preserve) {
+		SettingsDelta batch = mBatch.get();
+		
+		if (batch != null) {
+			batch.put(key, value, preserve == 1); return true;
+		}
+		
+		return false;
+	}
+	
 	public List<String> getPreservedKeys() {
 		try {
 			return mService.getPreservedKeys();
@@ -514,4 +665,34 @@ public class XServiceManager {
 		
 		return null;
 	}
+	
+	/**
+	 * Get the key latency histograms from the system process, 
+	 * use LatencyTracker.format() to make them readable
+	 */
+	public long[] getLatencyData() {
+		try {
+			return mService.getLatencyData();
+		
+		} catch (RemoteException e) {
+			handleRemoteException(e);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Get a binary dump of the key event flight recorder from the system process, 
+	 * use FlightRecorder.decode() to make it readable
+	 */
+	public byte[] getFlightRecord() {
+		try {
+			return mService.getFlightRecord();
+		
+		} catch (RemoteException e) {
+			handleRemoteException(e);
+		}
+		
+		return null;
+	}
 }
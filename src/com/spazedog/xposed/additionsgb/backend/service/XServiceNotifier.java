@@ -0,0 +1,257 @@
+/*
+ * This file is part of the Xposed Additions Project: https://github.com/spazedog/xposed-additions
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Xposed Additions is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+
+ * Xposed Additions is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+
+ * You should have received a copy of the GNU General Public License
+ * along with Xposed Additions. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.xposed.additionsgb.backend.service;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.IBinder.DeathRecipient;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.spazedog.xposed.additionsgb.Common;
+import com.spazedog.xposed.additionsgb.utils.SettingsDelta;
+
+/**
+ * Sends the XService notifications to the registered listeners from a thread of it's own.
+ *
+ * Writers only add their change to a pending state and return, so they never wait on a slow client.
+ * Changes that have not yet been sent are coalesced:
+ *
+ *   - Settings deltas are merged into one, where each key only appears once with it's latest value.
+ *     If the merged delta grows too large, or the whole data set is replaced, clients are instead
+ *     told to fetch a new snapshot.
+ *   - Package changes are sent once, no matter how many happened.
+ *   - Broadcasts are kept in order, but only up to MAX_BROADCASTS. The oldest ones are dropped beyond that.
+ *
+ * Since changes are coalesced, the order between the different kinds is not kept. Each listener always
+ * gets the settings change first, then the package change and then the broadcasts. This is intended,
+ * as it means that a client handling a broadcast already has every setting that was written before it.
+ *
+ * Dead listeners are removed by their death recipient, so they are never pinged before a call.
+ *
+ * The thread is not started until the first notification, as the XService is created in Zygote on older Android versions.
+ */
+public final class XServiceNotifier {
+	public static final String TAG = XServiceNotifier.class.getName();
+
+	/*
+	 * A merged delta with more entries than this is replaced by a full snapshot update
+	 */
+	private static final int MAX_DELTA_SIZE = 256;
+
+	private static final int MAX_BROADCASTS = 64;
+
+	private static class PendingBroadcast {
+		final String action;
+		final Bundle data;
+
+		PendingBroadcast(String action, Bundle data) {
+			this.action = action;
+			this.data = data;
+		}
+	}
+
+	/*
+	 * Everything below is guarded by mLock
+	 */
+	private final Object mLock = new Object();
+
+	private final Map<IBinder, IXServiceChangeListener> mListeners = new HashMap<IBinder, IXServiceChangeListener>();
+
+	private Handler mHandler;
+	private boolean mScheduled = false;
+
+	private SettingsDelta mPendingDelta;
+	private int mPendingVersion = 0;	// The data set was replaced, clients need a new snapshot of this version
+	private boolean mPendingPackage = false;
+	private final LinkedList<PendingBroadcast> mPendingBroadcasts = new LinkedList<PendingBroadcast>();
+
+	private final Runnable mDeliverRunnable = new Runnable() {
+		@Override
+		public void run() {
+			IXServiceChangeListener[] listeners;
+			SettingsDelta delta;
+			int version;
+			boolean packageChanged;
+			PendingBroadcast[] broadcasts;
+
+			synchronized (mLock) {
+				listeners = mListeners.values().toArray(new IXServiceChangeListener[mListeners.size()]);
+				delta = mPendingDelta;
+				version = mPendingVersion;
+				packageChanged = mPendingPackage;
+				broadcasts = mPendingBroadcasts.toArray(new PendingBroadcast[mPendingBroadcasts.size()]);
+
+				mPendingDelta = null;
+				mPendingVersion = 0;
+				mPendingPackage = false;
+				mPendingBroadcasts.clear();
+				mScheduled = false;
+			}
+
+			/*
+			 * Settings first, see the class description
+			 */
+			for (IXServiceChangeListener listener : listeners) {
+				try {
+					if (version > 0) {
+						listener.onSettingsChanged(version);
+
+					} else if (delta != null) {
+						listener.onSettingsDelta(delta);
+					}
+
+					if (packageChanged) {
+						listener.onPackageChanged();
+					}
+
+					for (PendingBroadcast broadcast : broadcasts) {
+						listener.onBroadcastReceive(broadcast.action, broadcast.data);
+					}
+
+				} catch (RemoteException e) {
+					/*
+					 * The death recipient will take care of dead listeners
+					 */
+					if(Common.debug()) Log.d(TAG, "Could not notify listener, " + e.getMessage());
+				}
+			}
+		}
+	};
+
+	public void addListener(IXServiceChangeListener listener) throws RemoteException {
+		final IBinder binder = listener.asBinder();
+
+		synchronized (mLock) {
+			if (mListeners.containsKey(binder)) {
+				return;
+			}
+
+			mListeners.put(binder, listener);
+		}
+
+		try {
+			binder.linkToDeath(new DeathRecipient(){
+				@Override
+				public void binderDied() {
+					binder.unlinkToDeath(this, 0);
+
+					synchronized (mLock) {
+						mListeners.remove(binder);
+					}
+				}
+
+			}, 0);
+
+		} catch (RemoteException e) {
+			/*
+			 * Already dead
+			 */
+			synchronized (mLock) {
+				mListeners.remove(binder);
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Queue a settings change. The delta must not be changed after this.
+	 */
+	public void notifySettingsDelta(SettingsDelta delta) {
+		synchronized (mLock) {
+			if (mPendingVersion > 0) {
+				/*
+				 * Clients are already going to fetch a new snapshot
+				 */
+				mPendingVersion = delta.getVersion();
+
+			} else {
+				if (mPendingDelta == null) {
+					mPendingDelta = new SettingsDelta();
+				}
+
+				mPendingDelta.merge(delta);
+
+				if (mPendingDelta.size() > MAX_DELTA_SIZE) {
+					mPendingVersion = mPendingDelta.getVersion();
+					mPendingDelta = null;
+				}
+			}
+
+			schedule();
+		}
+	}
+
+	/**
+	 * Queue a replacement of the whole data set
+	 */
+	public void notifySettingsChanged(int version) {
+		synchronized (mLock) {
+			mPendingVersion = version;
+			mPendingDelta = null;
+
+			schedule();
+		}
+	}
+
+	public void notifyPackageChanged() {
+		synchronized (mLock) {
+			mPendingPackage = true;
+
+			schedule();
+		}
+	}
+
+	public void notifyBroadcast(String action, Bundle data) {
+		synchronized (mLock) {
+			if (mPendingBroadcasts.size() >= MAX_BROADCASTS) {
+				Log.w(TAG, "Too many pending broadcasts, dropping '" + mPendingBroadcasts.removeFirst().action + "'");
+			}
+
+			mPendingBroadcasts.add(new PendingBroadcast(action, data));
+
+			schedule();
+		}
+	}
+
+	/*
+	 * Must be called while holding mLock
+	 */
+	private void schedule() {
+		if (!mScheduled) {
+			if (mHandler == null) {
+				HandlerThread thread = new HandlerThread("XposedAdditions:Notifier");
+				thread.start();
+
+				mHandler = new Handler(thread.getLooper());
+			}
+
+			mScheduled = true;
+			mHandler.post(mDeliverRunnable);
+		}
+	}
+}
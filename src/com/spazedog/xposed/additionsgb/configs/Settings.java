@@ -10,6 +10,9 @@ public class Settings {
 	public static final String REMAP_TIMEOUT_LONGPRESS = "remap_press_delay";
 	public static final String REMAP_TIMEOUT_DOUBLECLICK = "remap_tap_delay";
 	public static final String REMAP_TIMEOUT_HARD_RESET = "remap_timeout_hard_reset";
+	public static final String REMAP_REPEAT_DELAY = "remap_repeat_delay";
+	public static final String REMAP_REPEAT_MIN_DELAY = "remap_repeat_min_delay";
+	public static final String REMAP_REPEAT_ACCELERATION = "remap_repeat_acceleration";
 	
 	public static final String USB_CONNECTION_PLUG = "usb_plug_action";
 	public static final String USB_CONNECTION_UNPLUG = "usb_unplug_action";
@@ -29,6 +32,7 @@ public class Settings {
 	 * Group Settings Names
 	 */
 	public static final String REMAP_KEY_ENABLE_CALLBTN = "remap_call_button";
+	public static final String REMAP_KEY_ENABLE_STRICT_ORDER = "remap_key_strict_order";
 	public static final String REMAP_KEY_LIST_CONDITIONS = "remap_key_conditions";
 	public static final PlaceHolder REMAP_KEY_LIST_ACTIONS = new PlaceHolder("remap_key_actions:%1$s");
 	
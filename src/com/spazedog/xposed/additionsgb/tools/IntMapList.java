@@ -0,0 +1,193 @@
+package com.spazedog.xposed.additionsgb.tools;
+
+import java.util.Arrays;
+
+/*
+ * A primitive version of MapList that maps int keys to values.
+ *
+ * Keys and values are stored in insertion order in plain arrays, while an open addressed
+ * hash table of indexes provides constant time lookups without boxing the keys.
+ * Removing items will rebuild the index table, but that is cheap for the small
+ * amounts of items that this is meant for.
+ */
+public class IntMapList<VALUE> {
+
+	private static final int EMPTY = -1;
+
+	private int[] mKeys;
+	private Object[] mValues;
+	private int[] mTable;
+	private int mSize = 0;
+
+	public IntMapList() {
+		this(4);
+	}
+
+	public IntMapList(int capacity) {
+		int tableSize = 4;
+
+		while (tableSize < capacity * 2) {
+			tableSize <<= 1;
+		}
+
+		mKeys = new int[capacity];
+		mValues = new Object[capacity];
+		mTable = new int[tableSize];
+
+		Arrays.fill(mTable, EMPTY);
+	}
+
+	private int slot(int key) {
+		int hash = key * 0x9E3779B9;
+
+		return (hash ^ (hash >>> 16)) & (mTable.length - 1);
+	}
+
+	/*
+	 * Returns the table slot for the key, or the empty slot where it should be placed
+	 */
+	private int find(int key) {
+		int mask = mTable.length - 1;
+		int slot = slot(key);
+
+		while (mTable[slot] != EMPTY && mKeys[ mTable[slot] ] != key) {
+			slot = (slot + 1) & mask;
+		}
+
+		return slot;
+	}
+
+	private void rebuildTable(int tableSize) {
+		if (mTable.length != tableSize) {
+			mTable = new int[tableSize];
+		}
+
+		Arrays.fill(mTable, EMPTY);
+
+		for (int i=0; i < mSize; i++) {
+			mTable[ find(mKeys[i]) ] = i;
+		}
+	}
+
+	public int size() {
+		return mSize;
+	}
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+	public boolean containsKey(int key) {
+		return mTable[ find(key) ] != EMPTY;
+	}
+
+	public int indexOf(int key) {
+		return mTable[ find(key) ];
+	}
+
+	@SuppressWarnings("unchecked")
+	public VALUE get(int key) {
+		int index = mTable[ find(key) ];
+
+		return index != EMPTY ? (VALUE) mValues[index] : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public VALUE put(int key, VALUE value) {
+		int slot = find(key);
+		int index = mTable[slot];
+
+		if (index != EMPTY) {
+			VALUE oldValue = (VALUE) mValues[index];
+			mValues[index] = value;
+
+			return oldValue;
+		}
+
+		if (mSize == mKeys.length) {
+			int capacity = Math.max(4, mSize * 2);
+
+			mKeys = Arrays.copyOf(mKeys, capacity);
+			mValues = Arrays.copyOf(mValues, capacity);
+		}
+
+		mKeys[mSize] = key;
+		mValues[mSize] = value;
+
+		/*
+		 * Keep the table at a maximum load of 50%
+		 */
+		if ((mSize + 1) * 2 > mTable.length) {
+			mSize += 1;
+			rebuildTable(mTable.length * 2);
+
+		} else {
+			mTable[slot] = mSize;
+			mSize += 1;
+		}
+
+		return null;
+	}
+
+	public VALUE remove(int key) {
+		int index = mTable[ find(key) ];
+
+		return index != EMPTY ? removeAt(index) : null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public VALUE removeAt(int location) {
+		if (location < mSize && location >= 0) {
+			VALUE value = (VALUE) mValues[location];
+
+			System.arraycopy(mKeys, location+1, mKeys, location, mSize - location - 1);
+			System.arraycopy(mValues, location+1, mValues, location, mSize - location - 1);
+
+			mSize -= 1;
+			mValues[mSize] = null;
+
+			rebuildTable(mTable.length);
+
+			return value;
+		}
+
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public VALUE getAt(int location) {
+		if (location < mSize && location >= 0) {
+			return (VALUE) mValues[location];
+		}
+
+		return null;
+	}
+
+	public int keyAt(int location) {
+		return mKeys[location];
+	}
+
+	public void clear() {
+		for (int i=0; i < mSize; i++) {
+			mValues[i] = null;
+		}
+
+		Arrays.fill(mTable, EMPTY);
+
+		mSize = 0;
+	}
+
+	public String joinKeys(String separater) {
+		StringBuilder builder = new StringBuilder();
+
+		for (int i=0; i < mSize; i++) {
+			if (i > 0 && separater != null) {
+				builder.append(separater);
+			}
+
+			builder.append(mKeys[i]);
+		}
+
+		return builder.toString();
+	}
+}
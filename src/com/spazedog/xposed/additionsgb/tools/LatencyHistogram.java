@@ -0,0 +1,113 @@
+package com.spazedog.xposed.additionsgb.tools;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A fixed size latency histogram that can be recorded from any thread without locking.
+ *
+ * Values are recorded in microseconds into power of two buckets:
+ *
+ *   - Bucket 0 holds 0 µs
+ *   - Bucket 'i' from 1 to BUCKETS-2 holds values from 2^(i-1) µs up to, but not including, 2^i µs
+ *   - The last bucket holds everything from 2^(BUCKETS-2) µs, which is 4194304 µs (about 4.2 seconds)
+ *
+ * Use bucketStart() and bucketLimit() for the exact boundaries.
+ */
+public final class LatencyHistogram {
+
+	public static final int BUCKETS = 24;
+
+	/*
+	 * Layout of the exported data: count, sum, max, buckets
+	 */
+	public static final int EXPORT_SIZE = 3 + BUCKETS;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mSum = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	public static int bucketFor(long micros) {
+		int bucket = micros > 0 ? 64 - Long.numberOfLeadingZeros(micros) : 0;
+
+		return bucket < BUCKETS ? bucket : BUCKETS - 1;
+	}
+
+	/**
+	 * @return
+	 *     The inclusive lower bound of a bucket in microseconds
+	 */
+	public static long bucketStart(int bucket) {
+		return bucket > 0 ? 1L << (bucket - 1) : 0L;
+	}
+
+	/**
+	 * @return
+	 *     The exclusive upper bound of a bucket in microseconds, or Long.MAX_VALUE for the last bucket
+	 */
+	public static long bucketLimit(int bucket) {
+		return bucket < BUCKETS - 1 ? 1L << bucket : Long.MAX_VALUE;
+	}
+
+	public void record(long micros) {
+		if (micros < 0) {
+			micros = 0;
+		}
+
+		mBuckets.incrementAndGet(bucketFor(micros));
+		mCount.incrementAndGet();
+		mSum.addAndGet(micros);
+
+		long max;
+
+		while ((max = mMax.get()) < micros && !mMax.compareAndSet(max, micros));
+	}
+
+	public void reset() {
+		for (int i=0; i < BUCKETS; i++) {
+			mBuckets.set(i, 0L);
+		}
+
+		mCount.set(0L);
+		mSum.set(0L);
+		mMax.set(0L);
+	}
+
+	/**
+	 * Copy the histogram into <code>out</code> starting at <code>offset</code>.
+	 * Each field is copied atomically, but the histogram as a whole is not a snapshot.
+	 */
+	public void export(long[] out, int offset) {
+		out[offset] = mCount.get();
+		out[offset+1] = mSum.get();
+		out[offset+2] = mMax.get();
+
+		for (int i=0; i < BUCKETS; i++) {
+			out[offset+3+i] = mBuckets.get(i);
+		}
+	}
+
+	/**
+	 * Get a percentile from exported histogram data
+	 *
+	 * @return
+	 *     The upper bound in microseconds of the bucket containing the percentile
+	 */
+	public static long percentile(long[] data, int offset, int percent) {
+		long count = data[offset];
+
+		if (count > 0) {
+			long target = (count * percent + 99) / 100;
+			long seen = 0;
+
+			for (int i=0; i < BUCKETS; i++) {
+				if ((seen += data[offset+3+i]) >= target) {
+					return i < BUCKETS-1 ? bucketLimit(i) : data[offset+2];
+				}
+			}
+		}
+
+		return 0L;
+	}
+}
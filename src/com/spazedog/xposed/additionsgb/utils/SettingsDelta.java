@@ -0,0 +1,205 @@
+/*
+ * This file is part of the Xposed Additions Project: https://github.com/spazedog/xposed-additions
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Xposed Additions is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Xposed Additions is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Xposed Additions. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.xposed.additionsgb.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.spazedog.xposed.additionsgb.utils.SettingsHelper.Type;
+
+/*
+ * A set of changed keys along with their new values, which takes a SettingsSnapshot
+ * from one data version to the next.
+ *
+ * The XService sends these to it's clients whenever settings are changed, so that they can
+ * update their snapshot without having to request the new values. A removed key is stored
+ * with the type Type.UNKNOWN.
+ *
+ * Clients also use it to send a batch of changes to the XService, which are then applied together.
+ *
+ * Deltas waiting to be sent can be merged, in which case the result leads from the base version of
+ * the first one to the version of the last one, and each key only appears once.
+ */
+public final class SettingsDelta implements Parcelable {
+	private int mBaseVersion;
+	private int mVersion;
+
+	private final List<String> mKeys;
+	private final List<Integer> mTypes;
+	private final List<Object> mValues;
+	private final List<Boolean> mPersistent;
+
+	public static final Parcelable.Creator<SettingsDelta> CREATOR = new Parcelable.Creator<SettingsDelta>() {
+		@Override
+		public SettingsDelta createFromParcel(Parcel in) {
+			return new SettingsDelta(in);
+		}
+
+		@Override
+		public SettingsDelta[] newArray(int size) {
+			return new SettingsDelta[size];
+		}
+	};
+
+	public SettingsDelta() {
+		mKeys = new ArrayList<String>();
+		mTypes = new ArrayList<Integer>();
+		mValues = new ArrayList<Object>();
+		mPersistent = new ArrayList<Boolean>();
+	}
+
+	private SettingsDelta(Parcel in) {
+		mBaseVersion = in.readInt();
+		mVersion = in.readInt();
+
+		int size = in.readInt();
+
+		mKeys = new ArrayList<String>(size);
+		mTypes = new ArrayList<Integer>(size);
+		mValues = new ArrayList<Object>(size);
+		mPersistent = new ArrayList<Boolean>(size);
+
+		for (int i=0; i < size; i++) {
+			int type = in.readInt();
+
+			mTypes.add(type);
+			mKeys.add(in.readString());
+			mValues.add(SettingsSnapshot.readValue(in, type));
+			mPersistent.add(in.readInt() == 1);
+		}
+	}
+
+	@Override
+	public void writeToParcel(Parcel out, int flags) {
+		int size = mKeys.size();
+
+		out.writeInt(mBaseVersion);
+		out.writeInt(mVersion);
+		out.writeInt(size);
+
+		for (int i=0; i < size; i++) {
+			out.writeInt(mTypes.get(i));
+			out.writeString(mKeys.get(i));
+
+			SettingsSnapshot.writeValue(out, mValues.get(i));
+
+			out.writeInt(mPersistent.get(i) ? 1 : 0);
+		}
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	public void put(String key, Object value) {
+		put(key, value, false);
+	}
+
+	/**
+	 * @param persistent
+	 *     Whether the key should be marked as persistent, see SettingsData.put()
+	 */
+	public void put(String key, Object value, Boolean persistent) {
+		mKeys.add(key);
+		mTypes.add(Type.getType(value));
+		mValues.add(value instanceof ArrayList<?> ? new ArrayList<Object>((ArrayList<?>) value) : value);
+		mPersistent.add(persistent);
+	}
+
+	public void remove(String key) {
+		mKeys.add(key);
+		mTypes.add(Type.UNKNOWN);
+		mValues.add(null);
+		mPersistent.add(false);
+	}
+
+	/**
+	 * The data version that this delta leads to
+	 */
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/**
+	 * The data version of the snapshot that this delta applies to
+	 */
+	public int getBaseVersion() {
+		return mBaseVersion;
+	}
+
+	/**
+	 * Set the version of a single change, which applies to the version right before it
+	 */
+	public void setVersion(int version) {
+		mBaseVersion = version - 1;
+		mVersion = version;
+	}
+
+	/**
+	 * Add the changes from the delta that follows this one. Keys that are changed again
+	 * are moved to the end with their new value, since the order of the entries matters
+	 * when a delta is applied.
+	 */
+	public void merge(SettingsDelta next) {
+		if (mKeys.size() == 0) {
+			mBaseVersion = next.mBaseVersion;
+		}
+
+		for (int i=0; i < next.size(); i++) {
+			int index = mKeys.indexOf(next.mKeys.get(i));
+
+			if (index >= 0) {
+				mKeys.remove(index);
+				mTypes.remove(index);
+				mValues.remove(index);
+				mPersistent.remove(index);
+			}
+
+			mKeys.add(next.mKeys.get(i));
+			mTypes.add(next.mTypes.get(i));
+			mValues.add(next.mValues.get(i));
+			mPersistent.add(next.mPersistent.get(i));
+		}
+
+		mVersion = next.mVersion;
+	}
+
+	public int size() {
+		return mKeys.size();
+	}
+
+	public String keyAt(int index) {
+		return mKeys.get(index);
+	}
+
+	public int typeAt(int index) {
+		return mTypes.get(index);
+	}
+
+	public Object valueAt(int index) {
+		return mValues.get(index);
+	}
+
+	public boolean persistentAt(int index) {
+		return mPersistent.get(index);
+	}
+}
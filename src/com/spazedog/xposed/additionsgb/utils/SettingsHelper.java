@@ -187,6 +187,15 @@ public class SettingsHelper {
 			return mHasChanges;
 		}
 		
+		/*
+		 * Used to restore the flag after a set of changes has been reverted
+		 */
+		public void setChanged(Boolean changed) {
+			synchronized (mData) {
+				mHasChanges = changed;
+			}
+		}
+		
 		public Boolean contains(String key) {
 			return mData.containsKey(key);
 		}
@@ -0,0 +1,197 @@
+/*
+ * This file is part of the Xposed Additions Project: https://github.com/spazedog/xposed-additions
+ *
+ * Copyright (c) 2015 Daniel Bergløv
+ *
+ * Xposed Additions is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * Xposed Additions is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * You should have received a copy of the GNU General Public License
+ * along with Xposed Additions. If not, see <http://www.gnu.org/licenses/>
+ */
+
+package com.spazedog.xposed.additionsgb.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.spazedog.xposed.additionsgb.utils.SettingsHelper.SettingsData;
+import com.spazedog.xposed.additionsgb.utils.SettingsHelper.Type;
+
+/*
+ * An immutable copy of all the settings in the XService at a specific version.
+ *
+ * The service bumps the version on each change. Clients fetch the whole snapshot in a single
+ * transaction when they connect or when the whole data set is replaced, and otherwise build the next
+ * version themselves from the SettingsDelta sent along with each change. Since a snapshot is never changed
+ * after it has been created, it can be swapped in by the client and read from any thread without locking.
+ *
+ * Lists are kept as they are, so anything handing them out to code that might change them,
+ * should hand out a copy instead.
+ */
+public final class SettingsSnapshot implements Parcelable {
+	public static final SettingsSnapshot EMPTY = new SettingsSnapshot();
+
+	private final int mVersion;
+	private final Map<String, Object> mData;
+
+	public static final Parcelable.Creator<SettingsSnapshot> CREATOR = new Parcelable.Creator<SettingsSnapshot>() {
+		@Override
+		public SettingsSnapshot createFromParcel(Parcel in) {
+			return new SettingsSnapshot(in);
+		}
+
+		@Override
+		public SettingsSnapshot[] newArray(int size) {
+			return new SettingsSnapshot[size];
+		}
+	};
+
+	private SettingsSnapshot() {
+		mVersion = 0;
+		mData = Collections.emptyMap();
+	}
+
+	public SettingsSnapshot(int version, SettingsData data) {
+		Map<String, Object> map = new HashMap<String, Object>();
+
+		synchronized (data.mData) {
+			for (Map.Entry<String, Object> entry : data.mData.entrySet()) {
+				Object value = entry.getValue();
+
+				map.put(entry.getKey(), value instanceof ArrayList<?> ? new ArrayList<Object>((ArrayList<?>) value) : value);
+			}
+		}
+
+		mVersion = version;
+		mData = Collections.unmodifiableMap(map);
+	}
+
+	private SettingsSnapshot(int version, Map<String, Object> data) {
+		mVersion = version;
+		mData = Collections.unmodifiableMap(data);
+	}
+
+	private SettingsSnapshot(Parcel in) {
+		Map<String, Object> map = new HashMap<String, Object>();
+
+		mVersion = in.readInt();
+
+		int size = in.readInt();
+
+		for (int i=0; i < size; i++) {
+			int type = in.readInt();
+			String key = in.readString();
+
+			map.put(key, readValue(in, type));
+		}
+
+		mData = Collections.unmodifiableMap(map);
+	}
+
+	@Override
+	public void writeToParcel(Parcel out, int flags) {
+		out.writeInt(mVersion);
+		out.writeInt(mData.size());
+
+		for (Map.Entry<String, Object> entry : mData.entrySet()) {
+			Object value = entry.getValue();
+
+			out.writeInt(Type.getType(value));
+			out.writeString(entry.getKey());
+
+			writeValue(out, value);
+		}
+	}
+
+	@Override
+	public int describeContents() {
+		return 0;
+	}
+
+	public int getVersion() {
+		return mVersion;
+	}
+
+	public boolean contains(String key) {
+		return mData.containsKey(key);
+	}
+
+	public Object get(String key) {
+		return mData.get(key);
+	}
+
+	public Set<String> keySet() {
+		return mData.keySet();
+	}
+
+	/**
+	 * Create a new snapshot with the changes from a delta. This snapshot is not changed.
+	 */
+	public SettingsSnapshot apply(SettingsDelta delta) {
+		Map<String, Object> map = new HashMap<String, Object>(mData);
+
+		for (int i=0; i < delta.size(); i++) {
+			if (delta.typeAt(i) == Type.UNKNOWN) {
+				map.remove(delta.keyAt(i));
+
+			} else {
+				map.put(delta.keyAt(i), delta.valueAt(i));
+			}
+		}
+
+		return new SettingsSnapshot(delta.getVersion(), map);
+	}
+
+	/**
+	 * Write a single value using the same encoding as SettingsData.
+	 * The type from Type.getType() must be written before it.
+	 */
+	public static void writeValue(Parcel out, Object value) {
+		switch (Type.getType(value)) {
+			case Type.LIST:
+				out.writeList((ArrayList<?>) value); break;
+
+			case Type.BOOLEAN:
+				out.writeInt((Boolean) value ? 1 : 0); break;
+
+			case Type.INTEGER:
+				out.writeInt((Integer) value); break;
+
+			case Type.STRING:
+				out.writeString((String) value);
+		}
+	}
+
+	/**
+	 * Read a single value written by writeValue()
+	 */
+	public static Object readValue(Parcel in, int type) {
+		switch (type) {
+			case Type.LIST:
+				return in.readArrayList(ArrayList.class.getClassLoader());
+
+			case Type.BOOLEAN:
+				return in.readInt() == 1;
+
+			case Type.INTEGER:
+				return in.readInt();
+
+			case Type.STRING:
+				return in.readString();
+		}
+
+		return null;
+	}
+}